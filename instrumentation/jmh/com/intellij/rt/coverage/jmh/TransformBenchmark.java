@@ -0,0 +1,101 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageClassfileTransformer;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Sampling instrumentation of all classes of the JMH jar with original stack map frames kept
+ * and with frames recomputed, which loads the class hierarchy in <code>ClassWriter.getCommonSuperClass</code>.
+ * Every invocation instruments the classes for a new class loader, like an application started with the agent.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransformBenchmark {
+  @Param({"true", "false"})
+  public boolean preserveFrames;
+
+  private File myJar;
+  private final Map<String, byte[]> myClasses = new LinkedHashMap<String, byte[]>();
+  private CoverageClassfileTransformer myTransformer;
+
+  @Setup
+  public void setUp() throws Exception {
+    System.setProperty("idea.coverage.preserve.frames", String.valueOf(preserveFrames));
+    myJar = new File(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    final ZipFile zipFile = new ZipFile(myJar);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+        final ZipEntry entry = e.nextElement();
+        final String name = entry.getName();
+        if (!name.endsWith(".class")) continue;
+        myClasses.put(name.substring(0, name.length() - ".class".length()).replace('/', '.'), readBytes(zipFile.getInputStream(entry)));
+      }
+    } finally {
+      zipFile.close();
+    }
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, true);
+    final List<Pattern> patterns = Collections.emptyList();
+    myTransformer = new CoverageClassfileTransformer(projectData, false, patterns, patterns, new ClassFinder(patterns, patterns));
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.clearProperty("idea.coverage.preserve.frames");
+  }
+
+  @Benchmark
+  public int transform() throws Exception {
+    final ClassLoader loader = new URLClassLoader(new URL[]{myJar.toURI().toURL()}, null);
+    int size = 0;
+    for (Map.Entry<String, byte[]> entry : myClasses.entrySet()) {
+      size += myTransformer.instrument(entry.getValue(), entry.getKey(), loader, true).length;
+    }
+    return size;
+  }
+
+  private static byte[] readBytes(InputStream is) throws IOException {
+    try {
+      final ByteArrayOutputStream result = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        result.write(buffer, 0, read);
+      }
+      return result.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
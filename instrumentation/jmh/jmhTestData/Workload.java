@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jmhTestData;
+
+/**
+ * Instrumented code of the coverage agent benchmark: short methods with loops, branches and switches.
+ */
+public class Workload {
+  private final int[] myData;
+
+  public Workload(int size) {
+    myData = new int[size];
+    int seed = 17;
+    for (int i = 0; i < size; i++) {
+      seed = seed * 1103515245 + 12345;
+      myData[i] = (seed >>> 8) % 1000;
+    }
+  }
+
+  public long run() {
+    final int[] data = myData.clone();
+    sort(data);
+    long result = 0;
+    for (int i = 0; i < data.length; i++) {
+      result += classify(data[i]);
+      if (isPrime(data[i])) {
+        result++;
+      }
+    }
+    return result + gcd(data[0] + 1, data[data.length - 1] + 1);
+  }
+
+  private static void sort(int[] data) {
+    for (int i = 1; i < data.length; i++) {
+      final int value = data[i];
+      int j = i - 1;
+      while (j >= 0 && data[j] > value) {
+        data[j + 1] = data[j];
+        j--;
+      }
+      data[j + 1] = value;
+    }
+  }
+
+  private static int classify(int value) {
+    switch (value % 5) {
+      case 0:
+        return 1;
+      case 1:
+        return value > 500 ? 2 : 3;
+      case 2:
+        return 4;
+      default:
+        return 0;
+    }
+  }
+
+  private static boolean isPrime(int value) {
+    if (value < 2) return false;
+    for (int d = 2; d * d <= value; d++) {
+      if (value % d == 0) return false;
+    }
+    return true;
+  }
+
+  private static int gcd(int a, int b) {
+    return b == 0 ? a : gcd(b, a % b);
+  }
+}
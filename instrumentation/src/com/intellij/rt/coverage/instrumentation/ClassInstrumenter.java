@@ -49,8 +49,33 @@ public class ClassInstrumenter extends Instrumenter {
     return root;
   }
 
+  protected TouchCounter createTouchCounter(LineEnumerator enumerator, int access, String desc) {
+    return new TouchCounter(enumerator, access, desc);
+  }
+
+  /**
+   * Whether probes are inserted while a method is visited rather than after the whole method is buffered.
+   * Probes of {@link TouchCounter} address jumps and switches by their index in the line,
+   * which is reused when a filter removes a jump, so the final indices must be known before probes are inserted.
+   */
+  protected boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Called when a filter removes a jump whose probes may have already been inserted, see {@link #isStreaming()}.
+   */
+  protected void jumpRemoved(int line, int jump) {
+  }
+
+  /**
+   * Called when a filter removes a switch whose probes may have already been inserted, see {@link #isStreaming()}.
+   */
+  protected void switchRemoved(int line, int switchNumber) {
+  }
+
   protected void initLineData() {
-    myClassData.setLines(LinesUtil.calcLineArray(myMaxLineNumber, myLines));
+    setLines(LinesUtil.calcSortedLines(myLines));
   }
 
   public LineData getLineData(int line) {
@@ -17,7 +17,7 @@
 package com.intellij.rt.coverage.instrumentation;
 
 import com.intellij.rt.coverage.data.ProjectData;
-import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.ClassFilter;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
@@ -25,53 +25,107 @@ import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
 
 import java.util.List;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 public class CoverageClassfileTransformer extends AbstractIntellijClassfileTransformer {
   private final ProjectData data;
   private final boolean shouldCalculateSource;
-  private final List<Pattern> excludePatterns;
-  private final List<Pattern> includePatterns;
+  private final ClassFilter myFilter;
+  private final InclusionPattern myInclusionPattern;
   private final ClassFinder cf;
+  private final InstrumentedClassCache myCache;
 
   public CoverageClassfileTransformer(ProjectData data, boolean shouldCalculateSource, List<Pattern> excludePatterns, List<Pattern> includePatterns, ClassFinder cf) {
     this.data = data;
     this.shouldCalculateSource = shouldCalculateSource;
-    this.excludePatterns = excludePatterns;
-    this.includePatterns = includePatterns;
+    myFilter = cf.getFilter().isCompiledFrom(includePatterns, excludePatterns)
+        ? cf.getFilter()
+        : new ClassFilter(includePatterns, excludePatterns);
+    myInclusionPattern = myFilter.hasIncludePatterns() ? new InclusionPattern() {
+      public boolean accept(String className) {
+        return myFilter.isIncluded(className); // matching inner class name
+      }
+    } : null;
     this.cf = cf;
+    myCache = InstrumentedClassCache.createIfRequested(getCacheOptions());
+  }
+
+  /**
+   * Options which select the instrumenter and affect the instrumented bytes, see {@link #createClassVisitor}.
+   */
+  private String getCacheOptions() {
+    return data.isSampling() + ";" + data.isTraceLines() + ";" + shouldCalculateSource + ";" +
+        System.getProperty("idea.new.sampling.coverage") + ";" +
+        System.getProperty("idea.new.tracing.coverage") + ";" +
+        System.getProperty("idea.coverage.hit.flags") + ";" +
+        System.getProperty("idea.coverage.thread.hits") + ";" +
+        System.getProperty("idea.coverage.no.frames") + ";" +
+        System.getProperty("idea.coverage.preserve.frames");
+  }
+
+  @Override
+  public byte[] instrument(byte[] classfileBuffer, String className, ClassLoader loader, boolean computeFrames) {
+    if (myCache != null) {
+      final InstrumentedClassCache.Entry entry = myCache.get(myCache.getKey(className, classfileBuffer), className);
+      if (entry != null) {
+        entry.getRegistration().register(data);
+        return entry.getBytes();
+      }
+    }
+    return super.instrument(classfileBuffer, className, loader, computeFrames);
+  }
+
+  @Override
+  protected void classInstrumented(String className, byte[] classfileBuffer, ClassVisitor cv, byte[] result) {
+    if (myCache != null && cv instanceof Instrumenter) {
+      myCache.put(myCache.getKey(className, classfileBuffer), result, ((Instrumenter) cv).getRegistration());
+    }
   }
 
   @Override
   protected ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassWriter cw) {
+    // only whether a line or a branch was hit is collected, not the number of hits
+    final boolean hitFlags = System.getProperty("idea.coverage.hit.flags") != null;
+    // every thread counts hits in its own array, arrays are summed up on save
+    final boolean threadHits = System.getProperty("idea.coverage.thread.hits") != null;
+    // class loaders may define different versions of the class, each version counts hits in arrays of its own
+    final int layoutId = getLayoutId(cr.b);
     if (data.isSampling()) {
-      if (System.getProperty("idea.new.sampling.coverage") != null) {
-        //wrap cw with new TraceClassVisitor(cw, new PrintWriter(new StringWriter())) to get readable bytecode
-        return new NewSamplingInstrumenter(data, cw, cr, className, shouldCalculateSource);
-      } else {
+      if ("false".equals(System.getProperty("idea.new.sampling.coverage")) && !hitFlags && !threadHits) {
         return new SamplingInstrumenter(data, cw, className, shouldCalculateSource);
+      } else {
+        //wrap cw with new TraceClassVisitor(cw, new PrintWriter(new StringWriter())) to get readable bytecode
+        return new NewSamplingInstrumenter(data, cw, className, shouldCalculateSource, layoutId, hitFlags, threadHits);
       }
+    } else if ((System.getProperty("idea.new.tracing.coverage") != null || hitFlags || threadHits) && !data.isTraceLines()) {
+      return new NewTracingInstrumenter(data, cw, className, shouldCalculateSource, layoutId, hitFlags, threadHits);
     } else {
       return new ClassInstrumenter(data, cw, className, shouldCalculateSource);
     }
   }
 
+  private static int getLayoutId(byte[] classBytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(classBytes);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Sampling probes are straight-line code, while tracing adds jumps to count branches.
+   */
+  @Override
+  protected boolean preservesFrames() {
+    return data.isSampling();
+  }
+
   @Override
   protected boolean shouldExclude(String className) {
-    return ClassNameUtil.shouldExclude(className, excludePatterns);
+    return myFilter.isExcluded(className);
   }
 
   @Override
   protected InclusionPattern getInclusionPattern() {
-    return includePatterns.isEmpty() ? null : new InclusionPattern() {
-      public boolean accept(String className) {
-        for (Pattern includePattern : includePatterns) {
-          if (includePattern.matcher(className).matches()) { // matching inner class name
-            return true;
-          }
-        }
-        return false;
-      }
-    };
+    return myInclusionPattern;
   }
 
   @Override
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.StringsPool;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Local endpoint which lets a test orchestrator pull coverage from a running JVM.
+ * Started when <code>idea.coverage.control.port</code> system property is set, the socket is bound to the loopback address only.
+ * <p>
+ * Every connection serves a single command, sent as a line of text, the response is written until the connection is closed:
+ * <ul>
+ *   <li><code>dump</code> - coverage collected so far in binary <code>.ic</code> format</li>
+ *   <li><code>dump-reset</code> - the same, then collected hits are reset</li>
+ *   <li><code>reset</code> - resets collected hits, responds with <code>OK</code></li>
+ *   <li><code>stats</code> - instrumentation statistics as <code>key=value</code> lines</li>
+ * </ul>
+ * Unknown commands are answered with an <code>ERROR</code> line.
+ */
+public class CoverageControlServer implements Runnable {
+  public static final String PORT_PROPERTY = "idea.coverage.control.port";
+  private static final int SOCKET_BUFFER_SIZE = 128 * 1024;
+  /**
+   * A client which connected but never sent its command must not block the server for others.
+   */
+  private static final int READ_TIMEOUT_MS = 10 * 1000;
+
+  private final ServerSocket myServerSocket;
+  private final SaveHook mySaveHook;
+  private final AbstractIntellijClassfileTransformer myTransformer;
+
+  public CoverageControlServer(int port, SaveHook saveHook, AbstractIntellijClassfileTransformer transformer) throws IOException {
+    myServerSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    mySaveHook = saveHook;
+    myTransformer = transformer;
+  }
+
+  /**
+   * Starts the server in a daemon thread if the port is configured.
+   */
+  static void startIfRequested(SaveHook saveHook, AbstractIntellijClassfileTransformer transformer) {
+    final String port = System.getProperty(PORT_PROPERTY);
+    if (port == null) return;
+    try {
+      final CoverageControlServer server = new CoverageControlServer(Integer.parseInt(port), saveHook, transformer);
+      final Thread thread = new Thread(server, "Coverage control server");
+      thread.setDaemon(true);
+      thread.start();
+      ErrorReporter.logError("Coverage control server is listening on port " + server.getPort());
+    } catch (Throwable e) {
+      ErrorReporter.reportError("Failed to start coverage control server on port " + port, e);
+    }
+  }
+
+  public int getPort() {
+    return myServerSocket.getLocalPort();
+  }
+
+  public void run() {
+    while (!myServerSocket.isClosed()) {
+      Socket socket = null;
+      try {
+        socket = myServerSocket.accept();
+        socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        serve(socket);
+      } catch (IOException e) {
+        if (!myServerSocket.isClosed()) {
+          ErrorReporter.reportError("Error in coverage control server", e);
+        }
+      } finally {
+        if (socket != null) {
+          try {
+            socket.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    myServerSocket.close();
+  }
+
+  private void serve(Socket socket) throws IOException {
+    final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+    final String command = in.readLine();
+    final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER_SIZE));
+    final ProjectData projectData = ProjectData.getProjectData();
+    if (command == null) return;
+    if ("dump".equals(command) || "dump-reset".equals(command)) {
+      if (projectData != null) {
+        mySaveHook.dump(projectData, os, "dump-reset".equals(command));
+      }
+    } else if ("reset".equals(command)) {
+      if (projectData != null) {
+        projectData.resetHits();
+      }
+      writeLine(os, "OK");
+    } else if ("stats".equals(command)) {
+      writeLine(os, "classes.transformed=" + myTransformer.getClassCount());
+      writeLine(os, "transformation.time.ms=" + myTransformer.getTransformationTime() / (1000 * 1000));
+      writeLine(os, "classes.registered=" + (projectData != null ? projectData.getClassesCollection().size() : 0));
+      final ClassHierarchyCache hierarchy = myTransformer.getHierarchyCache();
+      writeLine(os, "hierarchy.cache.size=" + hierarchy.size());
+      writeLine(os, "hierarchy.cache.hits=" + hierarchy.getHits());
+      writeLine(os, "hierarchy.cache.misses=" + hierarchy.getMisses());
+      writeLine(os, "hierarchy.cache.evictions=" + hierarchy.getEvictions());
+      final StringsPool strings = StringsPool.getInstance();
+      writeLine(os, "strings.pool.size=" + strings.size());
+      writeLine(os, "strings.pool.hits=" + strings.getHits());
+      writeLine(os, "strings.pool.misses=" + strings.getMisses());
+      writeLine(os, "strings.pool.collisions=" + strings.getCollisions());
+      writeLine(os, "strings.pool.evictions=" + strings.getEvictions());
+      writeLine(os, "strings.pool.saved.chars=" + strings.getSavedChars());
+    } else {
+      writeLine(os, "ERROR unknown command: " + command);
+    }
+    os.flush();
+  }
+
+  private static void writeLine(DataOutputStream os, String line) throws IOException {
+    os.write((line + "\n").getBytes("UTF-8"));
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+
+import java.io.File;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Saves coverage of a running application without stopping the collection, e.g. for long-running servers.
+ * <p>
+ * Dumps are requested with {@link #dump(File, boolean)} or periodically by a timer,
+ * which is started when <code>idea.coverage.dump.interval</code> system property is set to a period in milliseconds.
+ * With <code>idea.coverage.dump.reset</code> timer dumps reset collected hits and are written to numbered files
+ * next to the data file, e.g. <code>coverage-1.ic</code>, <code>coverage-2.ic</code>, and the rest of the hits
+ * is saved to the data file on exit. Otherwise every timer dump overwrites the data file.
+ */
+public class CoverageDumper {
+  private static SaveHook ourSaveHook;
+  private static File ourDataFile;
+  private static Timer ourTimer;
+  private static int ourDumpsCount;
+
+  static synchronized void init(SaveHook saveHook, File dataFile) {
+    ourSaveHook = saveHook;
+    ourDataFile = dataFile;
+    final long interval = Long.getLong("idea.coverage.dump.interval", 0);
+    if (interval > 0 && ourTimer == null) {
+      final boolean reset = System.getProperty("idea.coverage.dump.reset") != null;
+      ourTimer = new Timer("Coverage dump", true);
+      ourTimer.schedule(new TimerTask() {
+        public void run() {
+          dump(reset);
+        }
+      }, interval, interval);
+    }
+  }
+
+  /**
+   * Saves coverage collected so far into the data file,
+   * or into the next numbered file when hits are reset.
+   *
+   * @return false if coverage agent is not running
+   */
+  public static synchronized boolean dump(boolean reset) {
+    if (ourDataFile == null) return false;
+    return dump(reset ? getNumberedFile(ourDataFile, ++ourDumpsCount) : ourDataFile, reset);
+  }
+
+  /**
+   * Saves coverage collected so far into <code>file</code>, the report format is the same as on exit.
+   *
+   * @param reset whether collected hits should be reset, so that the next dump contains only new hits
+   * @return false if coverage agent is not running
+   */
+  public static synchronized boolean dump(File file, boolean reset) {
+    final ProjectData projectData = ProjectData.getProjectData();
+    if (ourSaveHook == null || projectData == null) return false;
+    ourSaveHook.dump(projectData, file, reset);
+    return true;
+  }
+
+  static File getNumberedFile(File file, int number) {
+    final String name = file.getName();
+    final int dot = name.lastIndexOf('.');
+    final String numberedName = dot > 0
+        ? name.substring(0, dot) + "-" + number + name.substring(dot)
+        : name + "-" + number;
+    return new File(file.getParentFile(), numberedName);
+  }
+}
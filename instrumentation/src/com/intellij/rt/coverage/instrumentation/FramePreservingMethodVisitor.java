@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import org.jetbrains.coverage.org.objectweb.asm.Handle;
+import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Visits a stack map frame before the label and line numbers of its offset.
+ * <p>
+ * <code>ClassReader</code> visits a label and its line numbers before the frame of the same offset,
+ * so a probe inserted on a line number would be placed between the frame and the jump target.
+ * When frames are not recomputed, the frame has to stay at the label, so the probe is moved after it.
+ * Probes must not change the type state of the method, then the original frame is valid for the probe code too.
+ */
+public class FramePreservingMethodVisitor extends MethodVisitor {
+  private final List<Object> myPending = new ArrayList<Object>();
+
+  public FramePreservingMethodVisitor(MethodVisitor mv) {
+    super(Opcodes.API_VERSION, mv);
+  }
+
+  public void visitLabel(Label label) {
+    myPending.add(label);
+  }
+
+  public void visitLineNumber(int line, Label start) {
+    myPending.add(new LineNumber(line, start));
+  }
+
+  public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+    super.visitFrame(type, nLocal, local, nStack, stack);
+    flush();
+  }
+
+  private void flush() {
+    if (myPending.isEmpty()) return;
+    for (Object event : myPending) {
+      if (event instanceof Label) {
+        super.visitLabel((Label) event);
+      } else {
+        final LineNumber lineNumber = (LineNumber) event;
+        super.visitLineNumber(lineNumber.myLine, lineNumber.myStart);
+      }
+    }
+    myPending.clear();
+  }
+
+  public void visitInsn(int opcode) {
+    flush();
+    super.visitInsn(opcode);
+  }
+
+  public void visitIntInsn(int opcode, int operand) {
+    flush();
+    super.visitIntInsn(opcode, operand);
+  }
+
+  public void visitVarInsn(int opcode, int var) {
+    flush();
+    super.visitVarInsn(opcode, var);
+  }
+
+  public void visitTypeInsn(int opcode, String type) {
+    flush();
+    super.visitTypeInsn(opcode, type);
+  }
+
+  public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+    flush();
+    super.visitFieldInsn(opcode, owner, name, descriptor);
+  }
+
+  public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+    flush();
+    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+  }
+
+  public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+    flush();
+    super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+  }
+
+  public void visitJumpInsn(int opcode, Label label) {
+    flush();
+    super.visitJumpInsn(opcode, label);
+  }
+
+  public void visitLdcInsn(Object value) {
+    flush();
+    super.visitLdcInsn(value);
+  }
+
+  public void visitIincInsn(int var, int increment) {
+    flush();
+    super.visitIincInsn(var, increment);
+  }
+
+  public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+    flush();
+    super.visitTableSwitchInsn(min, max, dflt, labels);
+  }
+
+  public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+    flush();
+    super.visitLookupSwitchInsn(dflt, keys, labels);
+  }
+
+  public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+    flush();
+    super.visitMultiANewArrayInsn(descriptor, numDimensions);
+  }
+
+  public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+    flush();
+    super.visitLocalVariable(name, descriptor, signature, start, end, index);
+  }
+
+  public void visitMaxs(int maxStack, int maxLocals) {
+    flush();
+    super.visitMaxs(maxStack, maxLocals);
+  }
+
+  public void visitEnd() {
+    flush();
+    super.visitEnd();
+  }
+
+  private static class LineNumber {
+    private final int myLine;
+    private final Label myStart;
+
+    private LineNumber(int line, Label start) {
+      myLine = line;
+      myStart = start;
+    }
+  }
+}
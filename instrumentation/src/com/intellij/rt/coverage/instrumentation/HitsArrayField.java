@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+/**
+ * Synthetic static field of an instrumented class which holds the array of hits registered in {@link ProjectData},
+ * see {@link LazyStaticField}.
+ * <p>
+ * In flags mode the array is <code>boolean[]</code> and a hit stores constant <code>true</code>
+ * instead of a read-modify-write of a counter.
+ * <p>
+ * The array belongs to the instrumented version of the class, which is identified by the id of its
+ * {@link com.intellij.rt.coverage.data.ProbeLayout}.
+ * <p>
+ * In per thread mode the field holds {@link com.intellij.rt.coverage.data.ThreadHits}
+ * and the array of the current thread is requested from it on every method call.
+ */
+public class HitsArrayField extends LazyStaticField {
+  private static final String HITS_ARRAY_TYPE = "[I";
+  private static final String FLAGS_ARRAY_TYPE = "[Z";
+  private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+
+  private final int myLayoutId;
+  private final boolean myFlags;
+  private final boolean myPerThread;
+  private final String myArrayType;
+
+  /**
+   * @param loadMethodName name of a static {@link ProjectData} method which returns hits array by class name
+   *                       and layout id or per thread hits holder
+   * @param layoutId       id of the layout of the hits array
+   * @param flags          whether the array is <code>boolean[]</code> of touched flags rather than <code>int[]</code> of hit counts
+   * @param perThread      whether every thread counts hits in its own <code>int[]</code> array
+   */
+  public HitsArrayField(String internalClassName, String className, boolean isInterface,
+                        String fieldName, String initMethodName, String loadMethodName, int layoutId,
+                        boolean flags, boolean perThread) {
+    super(internalClassName, className, isInterface, fieldName, initMethodName, loadMethodName,
+        perThread && !flags ? OBJECT_TYPE : getArrayType(flags));
+    myLayoutId = layoutId;
+    myFlags = flags;
+    myPerThread = perThread && !flags;
+    myArrayType = getArrayType(flags);
+  }
+
+  private static String getArrayType(boolean flags) {
+    return flags ? FLAGS_ARRAY_TYPE : HITS_ARRAY_TYPE;
+  }
+
+  public String getDescriptor() {
+    return myArrayType;
+  }
+
+  protected void pushLoadArguments(MethodVisitor mv) {
+    mv.visitLdcInsn(myLayoutId);
+  }
+
+  protected String getLoadArgumentsDescriptor() {
+    return "I";
+  }
+
+  /**
+   * Pushes the hits array on the stack.
+   */
+  public void load(MethodVisitor mv) {
+    super.load(mv);
+    if (myPerThread) {
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "getThreadHits", "(" + OBJECT_TYPE + ")" + myArrayType, false);
+    }
+  }
+
+  /**
+   * Increments <code>array[index]</code> or sets it to <code>true</code> in flags mode,
+   * the array is expected in the local variable.
+   */
+  public void touch(MethodVisitor mv, int arrayVariable, int index) {
+    mv.visitVarInsn(Opcodes.ALOAD, arrayVariable);
+    pushInt(mv, index);
+    if (myFlags) {
+      mv.visitInsn(Opcodes.ICONST_1);
+      mv.visitInsn(Opcodes.BASTORE);
+      return;
+    }
+    mv.visitInsn(Opcodes.DUP2);
+    mv.visitInsn(Opcodes.IALOAD);
+    mv.visitInsn(Opcodes.ICONST_1);
+    mv.visitInsn(Opcodes.IADD);
+    mv.visitInsn(Opcodes.IASTORE);
+  }
+
+  private static void pushInt(MethodVisitor mv, int value) {
+    if (value <= Short.MAX_VALUE) {
+      mv.visitIntInsn(Opcodes.SIPUSH, value);
+    } else {
+      mv.visitLdcInsn(value);
+    }
+  }
+}
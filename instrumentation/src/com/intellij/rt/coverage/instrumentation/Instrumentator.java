@@ -125,14 +125,20 @@ public class Instrumentator {
     }
 
     final ClassFinder cf = new ClassFinder(includePatterns, excludePatterns);
+    final SaveHook hook = new SaveHook(dataFile, calcUnloaded, cf, reportFormat);
+    hook.setSourceMapFile(sourceMapFile);
+    if (calcUnloaded && System.getProperty("idea.coverage.calc.unloaded.background") != null) {
+      hook.startUnloadedAnalysis(data);
+    }
     if (dataFile != null) {
-      final SaveHook hook = new SaveHook(dataFile, calcUnloaded, cf, reportFormat);
-      hook.setSourceMapFile(sourceMapFile);
       Runtime.getRuntime().addShutdownHook(new Thread(hook));
+      CoverageDumper.init(hook, dataFile);
     }
 
     final boolean shouldCalculateSource = sourceMapFile != null || reportFormat == ReportFormat.XML;
-    instrumentation.addTransformer(new CoverageClassfileTransformer(data, shouldCalculateSource, excludePatterns, includePatterns, cf));
+    final CoverageClassfileTransformer transformer = new CoverageClassfileTransformer(data, shouldCalculateSource, excludePatterns, includePatterns, cf);
+    instrumentation.addTransformer(transformer);
+    CoverageControlServer.startIfRequested(hook, transformer);
   }
 
   /**
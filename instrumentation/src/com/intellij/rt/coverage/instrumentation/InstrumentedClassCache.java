@@ -0,0 +1,256 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassRegistration;
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import java.io.*;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of instrumented classes, so that unchanged classes are not instrumented again in the next run.
+ * Enabled with <code>idea.coverage.cache.dir</code> system property, the cache size is limited by
+ * <code>idea.coverage.cache.size</code> in megabytes, 256 by default.
+ * <p>
+ * An entry is keyed by hash of the original class bytes, the agent version and the instrumentation options.
+ * It stores the instrumented bytes together with the {@link ClassRegistration} of the class,
+ * entries are written to a temporary file and renamed, so a partially written entry is never read.
+ * When the cache grows over the limit, least recently used entries are removed.
+ */
+public class InstrumentedClassCache {
+  public static final String CACHE_DIR_PROPERTY = "idea.coverage.cache.dir";
+  public static final String CACHE_SIZE_PROPERTY = "idea.coverage.cache.size";
+  private static final String ENTRY_EXTENSION = ".cls";
+  private static final int FORMAT_VERSION = 5;
+  private static final long DEFAULT_SIZE_MB = 256;
+
+  private final File myDirectory;
+  private final long myMaxSize;
+  private final String myOptions;
+  private long mySize = -1;
+  private volatile int myHits;
+  private volatile int myMisses;
+
+  /**
+   * @param options instrumentation options which affect the instrumented bytes
+   */
+  public InstrumentedClassCache(File directory, long maxSize, String options) {
+    myDirectory = directory;
+    myMaxSize = maxSize;
+    myOptions = getAgentVersion() + ";" + options;
+  }
+
+  static InstrumentedClassCache createIfRequested(String options) {
+    final String dir = System.getProperty(CACHE_DIR_PROPERTY);
+    if (dir == null) return null;
+    final File directory = new File(dir);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      ErrorReporter.reportError("Failed to create instrumented classes cache directory " + directory.getPath());
+      return null;
+    }
+    final long maxSize = Long.getLong(CACHE_SIZE_PROPERTY, DEFAULT_SIZE_MB) * 1024 * 1024;
+    return new InstrumentedClassCache(directory, maxSize, options);
+  }
+
+  public String getKey(String className, byte[] classBytes) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(myOptions.getBytes("UTF-8"));
+      digest.update(className.getBytes("UTF-8"));
+      digest.update(classBytes);
+      final byte[] hash = digest.digest();
+      final StringBuilder result = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return instrumented bytes of the class with its registration or null if the class is not cached
+   */
+  public Entry get(String key, String className) {
+    final File file = getFile(key);
+    if (!file.isFile()) {
+      myMisses++;
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != FORMAT_VERSION) throw new IOException("Unknown format version");
+      final ClassRegistration registration = ClassRegistration.load(in, className);
+      final byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      file.setLastModified(System.currentTimeMillis());
+      myHits++;
+      return new Entry(bytes, registration);
+    } catch (IOException e) {
+      file.delete();
+      myMisses++;
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  public void put(String key, byte[] bytes, ClassRegistration registration) {
+    final File file = getFile(key);
+    final File tempFile = new File(myDirectory, key + "." + Thread.currentThread().getId() + ".tmp");
+    DataOutputStream os = null;
+    try {
+      os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      os.writeInt(FORMAT_VERSION);
+      registration.save(os);
+      os.writeInt(bytes.length);
+      os.write(bytes);
+      os.close();
+      os = null;
+      if (!tempFile.renameTo(file)) {
+        tempFile.delete();
+        return;
+      }
+      added(file.length());
+    } catch (IOException e) {
+      ErrorReporter.reportError("Failed to write instrumented classes cache entry " + file.getPath(), e);
+      tempFile.delete();
+    } finally {
+      close(os);
+    }
+  }
+
+  public int getHits() {
+    return myHits;
+  }
+
+  public int getMisses() {
+    return myMisses;
+  }
+
+  private File getFile(String key) {
+    return new File(myDirectory, key + ENTRY_EXTENSION);
+  }
+
+  private synchronized void added(long length) {
+    if (mySize < 0) {
+      mySize = 0;
+      for (File entry : listEntries()) {
+        mySize += entry.length();
+      }
+    } else {
+      mySize += length;
+    }
+    if (mySize > myMaxSize) {
+      evict();
+    }
+  }
+
+  /**
+   * Removes least recently used entries until the cache is reduced to 3/4 of the limit.
+   */
+  private void evict() {
+    final File[] entries = listEntries();
+    final long[] lastModified = new long[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      lastModified[i] = entries[i].lastModified();
+    }
+    final Integer[] order = new Integer[entries.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        final long t1 = lastModified[o1];
+        final long t2 = lastModified[o2];
+        return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+      }
+    });
+    final long targetSize = myMaxSize / 4 * 3;
+    for (int i = 0; i < order.length && mySize > targetSize; i++) {
+      final File entry = entries[order[i]];
+      final long length = entry.length();
+      if (entry.delete()) {
+        mySize -= length;
+      }
+    }
+  }
+
+  private File[] listEntries() {
+    final File[] files = myDirectory.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.getName().endsWith(ENTRY_EXTENSION);
+      }
+    });
+    return files != null ? files : new File[0];
+  }
+
+  /**
+   * Size and modification time of the agent jar, so that the cache is not used by another agent build.
+   */
+  static String getAgentVersion() {
+    try {
+      // the agent is usually loaded by the bootstrap class loader, which has no code source
+      final URL url = InstrumentedClassCache.class.getResource(InstrumentedClassCache.class.getSimpleName() + ".class");
+      if (url != null && "jar".equals(url.getProtocol())) {
+        final String path = url.getPath();
+        final int separator = path.indexOf("!/");
+        final File file = new File(new URL(separator >= 0 ? path.substring(0, separator) : path).toURI());
+        if (file.isFile()) {
+          return file.length() + "-" + file.lastModified();
+        }
+      }
+    } catch (Throwable ignored) {
+    }
+    return "dev";
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable == null) return;
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  public static class Entry {
+    private final byte[] myBytes;
+    private final ClassRegistration myRegistration;
+
+    Entry(byte[] bytes, ClassRegistration registration) {
+      myBytes = bytes;
+      myRegistration = registration;
+    }
+
+    public byte[] getBytes() {
+      return myBytes;
+    }
+
+    public ClassRegistration getRegistration() {
+      return myRegistration;
+    }
+  }
+}
@@ -17,7 +17,10 @@
 package com.intellij.rt.coverage.instrumentation;
 
 import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ClassRegistration;
+import com.intellij.rt.coverage.data.FileMapData;
 import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProbeLayout;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.instrumentation.filters.signature.MethodSignatureFilter;
 import com.intellij.rt.coverage.instrumentation.filters.visiting.MethodVisitingFilter;
@@ -33,6 +36,8 @@ import java.util.*;
 
 public abstract class Instrumenter extends ClassVisitor {
   private static final List<MethodSignatureFilter> ourSignatureFilters = getMethodSignatureFilters();
+  private static final String CLASS_DATA_FIELD_NAME = "__$classData$__";
+  private static final String CLASS_DATA_INIT_METHOD_NAME = "__$initClassData$__";
 
   protected final ProjectData myProjectData;
   protected final ClassVisitor myClassVisitor;
@@ -40,7 +45,6 @@ public abstract class Instrumenter extends ClassVisitor {
   private final boolean myShouldCalculateSource;
 
   protected TIntObjectHashMap<LineData> myLines = new TIntObjectHashMap<LineData>(4, 0.99f);
-  protected int myMaxLineNumber;
 
   protected ClassData myClassData;
   protected boolean myProcess;
@@ -48,6 +52,12 @@ public abstract class Instrumenter extends ClassVisitor {
   private boolean myHasInterfaces = false;
   private final List<String> myAnnotations = new ArrayList<String>();
   private HashMap<String, Object> myProperties;
+  private String mySource;
+  private FileMapData[] myLineMaps;
+  private String myOuterClassName;
+  private LineData[] myRegisteredLines;
+  private LazyStaticField myClassDataField;
+  private boolean myClassDataLoaded;
 
   public Instrumenter(final ProjectData projectData, ClassVisitor classVisitor, String className, boolean shouldCalculateSource) {
     super(Opcodes.API_VERSION, classVisitor);
@@ -62,6 +72,8 @@ public abstract class Instrumenter extends ClassVisitor {
     myProcess = (access & Opcodes.ACC_INTERFACE) == 0;
     myClassData = myProjectData.getOrCreateClassData(StringsPool.getFromPool(myClassName));
     myHasInterfaces = interfaces != null && interfaces.length > 0;
+    myClassDataField = new LazyStaticField(name, myClassName, (access & Opcodes.ACC_INTERFACE) != 0,
+        CLASS_DATA_FIELD_NAME, CLASS_DATA_INIT_METHOD_NAME, "loadClassData", "Ljava/lang/Object;");
     super.visit(version, access, name, signature, superName, interfaces);
   }
 
@@ -112,11 +124,46 @@ public abstract class Instrumenter extends ClassVisitor {
       initLineData();
       myLines = null;
     }
+    if (myClassDataLoaded) {
+      myClassDataField.generateMembers(cv);
+    }
     super.visitEnd();
   }
 
+  /**
+   * Pushes the coverage data of the class on the stack. It is kept in a synthetic static field,
+   * so that a method call does not look it up in {@link ProjectData} by class name.
+   */
+  protected void loadClassData(MethodVisitor mv) {
+    myClassDataLoaded = true;
+    myClassDataField.load(mv);
+  }
+
   protected abstract void initLineData();
 
+  /**
+   * Registers lines of the instrumented class in its coverage data.
+   *
+   * @param lines lines sorted by line number, see {@link com.intellij.rt.coverage.util.LinesUtil#calcSortedLines(TIntObjectHashMap)}
+   */
+  protected void setLines(LineData[] lines) {
+    myClassData.setSortedLines(lines);
+    myRegisteredLines = lines;
+  }
+
+  protected ProbeLayout getProbeLayout() {
+    return null;
+  }
+
+  /**
+   * Changes made to the project data by this instrumentation, which let to register the class again without instrumenting it,
+   * should be called after the class is visited.
+   */
+  public ClassRegistration getRegistration() {
+    return new ClassRegistration(myClassName, mySource, myLineMaps, myOuterClassName,
+        myRegisteredLines, getProbeLayout());
+  }
+
   protected void getOrCreateLineData(int line, String name, String desc) {
     //create lines again if class was loaded again by another class loader; may be myLinesArray should be cleared
     if (myLines == null) myLines = new TIntObjectHashMap<LineData>();
@@ -125,7 +172,6 @@ public abstract class Instrumenter extends ClassVisitor {
       lineData = new LineData(line, StringsPool.getFromPool(name + desc));
       myLines.put(line, lineData);
     }
-    if (line > myMaxLineNumber) myMaxLineNumber = line;
   }
 
   public void removeLine(final int line) {
@@ -136,9 +182,11 @@ public abstract class Instrumenter extends ClassVisitor {
     super.visitSource(source, debug);
     if (myShouldCalculateSource) {
       myProjectData.getOrCreateClassData(myClassName).setSource(source);
+      mySource = source;
     }
     if (debug != null) {
-      myProjectData.addLineMaps(myClassName, JSR45Util.extractLineMapping(debug, myClassName));
+      myLineMaps = JSR45Util.extractLineMapping(debug, myClassName);
+      myProjectData.addLineMaps(myClassName, myLineMaps);
     }
   }
 
@@ -149,6 +197,7 @@ public abstract class Instrumenter extends ClassVisitor {
   public void visitOuterClass(String outerClassName, String methodName, String methodSig) {
     if (myShouldCalculateSource) {
       myProjectData.getOrCreateClassData(outerClassName).setSource(myClassData.getSource());
+      myOuterClassName = outerClassName;
     }
     super.visitOuterClass(outerClassName, methodName, methodSig);
   }
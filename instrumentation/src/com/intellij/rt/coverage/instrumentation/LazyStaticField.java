@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+/**
+ * Synthetic static field of an instrumented class which holds an object requested from {@link ProjectData} by class name.
+ * <p>
+ * Instrumented method may be called before static initializer, so the field is initialized lazily by generated method
+ * <pre>
+ * <code>
+ *   private static Type initMethodName() {
+ *     if (fieldName == null) {
+ *       fieldName = ProjectData.loadMethodName(className, ...);
+ *     }
+ *     return fieldName;
+ *   }
+ * </code>
+ * </pre>
+ * Interfaces cannot have non-final fields, so the object is requested from {@link ProjectData} on every method call there.
+ */
+public class LazyStaticField {
+  private final String myInternalClassName;
+  private final String myClassName;
+  private final boolean myInterface;
+  private final String myFieldName;
+  private final String myInitMethodName;
+  private final String myLoadMethodName;
+  private final String myFieldType;
+
+  /**
+   * @param loadMethodName name of a static {@link ProjectData} method which returns the object by class name
+   * @param fieldType      descriptor of the field, which is also the return type of the load method
+   */
+  public LazyStaticField(String internalClassName, String className, boolean isInterface,
+                         String fieldName, String initMethodName, String loadMethodName, String fieldType) {
+    myInternalClassName = internalClassName;
+    myClassName = className;
+    myInterface = isInterface;
+    myFieldName = fieldName;
+    myInitMethodName = initMethodName;
+    myLoadMethodName = loadMethodName;
+    myFieldType = fieldType;
+  }
+
+  public String getDescriptor() {
+    return myFieldType;
+  }
+
+  /**
+   * Pushes the value of the field on the stack.
+   */
+  public void load(MethodVisitor mv) {
+    if (myInterface) {
+      loadFromProjectData(mv);
+    } else {
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, myInternalClassName, myInitMethodName, "()" + myFieldType, false);
+    }
+  }
+
+  private void loadFromProjectData(MethodVisitor mv) {
+    mv.visitLdcInsn(myClassName);
+    pushLoadArguments(mv);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, myLoadMethodName,
+        "(Ljava/lang/String;" + getLoadArgumentsDescriptor() + ")" + myFieldType, false);
+  }
+
+  /**
+   * Pushes arguments of the load method which follow the class name, a single stack slot at most.
+   */
+  protected void pushLoadArguments(MethodVisitor mv) {
+  }
+
+  /**
+   * @return descriptors of the arguments pushed by {@link #pushLoadArguments(MethodVisitor)}
+   */
+  protected String getLoadArgumentsDescriptor() {
+    return "";
+  }
+
+  /**
+   * Adds the field and its initializer to the class, should be called with the class writer visitor
+   * so that generated code is not instrumented.
+   */
+  public void generateMembers(ClassVisitor cv) {
+    if (myInterface) return;
+    final int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+    cv.visitField(access | Opcodes.ACC_TRANSIENT, myFieldName, myFieldType, null, null);
+
+    final MethodVisitor mv = cv.visitMethod(access, myInitMethodName, "()" + myFieldType, null, null);
+    mv.visitCode();
+    mv.visitFieldInsn(Opcodes.GETSTATIC, myInternalClassName, myFieldName, myFieldType);
+    final Label initialized = new Label();
+    mv.visitJumpInsn(Opcodes.IFNONNULL, initialized);
+    loadFromProjectData(mv);
+    mv.visitFieldInsn(Opcodes.PUTSTATIC, myInternalClassName, myFieldName, myFieldType);
+    mv.visitLabel(initialized);
+    // frames of the instrumented class may be kept rather than recomputed, so the jump target needs its own,
+    // an expanded frame is accepted for any class version
+    mv.visitFrame(Opcodes.F_NEW, 0, new Object[0], 0, new Object[0]);
+    mv.visitFieldInsn(Opcodes.GETSTATIC, myInternalClassName, myFieldName, myFieldType);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(2, 0);
+    mv.visitEnd();
+  }
+}
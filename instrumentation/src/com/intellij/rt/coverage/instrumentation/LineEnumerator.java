@@ -71,20 +71,28 @@ public class LineEnumerator extends MethodVisitor implements Opcodes {
                         final String desc,
                         final String signature,
                         final String[] exceptions) {
-    super(Opcodes.API_VERSION, new SaveLabelsMethodNode(access, name, desc, signature, exceptions));
+    super(Opcodes.API_VERSION);
 
-    myMethodNode = (MethodNode) super.mv;
     myClassInstrumenter = classInstrumenter;
     myWriterMethodVisitor = mv;
     myAccess = access;
     myMethodName = name;
     mySignature = desc;
+    if (classInstrumenter.isStreaming()) {
+      myMethodNode = null;
+      this.mv = classInstrumenter.createTouchCounter(this, access, desc);
+    } else {
+      myMethodNode = new SaveLabelsMethodNode(access, name, desc, signature, exceptions);
+      this.mv = myMethodNode;
+    }
   }
 
 
   public void visitEnd() {
     super.visitEnd();
-    myMethodNode.accept(!myHasExecutableLines ? myWriterMethodVisitor : new TouchCounter(this, myAccess, mySignature));
+    if (myMethodNode != null) {
+      myMethodNode.accept(!myHasExecutableLines ? myWriterMethodVisitor : myClassInstrumenter.createTouchCounter(this, myAccess, mySignature));
+    }
   }
 
 
@@ -164,13 +172,15 @@ public class LineEnumerator extends MethodVisitor implements Opcodes {
 
   /** Insert new labels before switch in order to let every branch have it's own label without fallthrough. */
   private SwitchLabels replaceLabels(SwitchLabels original) {
-    Label beforeSwitchLabel = new Label();
     Label newDefaultLabel = new Label();
     Label[] newLabels = new Label[original.getLabels().length];
     for (int i = 0; i < original.getLabels().length; i++) {
       newLabels[i] = new Label();
     }
+    // probes are inserted at the new labels when they are visited, so they must be known before
+    rememberSwitchLabels(newDefaultLabel, newLabels);
 
+    Label beforeSwitchLabel = new Label();
     super.visitJumpInsn(Opcodes.GOTO, beforeSwitchLabel);
 
     for (int i = 0; i < newLabels.length; i++) {
@@ -195,7 +205,6 @@ public class LineEnumerator extends MethodVisitor implements Opcodes {
     final LineData lineData = myClassInstrumenter.getLineData(myCurrentLine);
     if (lineData != null) {
       switchLabels = replaceLabels(switchLabels);
-      rememberSwitchLabels(switchLabels.getDefault(), switchLabels.getLabels());
       lineData.addSwitch(myCurrentSwitch++, keys);
     }
     super.visitLookupSwitchInsn(switchLabels.getDefault(), keys, switchLabels.getLabels());
@@ -212,7 +221,6 @@ public class LineEnumerator extends MethodVisitor implements Opcodes {
     final LineData lineData = myClassInstrumenter.getLineData(myCurrentLine);
     if (lineData != null) {
       switchLabels = replaceLabels(switchLabels);
-      rememberSwitchLabels(switchLabels.getDefault(), switchLabels.getLabels());
       SwitchData switchData = lineData.addSwitch(myCurrentSwitch++, min, max);
       mySwitchLabels.put(dflt, switchData);
     }
@@ -314,7 +322,9 @@ public class LineEnumerator extends MethodVisitor implements Opcodes {
   public void removeLastJump() {
     final LineData lineData = myClassInstrumenter.getLineData(myCurrentLine);
     if (lineData != null && myLastFalseJump != null) {
-      lineData.removeJump(lineData.jumpsCount() - 1);
+      final int jump = lineData.jumpsCount() - 1;
+      lineData.removeJump(jump);
+      myClassInstrumenter.jumpRemoved(myCurrentLine, jump);
       myJumps.remove(myLastFalseJump);
       myJumps.remove(myLastTrueJump);
       myLastTrueJump = null;
@@ -333,6 +343,7 @@ public class LineEnumerator extends MethodVisitor implements Opcodes {
     final LineData lineData = myClassInstrumenter.getLineData(myCurrentLine);
     if (lineData != null) {
       lineData.removeSwitch(--myCurrentSwitch);
+      myClassInstrumenter.switchRemoved(myCurrentLine, myCurrentSwitch);
     }
   }
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProbeLayout;
+import com.intellij.rt.coverage.data.ProjectData;
+import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
+import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+/**
+ * Tracing instrumenter which counts hits of lines, jumps and switches in a static <code>int[]</code> array
+ * instead of calling {@link ProjectData} on every hit.
+ * Slots of the array are described by {@link ProbeLayout}, hits are moved into the coverage data on save.
+ * With <code>hitFlags</code> slots are only marked as touched in a <code>boolean[]</code> array,
+ * with <code>threadHits</code> every thread counts hits in its own array.
+ * <p>
+ * Methods are instrumented in a single pass: a jump or a switch removed by a filter after its probes are inserted
+ * keeps its slots, which are detached from the coverage data in the layout.
+ */
+public class NewTracingInstrumenter extends ClassInstrumenter {
+  private static final String HITS_FIELD_NAME = "__$hits$__";
+  private static final String HITS_INIT_METHOD_NAME = "__$initHits$__";
+
+  private final ProbeLayout myProbeLayout;
+  private final TIntIntHashMap myLineSlots = new TIntIntHashMap();
+  private final boolean myHitFlags;
+  private final boolean myThreadHits;
+  private HitsArrayField myHitsField;
+  private boolean myHasProbes;
+
+  public NewTracingInstrumenter(final ProjectData projectData, ClassVisitor classVisitor, String className,
+                                boolean shouldCalculateSource, int layoutId, boolean hitFlags, boolean threadHits) {
+    super(projectData, classVisitor, className, shouldCalculateSource);
+    myProbeLayout = new ProbeLayout(layoutId);
+    myHitFlags = hitFlags;
+    myThreadHits = threadHits;
+  }
+
+  public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+    myHitsField = new HitsArrayField(name, getClassName(), (access & Opcodes.ACC_INTERFACE) != 0,
+        HITS_FIELD_NAME, HITS_INIT_METHOD_NAME, getLoadMethodName(), myProbeLayout.getId(), myHitFlags, myThreadHits);
+    super.visit(version, access, name, signature, superName, interfaces);
+  }
+
+  private String getLoadMethodName() {
+    if (myHitFlags) return "loadHitFlags";
+    if (myThreadHits) return "loadThreadHits";
+    return "loadHits";
+  }
+
+  protected TouchCounter createTouchCounter(LineEnumerator enumerator, int access, String desc) {
+    myHasProbes = true;
+    return new ProbeTouchCounter(enumerator, access, desc);
+  }
+
+  protected boolean isStreaming() {
+    return true;
+  }
+
+  protected void jumpRemoved(int line, int jump) {
+    myProbeLayout.removeJump(line, jump);
+  }
+
+  protected void switchRemoved(int line, int switchNumber) {
+    myProbeLayout.removeSwitch(line, switchNumber);
+  }
+
+  protected void initLineData() {
+    super.initLineData();
+    myClassData.setProbeLayout(myProbeLayout);
+  }
+
+  protected ProbeLayout getProbeLayout() {
+    return myProbeLayout;
+  }
+
+  public void visitEnd() {
+    if (myHasProbes) {
+      myHitsField.generateMembers(cv);
+    }
+    super.visitEnd();
+  }
+
+  private int getLineSlot(int line) {
+    if (myLineSlots.containsKey(line)) {
+      return myLineSlots.get(line);
+    }
+    final int slot = myProbeLayout.addLine(line);
+    myLineSlots.put(line, slot);
+    return slot;
+  }
+
+  private class ProbeTouchCounter extends TouchCounter {
+    public ProbeTouchCounter(LineEnumerator enumerator, int access, String desc) {
+      super(enumerator, access, desc);
+    }
+
+    protected void loadClassData() {
+      myHitsField.load(mv);
+      mv.visitVarInsn(Opcodes.ASTORE, getCurrentClassDataNumber());
+    }
+
+    protected String getClassDataDescriptor() {
+      return myHitsField.getDescriptor();
+    }
+
+    protected void touchLine(int line) {
+      myHitsField.touch(mv, getCurrentClassDataNumber(), getLineSlot(line));
+    }
+
+    protected void touchBranch(boolean trueHit, int jumpIndex, int line) {
+      // see TouchCounter: the jump label is counted as a false hit, the fall through label as a true hit
+      myHitsField.touch(mv, getCurrentClassDataNumber(), myProbeLayout.addJump(line, jumpIndex, !trueHit));
+    }
+
+    protected void touchSwitch(LineEnumerator.Switch aSwitch) {
+      final int slot = myProbeLayout.addSwitch(aSwitch.getLine(), aSwitch.getIndex(), aSwitch.getKey());
+      myHitsField.touch(mv, getCurrentClassDataNumber(), slot);
+    }
+  }
+}
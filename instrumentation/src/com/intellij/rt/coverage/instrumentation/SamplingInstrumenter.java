@@ -16,7 +16,6 @@
 
 package com.intellij.rt.coverage.instrumentation;
 
-import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.util.LinesUtil;
 import org.jetbrains.coverage.org.objectweb.asm.*;
@@ -35,7 +34,7 @@ public class SamplingInstrumenter extends Instrumenter {
                                                      final int access,
                                                      final String signature,
                                                      final String[] exceptions) {
-    return new LocalVariablesSorter(Opcodes.API_VERSION, access, desc, mv) {
+    return new FramePreservingMethodVisitor(new LocalVariablesSorter(Opcodes.API_VERSION, access, desc, mv) {
       private Label myStartLabel;
       private Label myEndLabel;
       private int myClassDataIndex;
@@ -62,8 +61,7 @@ public class SamplingInstrumenter extends Instrumenter {
       }
 
       public void visitCode() {
-        mv.visitLdcInsn(getClassName());
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "loadClassData", "(Ljava/lang/String;)" + OBJECT_TYPE, false);
+        loadClassData(mv);
         myClassDataIndex = newLocal(Type.getType(OBJECT_TYPE));
         mv.visitVarInsn(Opcodes.ASTORE, myClassDataIndex);
         super.visitCode();
@@ -75,12 +73,10 @@ public class SamplingInstrumenter extends Instrumenter {
         }
         super.visitMaxs(maxStack, maxLocals);
       }
-    };
+    });
   }
 
   protected void initLineData() {
-    final LineData[] lines = LinesUtil.calcLineArray(myMaxLineNumber, myLines);
-    myClassData.initLineMask(lines);
-    myClassData.setLines(lines);
+    setLines(LinesUtil.calcSortedLines(myLines));
   }
 }
@@ -21,12 +21,9 @@ import com.intellij.rt.coverage.data.LineCoverage;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.util.*;
-import com.intellij.rt.coverage.util.classFinder.ClassEntry;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 import org.jetbrains.coverage.gnu.trove.TIntObjectProcedure;
-import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
-import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
@@ -46,6 +43,7 @@ public class SaveHook implements Runnable {
     private final boolean myAppendUnloaded;
     private final ClassFinder myClassFinder;
     private final ReportFormat myFormat;
+    private UnloadedClassesAnalyzer myUnloadedAnalyzer;
 
     public SaveHook(File dataFile, boolean appendUnloaded, ClassFinder classFinder) {
         this(dataFile, appendUnloaded, classFinder, ReportFormat.BINARY);
@@ -62,39 +60,31 @@ public class SaveHook implements Runnable {
         save(ProjectData.getProjectData());
     }
 
-    public void save(ProjectData projectData) {
+    public synchronized void save(ProjectData projectData) {
         projectData.stop();
         try {
-            if (myAppendUnloaded) {
-                appendUnloaded(projectData);
-            }
-
-            DataOutputStream os = null;
-            try {
-                if (myFormat == ReportFormat.XML) {
-                    reportXML(projectData);
-                    return;
-                }
-
-                os = CoverageIOUtil.openFile(myDataFile);
-                projectData.checkLineMappings();
-                final TObjectIntHashMap<String> dict = new TObjectIntHashMap<String>();
-                final Map<String, ClassData> classes = new HashMap<String, ClassData>(projectData.getClasses());
-                CoverageIOUtil.writeINT(os, classes.size());
-                saveDictionary(os, dict, classes);
-                saveData(os, dict, classes);
+            projectData.applyHits();
+            write(projectData, myDataFile);
+        } catch (OutOfMemoryError e) {
+            ErrorReporter.reportError("Out of memory error occurred, try to increase memory available for the JVM, or make include / exclude patterns more specific", e);
+        } catch (Throwable e) {
+            ErrorReporter.reportError("Unexpected error", e);
+        }
+    }
 
-                saveSourceMap(classes, mySourceMapFile);
-            } catch (IOException e) {
-                ErrorReporter.reportError("Error writing file " + myDataFile.getPath(), e);
-            } finally {
-                try {
-                    if (os != null) {
-                        os.close();
-                    }
-                } catch (IOException e) {
-                    ErrorReporter.reportError("Error writing file " + myDataFile.getPath(), e);
-                }
+    /**
+     * Saves coverage collected so far without stopping the collection.
+     * The report is written to a temporary file first, so <code>file</code> always contains a complete report.
+     *
+     * @param reset whether collected hits should be reset, so that the next dump contains only new hits
+     */
+    public synchronized void dump(ProjectData projectData, File file, boolean reset) {
+        try {
+            final ProjectData snapshot = projectData.createSnapshot(reset);
+            final File tempFile = new File(file.getPath() + ".tmp");
+            if (!write(snapshot, tempFile)) return;
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                ErrorReporter.reportError("Error writing file " + file.getPath());
             }
         } catch (OutOfMemoryError e) {
             ErrorReporter.reportError("Out of memory error occurred, try to increase memory available for the JVM, or make include / exclude patterns more specific", e);
@@ -103,12 +93,66 @@ public class SaveHook implements Runnable {
         }
     }
 
-    private void reportXML(ProjectData projectData) throws IOException {
+    /**
+     * Writes coverage collected so far to <code>os</code> in binary format without stopping the collection.
+     *
+     * @param reset whether collected hits should be reset, so that the next dump contains only new hits
+     */
+    public synchronized void dump(ProjectData projectData, DataOutputStream os, boolean reset) throws IOException {
+        final ProjectData snapshot = projectData.createSnapshot(reset);
+        if (myAppendUnloaded) {
+            appendUnloaded(snapshot);
+        }
+        snapshot.checkLineMappings();
+        ProjectDataWriter.write(os, snapshot);
+    }
+
+    private boolean write(ProjectData projectData, File dataFile) {
+        if (myAppendUnloaded) {
+            appendUnloaded(projectData);
+        }
+
+        DataOutputStream os = null;
+        try {
+            if (myFormat == ReportFormat.XML) {
+                reportXML(projectData, dataFile);
+                return true;
+            }
+
+            os = CoverageIOUtil.openFile(dataFile);
+            projectData.checkLineMappings();
+            if (System.getProperty("idea.coverage.indexed.report") != null) {
+                ProjectDataWriter.writeIndexed(os, projectData);
+            } else if (System.getProperty("idea.coverage.compressed.report") != null) {
+                ProjectDataWriter.writeCompressed(os, projectData);
+            } else {
+                ProjectDataWriter.write(os, projectData);
+            }
+
+            if (mySourceMapFile != null) {
+                saveSourceMap(projectData.getClasses(), mySourceMapFile);
+            }
+            return true;
+        } catch (IOException e) {
+            ErrorReporter.reportError("Error writing file " + dataFile.getPath(), e);
+            return false;
+        } finally {
+            try {
+                if (os != null) {
+                    os.close();
+                }
+            } catch (IOException e) {
+                ErrorReporter.reportError("Error writing file " + dataFile.getPath(), e);
+            }
+        }
+    }
+
+    private void reportXML(ProjectData projectData, File dataFile) throws IOException {
         try {
             Class<?> xmlReportClass = Class.forName("com.intellij.rt.coverage.util.XMLCoverageReport");
             Object xmlReport = xmlReportClass.getConstructor().newInstance();
             Method writeMethod = xmlReportClass.getMethod("write", FileOutputStream.class, ProjectData.class);
-            writeMethod.invoke(xmlReport, new FileOutputStream(myDataFile), projectData);
+            writeMethod.invoke(xmlReport, new FileOutputStream(dataFile), projectData);
         } catch (InvocationTargetException e) {
             if (e.getCause() instanceof IOException) {
                 throw (IOException) e.getCause();
@@ -161,25 +205,6 @@ public class SaveHook implements Runnable {
         } finally { if (in != null) in.close(); }
     }
 
-    private static void saveData(DataOutputStream os, final TObjectIntHashMap<String> dict, Map classes) throws IOException {
-      for (Object o : classes.values()) {
-        ((ClassData) o).save(os, new DictionaryLookup() {
-          public int getDictionaryIndex(String className) {
-            return dict.containsKey(className) ? dict.get(className) : -1;
-          }
-        });
-      }
-    }
-
-    private static void saveDictionary(DataOutputStream os, TObjectIntHashMap<String> dict, Map classes) throws IOException {
-        int i = 0;
-      for (Object o : classes.keySet()) {
-        String className = (String) o;
-        dict.put(className, i++);
-        CoverageIOUtil.writeUTF(os, className);
-      }
-    }
-
     public static void doSaveSourceMap(Map<Object, Object> str_str_readNames, File sourceMapFile, Map str_clData_classes) throws IOException {
         HashMap<Object, Object> str_str_merged_map = new HashMap<Object, Object>(str_str_readNames);
       for (Object o1 : str_clData_classes.values()) {
@@ -204,39 +229,55 @@ public class SaveHook implements Runnable {
         }
     }
 
+    /**
+     * Starts searching for unloaded classes in the background, so that less work is left for save.
+     */
+    public synchronized void startUnloadedAnalysis(ProjectData projectData) {
+        if (myAppendUnloaded) {
+            getUnloadedAnalyzer(projectData).startInBackground(projectData);
+        }
+    }
+
+    private UnloadedClassesAnalyzer getUnloadedAnalyzer(ProjectData projectData) {
+        if (myUnloadedAnalyzer == null) {
+            myUnloadedAnalyzer = new UnloadedClassesAnalyzer(myClassFinder, !projectData.isSampling());
+        }
+        return myUnloadedAnalyzer;
+    }
+
     private void appendUnloaded(final ProjectData projectData) {
-      Collection<ClassEntry> matchedClasses = myClassFinder.findMatchedClasses();
+      final Collection<UnloadedClassesAnalyzer.Result> results;
+      try {
+        results = getUnloadedAnalyzer(projectData).analyze(projectData);
+      } catch (InterruptedException e) {
+        ErrorReporter.reportError("Unloaded classes analysis was interrupted", e);
+        return;
+      }
 
-      for (Object matchedClass : matchedClasses) {
-        ClassEntry classEntry = (ClassEntry) matchedClass;
-        ClassData cd = projectData.getClassData(classEntry.getClassName());
-        if (cd != null) continue;
-        try {
-          ClassReader reader = new ClassReader(classEntry.getClassInputStream());
-          if (mySourceMapFile != null) {
-            cd = projectData.getOrCreateClassData(classEntry.getClassName());
+      for (UnloadedClassesAnalyzer.Result result : results) {
+        if (projectData.getClassData(result.getClassName()) != null) continue;
+        if (mySourceMapFile != null) {
+          final ClassData cd = projectData.getOrCreateClassData(result.getClassName());
+          if (result.getSource() != null) {
+            cd.setSource(result.getSource());
           }
-          SourceLineCounter slc = new SourceLineCounter(cd, !projectData.isSampling(), mySourceMapFile != null ? projectData : null);
-          reader.accept(slc, 0);
-          if (slc.getNSourceLines() > 0) { // ignore classes without executable code
-            final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
-            final int[] maxLine = new int[]{1};
-            final ClassData classData = projectData.getOrCreateClassData(StringsPool.getFromPool(classEntry.getClassName()));
-            slc.getSourceLines().forEachEntry(new TIntObjectProcedure<String>() {
-              public boolean execute(int line, String methodSig) {
-                final LineData ld = new LineData(line, StringsPool.getFromPool(methodSig));
-                lines.put(line, ld);
-                if (line > maxLine[0]) maxLine[0] = line;
-                classData.registerMethodSignature(ld);
-                ld.setStatus(LineCoverage.NONE);
-                return true;
-              }
-            });
-            classData.setLines(LinesUtil.calcLineArray(maxLine[0], lines));
+          if (result.getOuterClassName() != null) {
+            projectData.getOrCreateClassData(result.getOuterClassName()).setSource(cd.getSource());
           }
-        } catch (Throwable e) {
-          e.printStackTrace();
-          ErrorReporter.reportError("Failed to process class: " + classEntry.getClassName() + ", error: " + e.getMessage(), e);
+        }
+        if (result.getLines() != null) { // ignore classes without executable code
+          final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
+          final ClassData classData = projectData.getOrCreateClassData(StringsPool.getFromPool(result.getClassName()));
+          result.getLines().forEachEntry(new TIntObjectProcedure<String>() {
+            public boolean execute(int line, String methodSig) {
+              final LineData ld = new LineData(line, StringsPool.getFromPool(methodSig));
+              lines.put(line, ld);
+              classData.registerMethodSignature(ld);
+              ld.setStatus(LineCoverage.NONE);
+              return true;
+            }
+          });
+          classData.setSortedLines(LinesUtil.calcSortedLines(lines));
         }
       }
     }
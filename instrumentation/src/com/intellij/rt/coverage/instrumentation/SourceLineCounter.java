@@ -42,6 +42,8 @@ public class SourceLineCounter extends ClassVisitor {
   private int myCurrentLine;
   private boolean myInterface;
   private boolean myEnum;
+  private String mySource;
+  private String myOuterClassName;
 
   public SourceLineCounter(final ClassData classData, final boolean excludeLines, final ProjectData projectData) {
     super(Opcodes.API_VERSION, new ClassVisitor(Opcodes.API_VERSION) {});
@@ -57,6 +59,7 @@ public class SourceLineCounter extends ClassVisitor {
   }
 
   public void visitSource(String sourceFileName, String debug) {
+    mySource = sourceFileName;
     if (myProjectData != null) {
       myClassData.setSource(sourceFileName);
     }
@@ -64,6 +67,7 @@ public class SourceLineCounter extends ClassVisitor {
   }
 
   public void visitOuterClass(String outerClassName, String methodName, String methodSig) {
+    myOuterClassName = outerClassName;
     if (myProjectData != null) {
       myProjectData.getOrCreateClassData(outerClassName).setSource(myClassData.getSource());
     }
@@ -180,6 +184,14 @@ public class SourceLineCounter extends ClassVisitor {
     };
   }
 
+  public String getSource() {
+    return mySource;
+  }
+
+  public String getOuterClassName() {
+    return myOuterClassName;
+  }
+
   public int getNSourceLines() {
     return myNSourceLines.size();
   }
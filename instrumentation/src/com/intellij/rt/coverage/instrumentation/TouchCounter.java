@@ -25,7 +25,7 @@ import org.jetbrains.coverage.org.objectweb.asm.Type;
 public class TouchCounter extends MethodVisitor implements Opcodes {
   private final int myVariablesCount;
 
-  private final LineEnumerator myEnumerator;
+  protected final LineEnumerator myEnumerator;
 
   private Label myStartLabel;
   private Label myEndLabel;
@@ -43,10 +43,14 @@ public class TouchCounter extends MethodVisitor implements Opcodes {
 
 
   public void visitLineNumber(int line, Label start) {
+    touchLine(line);
+    super.visitLineNumber(line, start);
+  }
+
+  protected void touchLine(int line) {
     mv.visitVarInsn(Opcodes.ALOAD, getCurrentClassDataNumber());
     pushIntValue(line);
     mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "trace", "(Ljava/lang/Object;I)V", false);
-    super.visitLineNumber(line, start);
   }
 
   public void visitLabel(Label label) {
@@ -61,15 +65,19 @@ public class TouchCounter extends MethodVisitor implements Opcodes {
 
     final LineEnumerator.Switch aSwitch = myEnumerator.getSwitch(label);
     if (aSwitch != null) {
-      mv.visitVarInsn(Opcodes.ALOAD, getCurrentClassDataNumber());
-      pushIntValue(aSwitch.getLine());
-      pushIntValue(aSwitch.getIndex());
-      mv.visitIntInsn(Opcodes.SIPUSH, aSwitch.getKey());
-      mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "touchSwitch", "(Ljava/lang/Object;III)V", false);
+      touchSwitch(aSwitch);
     }
   }
 
-  private void touchBranch(final boolean trueHit, final int jumpIndex, int line) {
+  protected void touchSwitch(LineEnumerator.Switch aSwitch) {
+    mv.visitVarInsn(Opcodes.ALOAD, getCurrentClassDataNumber());
+    pushIntValue(aSwitch.getLine());
+    pushIntValue(aSwitch.getIndex());
+    mv.visitIntInsn(Opcodes.SIPUSH, aSwitch.getKey());
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "touchSwitch", "(Ljava/lang/Object;III)V", false);
+  }
+
+  protected void touchBranch(final boolean trueHit, final int jumpIndex, int line) {
     mv.visitVarInsn(Opcodes.ALOAD, getCurrentClassDataNumber());
     pushIntValue(line);
     pushIntValue(jumpIndex);
@@ -85,14 +93,21 @@ public class TouchCounter extends MethodVisitor implements Opcodes {
   }
 
   public void visitCode() {
-    mv.visitLdcInsn(myEnumerator.getClassName());
-    mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "loadClassData", "(Ljava/lang/String;)Ljava/lang/Object;", false);
+    loadClassData();
+    super.visitCode();
+  }
+
+  /** Stores the coverage data used by the inserted probes into the reserved local variable. */
+  protected void loadClassData() {
+    myEnumerator.getInstrumenter().loadClassData(mv);
     mv.visitVarInsn(Opcodes.ASTORE, getCurrentClassDataNumber());
+  }
 
-    super.visitCode();
+  protected String getClassDataDescriptor() {
+    return "Ljava/lang/Object;";
   }
 
-  private void pushIntValue(int value) {
+  protected void pushIntValue(int value) {
     if (value <= Short.MAX_VALUE) {
       mv.visitIntInsn(Opcodes.SIPUSH, value);
     } else {
@@ -122,7 +137,7 @@ public class TouchCounter extends MethodVisitor implements Opcodes {
 
   public void visitMaxs(int maxStack, int maxLocals) {
     if (myStartLabel != null && myEndLabel != null) {
-      mv.visitLocalVariable("__class__data__", "Ljava/lang/Object;", null, myStartLabel, myEndLabel, getCurrentClassDataNumber());
+      mv.visitLocalVariable("__class__data__", getClassDataDescriptor(), null, myStartLabel, myEndLabel, getCurrentClassDataNumber());
     }
     super.visitMaxs(maxStack, maxLocals);
   }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.classFinder.ClassEntry;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Finds lines of classes matched by the class finder, so that classes which were never loaded are reported with zero hits.
+ * <p>
+ * Class path entries are scanned and classes are analyzed by a pool of daemon threads. Results are cached by class name,
+ * so the analysis may be started in the background during the run and only classes which appeared since then
+ * are analyzed at save. Analysis does not modify coverage data, results are merged by the caller.
+ */
+public class UnloadedClassesAnalyzer {
+  private final ClassFinder myClassFinder;
+  private final boolean myExcludeLines;
+  private final UnloadedClassesIndex myIndex;
+  private final ConcurrentMap<String, Result> myResults = new ConcurrentHashMap<String, Result>();
+  private ExecutorService myExecutor;
+  private Thread myBackgroundPass;
+
+  /**
+   * @param excludeLines whether lines with a single return are excluded, as done by tracing instrumentation
+   */
+  public UnloadedClassesAnalyzer(ClassFinder classFinder, boolean excludeLines) {
+    this(classFinder, excludeLines, UnloadedClassesIndex.createIfRequested(excludeLines));
+  }
+
+  /**
+   * @param index persistent results of previous runs, may be null
+   */
+  public UnloadedClassesAnalyzer(ClassFinder classFinder, boolean excludeLines, UnloadedClassesIndex index) {
+    myClassFinder = classFinder;
+    myExcludeLines = excludeLines;
+    myIndex = index;
+  }
+
+  /**
+   * Starts analysis in a daemon thread. Classes already loaded into <code>projectData</code> are skipped.
+   */
+  public synchronized void startInBackground(final ProjectData projectData) {
+    if (myBackgroundPass != null) return;
+    myBackgroundPass = new Thread(new Runnable() {
+      public void run() {
+        try {
+          analyze(projectData);
+        } catch (InterruptedException ignored) {
+        } catch (Throwable e) {
+          ErrorReporter.reportError("Failed to analyze unloaded classes", e);
+        }
+      }
+    }, "Coverage unloaded classes analysis");
+    myBackgroundPass.setDaemon(true);
+    myBackgroundPass.start();
+  }
+
+  /**
+   * Waits for the background pass if any and analyzes classes which have not been analyzed yet.
+   *
+   * @param projectData classes loaded into it are skipped
+   * @return results for classes matched by the class finder which are not loaded into <code>projectData</code>
+   */
+  public Collection<Result> analyze(ProjectData projectData) throws InterruptedException {
+    final Thread backgroundPass;
+    synchronized (this) {
+      backgroundPass = myBackgroundPass;
+    }
+    if (backgroundPass != null && backgroundPass != Thread.currentThread()) {
+      backgroundPass.join();
+    }
+
+    final ExecutorService executor = getExecutor();
+    final List<Result> results = new ArrayList<Result>();
+    final List<Future<Result>> futures = new ArrayList<Future<Result>>();
+    for (final ClassEntry classEntry : myClassFinder.findMatchedClasses(executor)) {
+      final String className = classEntry.getClassName();
+      if (projectData.getClassData(className) != null) continue;
+      final Result cached = myResults.get(className);
+      if (cached != null) {
+        results.add(cached);
+        continue;
+      }
+      futures.add(executor.submit(new Callable<Result>() {
+        public Result call() {
+          return analyze(classEntry);
+        }
+      }));
+    }
+    for (Future<Result> future : futures) {
+      try {
+        final Result result = future.get();
+        if (result != null) {
+          results.add(result);
+        }
+      } catch (ExecutionException e) {
+        ErrorReporter.reportError("Failed to analyze unloaded classes", e.getCause());
+      }
+    }
+    if (myIndex != null && !futures.isEmpty()) {
+      myIndex.save();
+    }
+    return results;
+  }
+
+  private Result analyze(ClassEntry classEntry) {
+    final String className = classEntry.getClassName();
+    try {
+      byte[] bytes = null;
+      if (myIndex != null) {
+        if (myIndex.needsBytes(classEntry)) {
+          bytes = readBytes(classEntry);
+        }
+        final Result indexed = myIndex.get(classEntry, bytes);
+        if (indexed != null) {
+          myResults.put(className, indexed);
+          return indexed;
+        }
+      }
+      if (bytes == null) {
+        bytes = readBytes(classEntry);
+      }
+      final SourceLineCounter slc = new SourceLineCounter(null, myExcludeLines, null);
+      new ClassReader(bytes).accept(slc, 0);
+      final Result result = new Result(className, slc.getSource(), slc.getOuterClassName(),
+          slc.getNSourceLines() > 0 ? slc.getSourceLines() : null);
+      myResults.put(className, result);
+      if (myIndex != null) {
+        myIndex.put(classEntry, bytes, result);
+      }
+      return result;
+    } catch (Throwable e) {
+      e.printStackTrace();
+      ErrorReporter.reportError("Failed to process class: " + className + ", error: " + e.getMessage(), e);
+      return null;
+    }
+  }
+
+  private static byte[] readBytes(ClassEntry classEntry) throws IOException {
+    final InputStream is = classEntry.getClassInputStream();
+    if (is == null) throw new IOException("Class file is not found");
+    try {
+      final ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(is.available(), 1024));
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) > 0) {
+        os.write(buffer, 0, read);
+      }
+      return os.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (myExecutor == null) {
+      myExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "Coverage unloaded classes worker");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return myExecutor;
+  }
+
+  public static class Result {
+    private final String myClassName;
+    private final String mySource;
+    private final String myOuterClassName;
+    private final TIntObjectHashMap<String> myLines;
+
+    Result(String className, String source, String outerClassName, TIntObjectHashMap<String> lines) {
+      myClassName = className;
+      mySource = source;
+      myOuterClassName = outerClassName;
+      myLines = lines;
+    }
+
+    public String getClassName() {
+      return myClassName;
+    }
+
+    public String getSource() {
+      return mySource;
+    }
+
+    public String getOuterClassName() {
+      return myOuterClassName;
+    }
+
+    /**
+     * @return method signatures by line number, or null if the class has no executable code
+     */
+    public TIntObjectHashMap<String> getLines() {
+      return myLines;
+    }
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.classFinder.ClassEntry;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk index of {@link UnloadedClassesAnalyzer} results, so that unchanged classes are not analyzed again
+ * in the next run. Enabled with <code>idea.coverage.cache.dir</code> system property, the index is kept
+ * in the <code>unloaded</code> subdirectory.
+ * <p>
+ * There is an index file per class path entry. Results of an archive are valid while its size and modification time
+ * are the same, results of a directory are kept with hash of each class file.
+ * Index files are written to a temporary file and renamed, so a partially written file is never read,
+ * a file ends with its CRC32, a damaged file is deleted.
+ */
+public class UnloadedClassesIndex {
+  private static final String INDEX_EXTENSION = ".idx";
+  private static final int FORMAT_VERSION = 2;
+
+  private final File myDirectory;
+  private final String myOptions;
+  private final ConcurrentMap<String, EntryIndex> myEntries = new ConcurrentHashMap<String, EntryIndex>();
+
+  /**
+   * @param excludeLines option of the analyzer which affects results
+   */
+  public UnloadedClassesIndex(File directory, boolean excludeLines) {
+    myDirectory = directory;
+    myOptions = InstrumentedClassCache.getAgentVersion() + ";" + excludeLines;
+  }
+
+  static UnloadedClassesIndex createIfRequested(boolean excludeLines) {
+    final String dir = System.getProperty(InstrumentedClassCache.CACHE_DIR_PROPERTY);
+    if (dir == null) return null;
+    final File directory = new File(dir, "unloaded");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      ErrorReporter.reportError("Failed to create unloaded classes index directory " + directory.getPath());
+      return null;
+    }
+    return new UnloadedClassesIndex(directory, excludeLines);
+  }
+
+  /**
+   * @return whether class bytes are needed to look up the class, which is the case for classes from directories
+   */
+  public boolean needsBytes(ClassEntry classEntry) {
+    final EntryIndex index = getIndex(classEntry);
+    return index != null && !index.myArchive;
+  }
+
+  /**
+   * @param bytes class bytes if {@link #needsBytes} is true, ignored otherwise
+   * @return indexed result of the class or null if the class is not indexed
+   */
+  public UnloadedClassesAnalyzer.Result get(ClassEntry classEntry, byte[] bytes) {
+    final EntryIndex index = getIndex(classEntry);
+    if (index == null) return null;
+    final Record record = index.myRecords.get(classEntry.getClassName());
+    if (record == null) return null;
+    if (!index.myArchive && (bytes == null || !Arrays.equals(record.myHash, hash(bytes)))) return null;
+    return record.myResult;
+  }
+
+  public void put(ClassEntry classEntry, byte[] bytes, UnloadedClassesAnalyzer.Result result) {
+    final EntryIndex index = getIndex(classEntry);
+    if (index == null) return;
+    index.myRecords.put(classEntry.getClassName(), new Record(index.myArchive ? null : hash(bytes), result));
+    index.myModified = true;
+  }
+
+  /**
+   * Writes index files of class path entries with new results.
+   */
+  public void save() {
+    for (EntryIndex index : myEntries.values()) {
+      synchronized (index) {
+        if (!index.myModified) continue;
+        File tempFile = null;
+        DataOutputStream os = null;
+        try {
+          // several processes may share the directory, so the temporary file name must be unique
+          tempFile = File.createTempFile(index.myFile.getName() + ".", ".tmp", myDirectory);
+          final CRC32 checksum = new CRC32();
+          os = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), checksum));
+          index.write(os);
+          os.writeInt((int) checksum.getValue());
+          os.close();
+          os = null;
+          if (!tempFile.renameTo(index.myFile) && !(index.myFile.delete() && tempFile.renameTo(index.myFile))) {
+            tempFile.delete();
+            continue;
+          }
+          index.myModified = false;
+        } catch (IOException e) {
+          ErrorReporter.reportError("Failed to write unloaded classes index " + index.myFile.getPath(), e);
+          close(os);
+          os = null;
+          if (tempFile != null) {
+            tempFile.delete();
+          }
+        } finally {
+          close(os);
+        }
+      }
+    }
+  }
+
+  private EntryIndex getIndex(ClassEntry classEntry) {
+    final String path = classEntry.getClassPathEntry();
+    if (path == null) return null;
+    EntryIndex index = myEntries.get(path);
+    if (index == null) {
+      final File entry = new File(path);
+      final boolean archive = entry.isFile();
+      index = new EntryIndex(path, archive, archive ? entry.length() : 0, archive ? entry.lastModified() : 0,
+          new File(myDirectory, toHex(digest(myOptions + ";" + path)) + INDEX_EXTENSION));
+      final EntryIndex existing = myEntries.putIfAbsent(path, index);
+      if (existing != null) {
+        index = existing;
+      }
+    }
+    index.load();
+    return index;
+  }
+
+  private static byte[] hash(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] digest(String s) {
+    try {
+      return hash(s.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHex(byte[] hash) {
+    final StringBuilder result = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return result.toString();
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable == null) return;
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private static class Record {
+    private final byte[] myHash;
+    private final UnloadedClassesAnalyzer.Result myResult;
+
+    Record(byte[] hash, UnloadedClassesAnalyzer.Result result) {
+      myHash = hash;
+      myResult = result;
+    }
+  }
+
+  /**
+   * Results of a class path entry. The file starts with the entry path, size and modification time,
+   * then for each class its name, class file hash for directories, source, outer class name,
+   * signatures of methods with lines and line numbers in increasing order as deltas with method indices.
+   */
+  private static class EntryIndex {
+    private final String myPath;
+    private final boolean myArchive;
+    private final long myLength;
+    private final long myLastModified;
+    private final File myFile;
+    private final ConcurrentMap<String, Record> myRecords = new ConcurrentHashMap<String, Record>();
+    private boolean myLoaded;
+    private volatile boolean myModified;
+
+    EntryIndex(String path, boolean archive, long length, long lastModified, File file) {
+      myPath = path;
+      myArchive = archive;
+      myLength = length;
+      myLastModified = lastModified;
+      myFile = file;
+    }
+
+    synchronized void load() {
+      if (myLoaded) return;
+      myLoaded = true;
+      if (!myFile.isFile()) return;
+      DataInputStream in = null;
+      try {
+        final CRC32 checksum = new CRC32();
+        in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(myFile)), checksum));
+        if (CoverageIOUtil.readINT(in) != FORMAT_VERSION) throw new IOException("Unknown format version");
+        if (!myPath.equals(CoverageIOUtil.readUTFFast(in))) throw new IOException("Hash collision");
+        if (in.readLong() != myLength || in.readLong() != myLastModified) {
+          // archive has changed, results are replaced by new ones
+          myModified = true;
+          return;
+        }
+        final Map<String, Record> records = new HashMap<String, Record>();
+        final int count = CoverageIOUtil.readINT(in);
+        for (int i = 0; i < count; i++) {
+          final String className = CoverageIOUtil.readUTFFast(in);
+          byte[] hash = null;
+          if (!myArchive) {
+            hash = new byte[CoverageIOUtil.readINT(in)];
+            in.readFully(hash);
+          }
+          final String source = readNullableUTF(in);
+          final String outerClassName = readNullableUTF(in);
+          final String[] methods = new String[CoverageIOUtil.readINT(in)];
+          for (int m = 0; m < methods.length; m++) {
+            methods[m] = CoverageIOUtil.readUTFFast(in);
+          }
+          final int lineCount = CoverageIOUtil.readINT(in);
+          TIntObjectHashMap<String> lines = null;
+          if (lineCount > 0) {
+            lines = new TIntObjectHashMap<String>(lineCount);
+            int line = 0;
+            for (int l = 0; l < lineCount; l++) {
+              line += CoverageIOUtil.readINT(in);
+              lines.put(line, methods[CoverageIOUtil.readINT(in)]);
+            }
+          }
+          records.put(className, new Record(hash, new UnloadedClassesAnalyzer.Result(className, source, outerClassName, lines)));
+        }
+        final int expectedChecksum = (int) checksum.getValue();
+        if (in.readInt() != expectedChecksum || in.read() != -1) throw new IOException("Checksum mismatch");
+        myRecords.putAll(records);
+      } catch (IOException e) {
+        discard(in);
+      } catch (RuntimeException e) {
+        // garbage counts or indices of a damaged file
+        discard(in);
+      } finally {
+        close(in);
+      }
+    }
+
+    private void discard(Closeable in) {
+      close(in);
+      myRecords.clear();
+      myFile.delete();
+    }
+
+    synchronized void write(DataOutputStream os) throws IOException {
+      CoverageIOUtil.writeINT(os, FORMAT_VERSION);
+      CoverageIOUtil.writeUTF(os, myPath);
+      os.writeLong(myLength);
+      os.writeLong(myLastModified);
+      final List<Map.Entry<String, Record>> records = new ArrayList<Map.Entry<String, Record>>(myRecords.entrySet());
+      CoverageIOUtil.writeINT(os, records.size());
+      for (Map.Entry<String, Record> entry : records) {
+        final Record record = entry.getValue();
+        final UnloadedClassesAnalyzer.Result result = record.myResult;
+        CoverageIOUtil.writeUTF(os, entry.getKey());
+        if (!myArchive) {
+          CoverageIOUtil.writeINT(os, record.myHash.length);
+          os.write(record.myHash);
+        }
+        writeNullableUTF(os, result.getSource());
+        writeNullableUTF(os, result.getOuterClassName());
+
+        final TIntObjectHashMap<String> lines = result.getLines();
+        final int[] lineNumbers = lines == null ? new int[0] : lines.keys();
+        Arrays.sort(lineNumbers);
+        final TObjectIntHashMap<String> methodIndices = new TObjectIntHashMap<String>();
+        final List<String> methods = new ArrayList<String>();
+        for (int line : lineNumbers) {
+          final String method = lines.get(line);
+          if (!methodIndices.containsKey(method)) {
+            methodIndices.put(method, methods.size());
+            methods.add(method);
+          }
+        }
+        CoverageIOUtil.writeINT(os, methods.size());
+        for (String method : methods) {
+          CoverageIOUtil.writeUTF(os, method);
+        }
+        CoverageIOUtil.writeINT(os, lineNumbers.length);
+        int previous = 0;
+        for (int line : lineNumbers) {
+          CoverageIOUtil.writeINT(os, line - previous);
+          CoverageIOUtil.writeINT(os, methodIndices.get(lines.get(line)));
+          previous = line;
+        }
+      }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+      final String value = CoverageIOUtil.readUTFFast(in);
+      return value.length() == 0 ? null : value;
+    }
+
+    private static void writeNullableUTF(DataOutputStream os, String value) throws IOException {
+      CoverageIOUtil.writeUTF(os, value == null ? "" : value);
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.offline;
+
+import com.intellij.rt.coverage.data.ClassRegistration;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageClassfileTransformer;
+import com.intellij.rt.coverage.instrumentation.Instrumenter;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Instruments class directories and jars ahead of time, in parallel.
+ * Instrumented copies of the inputs are written to the output directory and line and branch tables of the instrumented classes
+ * are written to the metadata file, which is read by {@link OfflineCoverageRuntime} from the slim runtime jar.
+ * <p>
+ * Usage: <code>-output &lt;dir&gt; -metadata &lt;file&gt; [-sampling] [-threads N] [-classpath &lt;path&gt;]
+ * [-include &lt;regex&gt;]... [-exclude &lt;regex&gt;]... &lt;input dir or jar&gt;...</code>
+ * <p>
+ * Classpath is needed to compute stack map frames, the inputs are added to it automatically.
+ */
+public class OfflineInstrumentation {
+  private static final String CLASS_EXTENSION = ".class";
+
+  private final List<File> myInputs;
+  private final File myOutputDir;
+  private final int myThreads;
+  private final CoverageClassfileTransformer myTransformer;
+  private final ClassLoader myClassLoader;
+  private final boolean mySampling;
+  private final Map<String, ClassRegistration> myRegistrations = new ConcurrentHashMap<String, ClassRegistration>();
+
+  public OfflineInstrumentation(List<File> inputs, File outputDir, List<File> classpath, boolean sampling, int threads,
+                                List<Pattern> includePatterns, List<Pattern> excludePatterns) throws IOException {
+    myInputs = inputs;
+    myOutputDir = outputDir;
+    myThreads = threads;
+    mySampling = sampling;
+    final List<URL> urls = new ArrayList<URL>();
+    for (File file : inputs) {
+      urls.add(file.toURI().toURL());
+    }
+    for (File file : classpath) {
+      urls.add(file.toURI().toURL());
+    }
+    myClassLoader = new URLClassLoader(urls.toArray(new URL[0]), null);
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, sampling);
+    final ClassFinder classFinder = new ClassFinder(includePatterns, excludePatterns);
+    myTransformer = new CoverageClassfileTransformer(projectData, false, excludePatterns, includePatterns, classFinder) {
+      @Override
+      protected void classInstrumented(String className, byte[] classfileBuffer, ClassVisitor cv, byte[] result) {
+        super.classInstrumented(className, classfileBuffer, cv, result);
+        if (cv instanceof Instrumenter) {
+          myRegistrations.put(className, ((Instrumenter) cv).getRegistration());
+        }
+      }
+    };
+  }
+
+  public static void main(String[] args) throws Exception {
+    File outputDir = null;
+    File metadataFile = null;
+    boolean sampling = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    final List<File> classpath = new ArrayList<File>();
+    final List<Pattern> includePatterns = new ArrayList<Pattern>();
+    final List<Pattern> excludePatterns = new ArrayList<Pattern>();
+    final List<File> inputs = new ArrayList<File>();
+    for (int i = 0; i < args.length; i++) {
+      final String arg = args[i];
+      if ("-output".equals(arg) && i + 1 < args.length) {
+        outputDir = new File(args[++i]);
+      } else if ("-metadata".equals(arg) && i + 1 < args.length) {
+        metadataFile = new File(args[++i]);
+      } else if ("-sampling".equals(arg)) {
+        sampling = true;
+      } else if ("-threads".equals(arg) && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-classpath".equals(arg) && i + 1 < args.length) {
+        for (String path : args[++i].split(File.pathSeparator)) {
+          if (path.length() > 0) classpath.add(new File(path));
+        }
+      } else if ("-include".equals(arg) && i + 1 < args.length) {
+        includePatterns.add(Pattern.compile(args[++i]));
+      } else if ("-exclude".equals(arg) && i + 1 < args.length) {
+        excludePatterns.add(Pattern.compile(args[++i]));
+      } else {
+        inputs.add(new File(arg));
+      }
+    }
+    if (outputDir == null || metadataFile == null || inputs.isEmpty()) {
+      System.err.println("Usage: OfflineInstrumentation -output <dir> -metadata <file> [-sampling] [-threads N] [-classpath <path>] " +
+          "[-include <regex>]... [-exclude <regex>]... <input dir or jar>...");
+      System.exit(1);
+    }
+    final OfflineInstrumentation instrumentation =
+        new OfflineInstrumentation(inputs, outputDir, classpath, sampling, threads, includePatterns, excludePatterns);
+    final long start = System.currentTimeMillis();
+    final int classes = instrumentation.instrument(metadataFile);
+    System.out.println("Instrumented " + classes + " classes in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Instruments all inputs and writes the metadata file.
+   *
+   * @return number of instrumented classes
+   */
+  public int instrument(File metadataFile) throws IOException, InterruptedException {
+    final ExecutorService executor = Executors.newFixedThreadPool(myThreads);
+    try {
+      for (File input : myInputs) {
+        final File output = new File(myOutputDir, input.getName());
+        if (input.isDirectory()) {
+          instrumentDirectory(executor, input, output);
+        } else {
+          instrumentJar(executor, input, output);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    final List<ClassRegistration> registrations = new ArrayList<ClassRegistration>(myRegistrations.values());
+    Collections.sort(registrations, new Comparator<ClassRegistration>() {
+      public int compare(ClassRegistration o1, ClassRegistration o2) {
+        return o1.getClassName().compareTo(o2.getClassName());
+      }
+    });
+    OfflineMetadata.write(metadataFile, mySampling, registrations);
+    return registrations.size();
+  }
+
+  private void instrumentDirectory(ExecutorService executor, File inputDir, File outputDir) throws IOException, InterruptedException {
+    final List<File> files = new ArrayList<File>();
+    collectFiles(inputDir, files);
+    final List<Future<Object>> futures = new ArrayList<Future<Object>>(files.size());
+    final String root = inputDir.getPath();
+    for (final File file : files) {
+      final String relativePath = file.getPath().substring(root.length() + 1).replace(File.separatorChar, '/');
+      final File outputFile = new File(outputDir, relativePath);
+      futures.add(executor.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          final byte[] bytes = readFully(new FileInputStream(file));
+          outputFile.getParentFile().mkdirs();
+          final OutputStream os = new FileOutputStream(outputFile);
+          try {
+            os.write(transform(relativePath, bytes));
+          } finally {
+            os.close();
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Object> future : futures) {
+      get(future);
+    }
+  }
+
+  /**
+   * Entries are transformed in parallel and written in the original order.
+   */
+  private void instrumentJar(ExecutorService executor, File inputJar, File outputJar) throws IOException, InterruptedException {
+    final ZipFile zipFile = new ZipFile(inputJar);
+    try {
+      final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+      final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+      for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+        final ZipEntry entry = e.nextElement();
+        if (isSignatureFile(entry.getName())) continue; // signatures do not match instrumented classes
+        entries.add(entry);
+        futures.add(entry.isDirectory() ? null : executor.submit(new Callable<byte[]>() {
+          public byte[] call() throws Exception {
+            return transform(entry.getName(), readFully(zipFile.getInputStream(entry)));
+          }
+        }));
+      }
+      outputJar.getParentFile().mkdirs();
+      final ZipOutputStream os = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputJar)));
+      try {
+        for (int i = 0; i < entries.size(); i++) {
+          final ZipEntry entry = entries.get(i);
+          final ZipEntry newEntry = new ZipEntry(entry.getName());
+          newEntry.setTime(entry.getTime());
+          os.putNextEntry(newEntry);
+          if (futures.get(i) != null) {
+            os.write(get(futures.get(i)));
+          }
+          os.closeEntry();
+        }
+      } finally {
+        os.close();
+      }
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private static boolean isSignatureFile(String path) {
+    if (!path.startsWith("META-INF/") || path.indexOf('/', "META-INF/".length()) >= 0) return false;
+    return path.endsWith(".SF") || path.endsWith(".RSA") || path.endsWith(".DSA") || path.endsWith(".EC");
+  }
+
+  private byte[] transform(String path, byte[] bytes) {
+    if (!path.endsWith(CLASS_EXTENSION) || path.startsWith("META-INF/")) return bytes;
+    final String internalName = path.substring(0, path.length() - CLASS_EXTENSION.length());
+    final byte[] result = myTransformer.transform(myClassLoader, internalName, null, null, bytes);
+    return result != null ? result : bytes;
+  }
+
+  private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private static void collectFiles(File dir, List<File> result) {
+    final File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        collectFiles(file, result);
+      } else {
+        result.add(file);
+      }
+    }
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    try {
+      final ByteArrayOutputStream result = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        result.write(buffer, 0, read);
+      }
+      return result.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.bridge;
+
+/**
+ * Calls from instrumented code into the coverage data of the agent, which is loaded by the bootstrap class loader.
+ * <p>
+ * A class loader which does not delegate to its parent may define its own copy of
+ * {@link com.intellij.rt.coverage.data.ProjectData}, where no coverage is collected. The copy finds the agent's
+ * implementation of this interface and calls it directly instead of calling the agent's classes through reflection.
+ * This works when the class loader takes this package from the bootstrap class loader,
+ * e.g. with <code>org.osgi.framework.bootdelegation=com.intellij.rt.coverage.bridge</code> in OSGi,
+ * which is the reason for the interface to be in a package of its own.
+ * <p>
+ * Coverage data objects are passed as <code>Object</code>, as their classes differ between the agent and the copy.
+ */
+public interface CoverageBridge {
+  Object loadClassData(String className);
+
+  void touchLine(Object classData, int line);
+
+  void touchSwitch(Object classData, int line, int switchNumber, int key);
+
+  void touchJump(Object classData, int line, int jump, boolean hit);
+
+  void trace(Object classData, int line);
+
+  int[] getOrCreateHits(Object classData, int layoutId);
+
+  boolean[] getOrCreateHitFlags(Object classData, int layoutId);
+
+  Object getOrCreateThreadHits(Object classData, int layoutId);
+
+  /**
+   * @param threadHits object returned by {@link #getOrCreateThreadHits}
+   */
+  int[] getThreadHits(Object threadHits);
+}
@@ -25,12 +25,23 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.*;
 
+/**
+ * Coverage of a class. Lines are kept in a {@link LineTable}, <code>LineData</code> objects returned by
+ * {@link #getLineData(int)} and {@link #getLines()} are views which read and write the table.
+ * Method signatures are kept once per class in a method table together with the method statuses.
+ */
 public class ClassData implements CoverageData {
+  private static final int LINEAR_METHOD_LOOKUP = 16;
+
   private final String myClassName;
-  private LineData[] myLinesArray;
-  private Map<String, Integer> myStatus;
+  private volatile LineTable myLines;
+  private String[] myMethods;
+  private byte[] myMethodStatus;
+  private int myMethodCount;
+  private Map<String, Integer> myMethodIndices;
   private int[] myLineMask;
   private String mySource;
+  private ProbeHits[] myProbeHits;
 
   public ClassData(final String name) {
     myClassName = name;
@@ -42,147 +53,400 @@ public class ClassData implements CoverageData {
 
   public void save(final DataOutputStream os, DictionaryLookup dictionaryLookup) throws IOException {
     CoverageIOUtil.writeINT(os, dictionaryLookup.getDictionaryIndex(myClassName));
-    final Map<String, List<LineData>> sigLines = prepareSignaturesMap(dictionaryLookup, true);
-    final Set<String> sigs = sigLines.keySet();
-    CoverageIOUtil.writeINT(os, sigs.size());
-    for (Object sig1 : sigs) {
-      final String sig = (String) sig1;
-      CoverageIOUtil.writeUTF(os, sig);
-      final List<LineData> lines = sigLines.get(sig);
-      CoverageIOUtil.writeINT(os, lines.size());
-      for (Object line : lines) {
-        ((LineData) line).save(os);
+    final LineTable table = myLines;
+    if (table == null) {
+      CoverageIOUtil.writeINT(os, 0);
+      return;
+    }
+    applyLineMask(table);
+    final int[] slots = getSlotsSortedBySignature(table);
+    int sigsCount = 0;
+    for (int i = 0; i < slots.length; i++) {
+      if (i == 0 || table.getMethod(slots[i]) != table.getMethod(slots[i - 1])) {
+        sigsCount++;
+      }
+    }
+    CoverageIOUtil.writeINT(os, sigsCount);
+    int start = 0;
+    while (start < slots.length) {
+      final int method = table.getMethod(slots[start]);
+      int end = start + 1;
+      while (end < slots.length && method == table.getMethod(slots[end])) {
+        end++;
+      }
+      CoverageIOUtil.writeUTF(os, CoverageIOUtil.collapse(getMethodSignature(method), dictionaryLookup));
+      CoverageIOUtil.writeINT(os, end - start);
+      for (int i = start; i < end; i++) {
+        table.save(slots[i], table.getLineNumber(slots[i]), os);
       }
+      start = end;
     }
   }
 
-  private Map<String, List<LineData>> prepareSignaturesMap(DictionaryLookup dictionaryLookup, boolean collapseSignatures) {
-    final Map<String, List<LineData>> sigLines = new HashMap<String, List<LineData>>();
-    if (myLinesArray == null) return sigLines;
-    for (final LineData lineData : myLinesArray) {
-      if (lineData == null) continue;
-      if (myLineMask != null) {
-        lineData.setHits(myLineMask[lineData.getLineNumber()]);
+  /**
+   * Writes the class in the compact format read by {@link com.intellij.rt.coverage.util.ProjectDataLoader}:
+   * lines of a method are written with the difference between their numbers, an uncovered line takes a single byte
+   * and a test name is written once per class, see {@link LineTable#saveCompact}.
+   */
+  public void saveCompact(final DataOutputStream os, DictionaryLookup dictionaryLookup) throws IOException {
+    CoverageIOUtil.writeINT(os, dictionaryLookup.getDictionaryIndex(myClassName));
+    final LineTable table = myLines;
+    if (table == null) {
+      CoverageIOUtil.writeINT(os, 0);
+      return;
+    }
+    applyLineMask(table);
+    final int[] slots = getSlotsSortedBySignature(table);
+    int sigsCount = 0;
+    for (int i = 0; i < slots.length; i++) {
+      if (i == 0 || table.getMethod(slots[i]) != table.getMethod(slots[i - 1])) {
+        sigsCount++;
+      }
+    }
+    CoverageIOUtil.writeINT(os, sigsCount);
+    final Map<String, Integer> testNames = new HashMap<String, Integer>();
+    int start = 0;
+    while (start < slots.length) {
+      final int method = table.getMethod(slots[start]);
+      int end = start + 1;
+      while (end < slots.length && method == table.getMethod(slots[end])) {
+        end++;
+      }
+      CoverageIOUtil.writeUTF(os, CoverageIOUtil.collapse(getMethodSignature(method), dictionaryLookup));
+      CoverageIOUtil.writeINT(os, end - start);
+      int previousLine = 0;
+      for (int i = start; i < end; i++) {
+        final int line = table.getLineNumber(slots[i]);
+        table.saveCompact(slots[i], line - previousLine, testNames, os);
+        previousLine = line;
       }
-      final String methodSignature = lineData.getMethodSignature();
-      final String sig = collapseSignatures ? CoverageIOUtil.collapse(methodSignature, dictionaryLookup) : methodSignature;
+      start = end;
+    }
+  }
+
+  /**
+   * Slots of the lines grouped by method signature, which is done with a counting sort over the method table,
+   * so that saving does not need more memory than an array of slots of a single class.
+   */
+  private int[] getSlotsSortedBySignature(LineTable table) {
+    final Integer[] methods = new Integer[myMethodCount];
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = i;
+    }
+    Arrays.sort(methods, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        return myMethods[o1].compareTo(myMethods[o2]);
+      }
+    });
+    final int[] starts = new int[myMethodCount + 1];
+    for (int slot = 0; slot < table.size(); slot++) {
+      starts[table.getMethod(slot) + 1]++;
+    }
+    final int[] offsets = new int[myMethodCount];
+    int offset = 0;
+    for (Integer method : methods) {
+      offsets[method] = offset;
+      offset += starts[method + 1];
+    }
+    final int[] slots = new int[table.size()];
+    for (int slot = 0; slot < slots.length; slot++) {
+      slots[offsets[table.getMethod(slot)]++] = slot;
+    }
+    return slots;
+  }
+
+  /**
+   * Hits of a class instrumented in sampling mode are counted in the line mask and are copied into the lines.
+   */
+  private void applyLineMask(LineTable table) {
+    if (myLineMask == null) return;
+    for (int slot = 0; slot < table.size(); slot++) {
+      final int line = table.getLine(slot);
+      if (line < myLineMask.length) {
+        table.setHits(slot, myLineMask[line]);
+      }
+    }
+  }
+
+  private Map<String, List<LineData>> prepareSignaturesMap() {
+    final Map<String, List<LineData>> sigLines = new HashMap<String, List<LineData>>();
+    final LineTable table = myLines;
+    if (table == null) return sigLines;
+    applyLineMask(table);
+    for (int slot = 0; slot < table.size(); slot++) {
+      final String sig = getMethodSignature(table.getMethod(slot));
       List<LineData> lines = sigLines.get(sig);
       if (lines == null) {
         lines = new ArrayList<LineData>();
         sigLines.put(sig, lines);
       }
-      lines.add(lineData);
+      lines.add(new LineView(this, table.getLine(slot), table.getLineNumber(slot)));
     }
     return sigLines;
   }
 
   public Map<String, List<LineData>> mapLinesToMethods() {
-    return prepareSignaturesMap(null, false);
+    return prepareSignaturesMap();
   }
 
   public void merge(final CoverageData data) {
     ClassData classData = (ClassData) data;
-    mergeLines(classData.myLinesArray);
-    for (String o : getMethodSigs()) {
-      myStatus.put(o, null);
-    }
+    mergeLines(classData.toLineArray());
     if (mySource == null && classData.mySource != null) {
       mySource = classData.mySource;
     }
   }
 
-  private void mergeLines(LineData[] dLines) {
+  /**
+   * Counters of lines which are already in the table are merged in place, so hits made by the running code are kept.
+   * A new table is created only when lines, jumps or switches are added.
+   */
+  private synchronized void mergeLines(LineData[] dLines) {
     if (dLines == null) return;
-    if (myLinesArray == null || myLinesArray.length < dLines.length) {
-      LineData[] lines = new LineData[dLines.length];
-      if (myLinesArray != null) {
-        System.arraycopy(myLinesArray, 0, lines, 0, myLinesArray.length);
+    final LineTable table = myLines;
+    if (table == null) {
+      myLines = LineTable.create(dLines, this);
+      return;
+    }
+    if (canMerge(table, dLines)) {
+      for (int i = 0; i < dLines.length; i++) {
+        if (dLines[i] != null) {
+          mergeLine(table, table.getSlot(i), dLines[i]);
+        }
       }
-      myLinesArray = lines;
+    } else {
+      growLines(table, dLines);
+    }
+    resetMethodStatus();
+  }
+
+  private static boolean canMerge(LineTable table, LineData[] dLines) {
+    for (int i = 0; i < dLines.length; i++) {
+      if (dLines[i] == null) continue;
+      final int slot = table.getSlot(i);
+      if (slot < 0 || !table.canMerge(slot, dLines[i])) return false;
+    }
+    return true;
+  }
+
+  private void mergeLine(LineTable table, int slot, LineData data) {
+    table.merge(slot, data);
+    if (data.getMethodSignature() != null) {
+      table.setMethod(slot, getMethodIndex(data.getMethodSignature()));
+    }
+  }
+
+  /**
+   * Replaces the table with a larger one, hits made in the old table while it is being replaced are moved to the new one.
+   */
+  private void growLines(LineTable table, LineData[] dLines) {
+    final LineTable copy = table.copy();
+    LineData[] linesArray = toLineArray(copy);
+    if (linesArray.length < dLines.length) {
+      LineData[] lines = new LineData[dLines.length];
+      System.arraycopy(linesArray, 0, lines, 0, linesArray.length);
+      linesArray = lines;
     }
     for (int i = 0; i < dLines.length; i++) {
       final LineData mergedData = dLines[i];
       if (mergedData == null) continue;
-      LineData lineData = myLinesArray[i];
+      LineData lineData = linesArray[i];
       if (lineData == null) {
         lineData = new LineData(mergedData.getLineNumber(), mergedData.getMethodSignature());
-        registerMethodSignature(lineData);
-        myLinesArray[i] = lineData;
+        linesArray[i] = lineData;
       }
       lineData.merge(mergedData);
     }
+    final LineTable grown = LineTable.create(linesArray, this);
+    myLines = grown;
+    grown.addHitsSince(table, copy);
+  }
+
+  private synchronized void resetMethodStatus() {
+    if (myMethodStatus != null) {
+      Arrays.fill(myMethodStatus, (byte) -1);
+    }
+  }
+
+  /**
+   * Merges <code>data</code> into the line, see {@link LineView#merge(CoverageData)}.
+   */
+  synchronized void mergeLine(int line, LineData data) {
+    final LineTable table = myLines;
+    final int slot = table == null ? -1 : table.getSlot(line);
+    if (slot < 0) return;
+    if (table.canMerge(slot, data)) {
+      mergeLine(table, slot, data);
+    } else {
+      final LineData[] lines = new LineData[line + 1];
+      lines[line] = data;
+      growLines(table, lines);
+    }
+    resetMethodStatus();
+  }
+
+  /**
+   * Detached copies of the lines, used to merge classes and to create a larger table.
+   */
+  private LineData[] toLineArray() {
+    final LineTable table = myLines;
+    return table == null ? null : toLineArray(table);
+  }
+
+  private LineData[] toLineArray(LineTable table) {
+    final LineData[] lines = new LineData[table.length()];
+    for (int slot = 0; slot < table.size(); slot++) {
+      lines[table.getLine(slot)] = table.toLineData(slot, table.getLineNumber(slot), getMethodSignature(table.getMethod(slot)));
+    }
+    return lines;
+  }
+
+  LineTable getLineTable() {
+    return myLines;
   }
 
+  /**
+   * Counts a hit of a class instrumented in sampling mode, in the line mask if the class has one.
+   */
   public void touchLine(int line) {
-    myLineMask[line]++;
+    final int[] lineMask = myLineMask;
+    if (lineMask != null) {
+      lineMask[line]++;
+      return;
+    }
+    final LineTable table = myLines;
+    final int slot = table == null ? -1 : table.getSlot(line);
+    if (slot >= 0) {
+      table.setHits(slot, table.getHits(slot) + 1);
+    }
   }
 
   public void touch(int line) {
-    final LineData lineData = getLineData(line);
-    if (lineData != null) {
-      lineData.touch();
+    final LineTable table = myLines;
+    final int slot = table == null ? -1 : table.getSlot(line);
+    if (slot >= 0) {
+      table.touch(slot);
     }
   }
 
   public void touch(int line, int jump, boolean hit) {
-    final LineData lineData = getLineData(line);
-    if (lineData != null) {
-      lineData.touchBranch(jump, hit);
+    final LineTable table = myLines;
+    final int slot = table == null ? -1 : table.getSlot(line);
+    if (slot >= 0) {
+      table.touchJump(slot, jump, hit);
     }
   }
 
   public void touch(int line, int switchNumber, int key) {
-    final LineData lineData = getLineData(line);
-    if (lineData != null) {
-      lineData.touchBranch(switchNumber, key);
+    final LineTable table = myLines;
+    final int slot = table == null ? -1 : table.getSlot(line);
+    if (slot >= 0) {
+      table.touchSwitch(slot, switchNumber, key);
     }
   }
 
   public void registerMethodSignature(LineData lineData) {
-    initStatusMap();
-    myStatus.put(lineData.getMethodSignature(), null);
+    getMethodIndex(lineData.getMethodSignature());
+  }
+
+  /**
+   * Index of the method in the method table, the method is added if it is not there yet.
+   * Methods are looked up linearly in small classes, larger classes get a map.
+   */
+  synchronized int getMethodIndex(String methodSignature) {
+    if (methodSignature == null) return -1;
+    if (myMethodIndices != null) {
+      final Integer index = myMethodIndices.get(methodSignature);
+      if (index != null) return index;
+    } else {
+      for (int i = 0; i < myMethodCount; i++) {
+        if (myMethods[i] == methodSignature || myMethods[i].equals(methodSignature)) return i;
+      }
+    }
+    if (myMethods == null || myMethodCount == myMethods.length) {
+      final int capacity = myMethods == null ? 4 : myMethodCount * 2;
+      final String[] methods = new String[capacity];
+      final byte[] status = new byte[capacity];
+      if (myMethods != null) {
+        System.arraycopy(myMethods, 0, methods, 0, myMethodCount);
+        System.arraycopy(myMethodStatus, 0, status, 0, myMethodCount);
+      }
+      myMethods = methods;
+      myMethodStatus = status;
+    }
+    myMethods[myMethodCount] = methodSignature;
+    myMethodStatus[myMethodCount] = -1;
+    if (myMethodIndices != null) {
+      myMethodIndices.put(methodSignature, myMethodCount);
+    } else if (myMethodCount == LINEAR_METHOD_LOOKUP) {
+      myMethodIndices = new HashMap<String, Integer>();
+      for (int i = 0; i <= myMethodCount; i++) {
+        myMethodIndices.put(myMethods[i], i);
+      }
+    }
+    return myMethodCount++;
+  }
+
+  synchronized String getMethodSignature(int method) {
+    return method < 0 ? null : myMethods[method];
   }
 
   public LineData getLineData(int line) {
-    return myLinesArray[line];
+    final LineTable table = myLines;
+    final int slot = table == null ? -1 : table.getSlot(line);
+    return slot >= 0 ? new LineView(this, line, table.getLineNumber(slot)) : null;
   }
 
-  /** @noinspection UnusedDeclaration*/
+  /**
+   * @return views of the lines by line number, see {@link LineView}
+   * @noinspection UnusedDeclaration
+   */
   public Object[] getLines() {
-    return myLinesArray;
+    final LineTable table = myLines;
+    if (table == null) return null;
+    final LineData[] lines = new LineData[table.length()];
+    for (int slot = 0; slot < table.size(); slot++) {
+      lines[table.getLine(slot)] = new LineView(this, table.getLine(slot), table.getLineNumber(slot));
+    }
+    return lines;
   }
 
   /** @noinspection UnusedDeclaration*/
   public boolean containsLine(int line) {
-    return myLinesArray[line] != null;
+    final LineTable table = myLines;
+    return table != null && table.getSlot(line) >= 0;
   }
 
   /** @noinspection UnusedDeclaration*/
-  public Collection<String> getMethodSigs() {
-    initStatusMap();
-    return myStatus.keySet();
-  }
-
-  private void initStatusMap() {
-    if (myStatus == null) myStatus = new HashMap<String, Integer>();
+  public synchronized Collection<String> getMethodSigs() {
+    final List<String> methods = new ArrayList<String>(myMethodCount);
+    for (int i = 0; i < myMethodCount; i++) {
+      methods.add(myMethods[i]);
+    }
+    return methods;
   }
 
   /** @noinspection UnusedDeclaration*/
   public Integer getStatus(String methodSignature) {
-    Integer methodStatus = myStatus.get(methodSignature);
-    if (methodStatus == null) {
-      for (final LineData lineData : myLinesArray) {
-        if (lineData != null && methodSignature.equals(lineData.getMethodSignature())) {
-          if (lineData.getStatus() != LineCoverage.NONE) {
-            methodStatus = (int) LineCoverage.PARTIAL;
-            break;
-          }
+    final int method = getMethodIndex(methodSignature);
+    if (method < 0) return (int) LineCoverage.NONE;
+    synchronized (this) {
+      if (myMethodStatus[method] != -1) return (int) myMethodStatus[method];
+    }
+    byte methodStatus = LineCoverage.NONE;
+    final LineTable table = myLines;
+    if (table != null) {
+      for (int slot = 0; slot < table.size(); slot++) {
+        if (table.getMethod(slot) == method && table.getStatus(slot) != LineCoverage.NONE) {
+          methodStatus = LineCoverage.PARTIAL;
+          break;
         }
       }
-      if (methodStatus == null) methodStatus = (int) LineCoverage.NONE;
-      myStatus.put(methodSignature, methodStatus);
     }
-    return methodStatus;
+    synchronized (this) {
+      myMethodStatus[method] = methodStatus;
+    }
+    return (int) methodStatus;
   }
 
   public String toString() {
@@ -190,14 +454,12 @@ public class ClassData implements CoverageData {
   }
 
   public void initLineMask(LineData[] lines) {
+    final LineTable table = myLines;
     if (myLineMask == null) {
-      myLineMask = new int[myLinesArray != null ? Math.max(lines.length, myLinesArray.length) : lines.length];
-      if (myLinesArray != null) {
-        for (int i = 0; i < myLinesArray.length; i++) {
-          final LineData data = myLinesArray[i];
-          if (data != null) {
-            myLineMask[i] = data.getHits();
-          }
+      myLineMask = new int[table != null ? Math.max(lines.length, table.length()) : lines.length];
+      if (table != null) {
+        for (int slot = 0; slot < table.size(); slot++) {
+          myLineMask[table.getLine(slot)] = table.getHits(slot);
         }
       }
     } else {
@@ -215,11 +477,41 @@ public class ClassData implements CoverageData {
   }
 
   public void setLines(LineData[] lines) {
-    if (myLinesArray == null) {
-      myLinesArray = lines;
+    mergeLines(lines);
+  }
+
+  /**
+   * Same as {@link #setLines(LineData[])} for lines sorted by line number without gaps for missing lines,
+   * so that an array is not sized by the greatest line number.
+   */
+  public synchronized void setSortedLines(LineData[] lines) {
+    if (myLines == null) {
+      myLines = LineTable.createSorted(lines, this);
+    } else if (canMergeSorted(myLines, lines)) {
+      final LineTable table = myLines;
+      for (LineData line : lines) {
+        mergeLine(table, table.getSlot(line.getLineNumber()), line);
+      }
+      resetMethodStatus();
     } else {
-      mergeLines(lines);
+      int length = 0;
+      for (LineData line : lines) {
+        length = Math.max(length, line.getLineNumber() + 1);
+      }
+      final LineData[] linesArray = new LineData[length];
+      for (LineData line : lines) {
+        linesArray[line.getLineNumber()] = line;
+      }
+      mergeLines(linesArray);
+    }
+  }
+
+  private static boolean canMergeSorted(LineTable table, LineData[] lines) {
+    for (LineData line : lines) {
+      final int slot = table.getSlot(line.getLineNumber());
+      if (slot < 0 || !table.canMerge(slot, line)) return false;
     }
+    return true;
   }
 
   private int maxSourceLineNumber(LineMapData[] linesMap) {
@@ -235,24 +527,26 @@ public class ClassData implements CoverageData {
   public void checkLineMappings(LineMapData[] linesMap, ClassData classData) {
     if (linesMap != null) {
       LineData[] result;
+      final LineData[] targetLines = classData.toLineArray();
       try {
         int maxMappedSourceLineNumber = maxSourceLineNumber(linesMap);
-        if (classData == this || myLinesArray == null) {
+        final LineData[] linesArray = classData == this ? targetLines : toLineArray();
+        if (classData == this || linesArray == null) {
           result = new LineData[1 + maxMappedSourceLineNumber];
         } else {
-          int size = Math.max(1 + maxMappedSourceLineNumber, myLinesArray.length);
+          int size = Math.max(1 + maxMappedSourceLineNumber, linesArray.length);
           result = new LineData[size];
-          copyCurrentLineData(result);
+          copyCurrentLineData(linesArray, result);
         }
 
         for (final LineMapData mapData : linesMap) {
           if (mapData != null) {
             int sourceLineNumber = mapData.getSourceLineNumber();
             if (result[sourceLineNumber] == null) {
-              result[sourceLineNumber] = classData.createSourceLineData(mapData);
+              result[sourceLineNumber] = createSourceLineData(targetLines, mapData);
             }
             for (int i = mapData.getTargetMinLine(); i <= mapData.getTargetMaxLine(); i++) {
-              classData.mergeTargetIntoSource(result[sourceLineNumber], i);
+              mergeTargetIntoSource(targetLines, classData.myLineMask, result[sourceLineNumber], i);
             }
           }
         }
@@ -261,39 +555,42 @@ public class ClassData implements CoverageData {
         ErrorReporter.reportError("Error creating line mappings for " + classData.getName(), e);
         return;
       }
-      myLinesArray = result;
+      if (classData != this && targetLines != null) {
+        classData.myLines = LineTable.create(targetLines, classData);
+      }
+      myLines = LineTable.create(result, this);
       myLineMask = null;
     }
   }
 
-  private void copyCurrentLineData(LineData[] result) {
-    System.arraycopy(myLinesArray, 0, result, 0, myLinesArray.length);
+  private void copyCurrentLineData(LineData[] linesArray, LineData[] result) {
+    System.arraycopy(linesArray, 0, result, 0, linesArray.length);
     if (myLineMask == null) return;
-    for (int i = 0; i < myLinesArray.length; i++) {
+    for (int i = 0; i < linesArray.length; i++) {
       if (result[i] != null) {
         result[i].setHits(result[i].getHits() + myLineMask[i]);
       }
     }
   }
 
-  private LineData createSourceLineData(LineMapData lineMapData) {
+  private static LineData createSourceLineData(LineData[] targetLines, LineMapData lineMapData) {
     int i = lineMapData.getTargetMinLine();
-    if (myLinesArray == null || i >= myLinesArray.length) return null;
-    final LineData targetLineData = getLineData(i);
+    if (targetLines == null || i >= targetLines.length) return null;
+    final LineData targetLineData = targetLines[i];
     if (targetLineData == null) return null;
     return new LineData(lineMapData.getSourceLineNumber(), targetLineData.getMethodSignature());
   }
 
-  private void mergeTargetIntoSource(LineData source, int targetLineNumber) {
+  private static void mergeTargetIntoSource(LineData[] targetLines, int[] targetLineMask, LineData source, int targetLineNumber) {
     if (source != null) {
-      if (myLinesArray == null || targetLineNumber >= myLinesArray.length) return;
-      LineData targetLineData = getLineData(targetLineNumber);
+      if (targetLines == null || targetLineNumber >= targetLines.length) return;
+      LineData targetLineData = targetLines[targetLineNumber];
       if (targetLineData != null) {
         source.merge(targetLineData);
-        myLinesArray[targetLineNumber] = null;
-        if (myLineMask != null) {
-          source.setHits(source.getHits() + myLineMask[targetLineNumber]);
-          myLineMask[targetLineNumber] = 0;
+        targetLines[targetLineNumber] = null;
+        if (targetLineMask != null) {
+          source.setHits(source.getHits() + targetLineMask[targetLineNumber]);
+          targetLineMask[targetLineNumber] = 0;
         }
       }
     }
@@ -307,8 +604,125 @@ public class ClassData implements CoverageData {
     return mySource;
   }
     
-  public int[] touchLines(int[] lines) { //todo
-      myLineMask = lines;
-      return lines;
+  /**
+   * Registers the layout of a version of the class, which gets hits arrays of its own, see {@link ProbeHits}.
+   * A layout with the same id is registered once.
+   */
+  public synchronized void setProbeLayout(ProbeLayout probeLayout) {
+    if (getProbeHits(probeLayout.getId()) != null) return;
+    final int count = myProbeHits == null ? 0 : myProbeHits.length;
+    final ProbeHits[] probeHits = new ProbeHits[count + 1];
+    if (myProbeHits != null) {
+      System.arraycopy(myProbeHits, 0, probeHits, 0, count);
+    }
+    probeHits[count] = new ProbeHits(probeLayout);
+    myProbeHits = probeHits;
+  }
+
+  private ProbeHits getProbeHits(int layoutId) {
+    if (myProbeHits == null) return null;
+    for (ProbeHits probeHits : myProbeHits) {
+      if (probeHits.getLayout().getId() == layoutId) return probeHits;
+    }
+    return null;
+  }
+
+  /**
+   * Hits array of the class version instrumented with the layout, see {@link #setProbeLayout(ProbeLayout)}.
+   * The same array is returned when the version is loaded by several class loaders.
+   *
+   * @return null if no layout with the id is registered
+   */
+  public synchronized int[] getOrCreateHits(int layoutId) {
+    final ProbeHits probeHits = getProbeHits(layoutId);
+    return probeHits != null ? probeHits.getOrCreateHits() : null;
+  }
+
+  /**
+   * Boolean counterpart of {@link #getOrCreateHits(int)}: instrumented code only marks a slot as touched.
+   */
+  public synchronized boolean[] getOrCreateHitFlags(int layoutId) {
+    final ProbeHits probeHits = getProbeHits(layoutId);
+    return probeHits != null ? probeHits.getOrCreateHitFlags() : null;
+  }
+
+  /**
+   * Per thread counterpart of {@link #getOrCreateHits(int)}.
+   */
+  public synchronized Object getOrCreateThreadHits(int layoutId) {
+    final ProbeHits probeHits = getProbeHits(layoutId);
+    return probeHits != null ? probeHits.getOrCreateThreadHits() : null;
+  }
+
+  /**
+   * Adds hits collected in the hits arrays since the previous call into lines, jumps and switches.
+   * The hits arrays themselves are never reset, as the instrumented code may increment them concurrently.
+   * Touched flags are counted as a single hit.
+   */
+  public synchronized void applyHits() {
+    final LineTable table = myLines;
+    if (myProbeHits != null && table != null) {
+      for (ProbeHits probeHits : myProbeHits) {
+        probeHits.apply(table);
+      }
+    }
+  }
+
+  /**
+   * Copy of the class coverage collected so far, safe to save while the class is still running.
+   * Hits made concurrently with the snapshot are either in the copy or left for the next one,
+   * only with <code>reset</code> the hits made between reading and resetting a counter may be lost.
+   *
+   * @param reset whether hits of this class should be reset after copying
+   */
+  public synchronized ClassData createSnapshot(boolean reset) {
+    applyHits();
+    final ClassData snapshot = new ClassData(myClassName);
+    snapshot.mySource = mySource;
+    final LineTable table = myLines;
+    if (table == null) return snapshot;
+    if (myMethods != null) {
+      snapshot.myMethods = myMethods.clone();
+      snapshot.myMethodStatus = new byte[myMethodStatus.length];
+      Arrays.fill(snapshot.myMethodStatus, (byte) -1);
+      snapshot.myMethodCount = myMethodCount;
+      if (myMethodIndices != null) {
+        snapshot.myMethodIndices = new HashMap<String, Integer>(myMethodIndices);
+      }
+    }
+    final LineTable lines = table.copy();
+    snapshot.myLines = lines;
+    if (myLineMask != null) {
+      for (int slot = 0; slot < lines.size(); slot++) {
+        final int line = lines.getLine(slot);
+        if (line >= myLineMask.length) continue;
+        // the mask already counts the hits of the table, see initLineMask and applyLineMask
+        lines.setHits(slot, myLineMask[line]);
+      }
+    }
+    if (reset) {
+      resetAppliedHits(table);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Resets hits of this class without copying them, unlike {@link #createSnapshot(boolean)}.
+   */
+  public synchronized void resetHits() {
+    applyHits();
+    final LineTable table = myLines;
+    if (table == null) return;
+    resetAppliedHits(table);
+  }
+
+  private void resetAppliedHits(LineTable table) {
+    table.resetHits();
+    if (myLineMask != null) Arrays.fill(myLineMask, 0);
+    if (myProbeHits != null) {
+      for (ProbeHits probeHits : myProbeHits) {
+        probeHits.resetFlags();
+      }
+    }
   }
 }
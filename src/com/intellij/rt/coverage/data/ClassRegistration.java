@@ -0,0 +1,198 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Changes which the instrumenter makes to {@link ProjectData} while visiting a class:
+ * source file, line mappings, lines with their jumps and switches and the probe layout.
+ * Only the structure of the lines is kept, so the class may be registered again with zero hits
+ * when its instrumented bytes are taken from a cache or were instrumented offline.
+ * <p>
+ * This class is a part of the offline coverage runtime, so it must not depend on ASM or trove.
+ */
+public class ClassRegistration {
+  private final String myClassName;
+  private final String mySource;
+  private final FileMapData[] myLineMaps;
+  private final String myOuterClassName;
+  private final LineData[] myLines;
+  private final ProbeLayout myProbeLayout;
+
+  /**
+   * @param lines lines sorted by line number, see {@link ClassData#setSortedLines(LineData[])}
+   */
+  public ClassRegistration(String className, String source, FileMapData[] lineMaps, String outerClassName,
+                           LineData[] lines, ProbeLayout probeLayout) {
+    myClassName = className;
+    mySource = source;
+    myLineMaps = lineMaps;
+    myOuterClassName = outerClassName;
+    myLines = lines;
+    myProbeLayout = probeLayout;
+  }
+
+  public String getClassName() {
+    return myClassName;
+  }
+
+  /**
+   * Repeats the changes of the instrumentation in <code>projectData</code>.
+   */
+  public void register(ProjectData projectData) {
+    final ClassData classData = projectData.getOrCreateClassData(myClassName);
+    if (mySource != null) {
+      classData.setSource(mySource);
+    }
+    if (myLineMaps != null) {
+      projectData.addLineMaps(myClassName, myLineMaps);
+    }
+    if (myOuterClassName != null) {
+      projectData.getOrCreateClassData(myOuterClassName).setSource(classData.getSource());
+    }
+    if (myLines == null) return;
+    classData.setSortedLines(copyLines());
+    if (myProbeLayout != null) {
+      classData.setProbeLayout(myProbeLayout);
+    }
+  }
+
+  private LineData[] copyLines() {
+    final LineData[] lines = new LineData[myLines.length];
+    for (int i = 0; i < myLines.length; i++) {
+      final LineData line = myLines[i];
+      final LineData copy = new LineData(line.getLineNumber(), line.getMethodSignature());
+      final int jumps = line.jumpsCount();
+      for (int jump = 0; jump < jumps; jump++) {
+        copy.addJump(jump);
+      }
+      final SwitchData[] switches = line.getSwitches();
+      if (switches != null) {
+        for (int s = 0; s < switches.length; s++) {
+          copy.addSwitch(s, switches[s].getKeys());
+        }
+      }
+      copy.fillArrays();
+      lines[i] = copy;
+    }
+    return lines;
+  }
+
+  public void save(DataOutput os) throws IOException {
+    writeNullable(os, mySource);
+    os.writeBoolean(myLineMaps != null);
+    if (myLineMaps != null) {
+      CoverageIOUtil.writeINT(os, myLineMaps.length);
+      for (FileMapData lineMap : myLineMaps) {
+        CoverageIOUtil.writeUTF(os, lineMap.getClassName());
+        final LineMapData[] lines = lineMap.getLines();
+        CoverageIOUtil.writeINT(os, lines.length);
+        for (LineMapData line : lines) {
+          os.writeBoolean(line != null);
+          if (line == null) continue;
+          CoverageIOUtil.writeINT(os, line.getSourceLineNumber());
+          CoverageIOUtil.writeINT(os, line.getTargetMinLine());
+          CoverageIOUtil.writeINT(os, line.getTargetMaxLine());
+        }
+      }
+    }
+    writeNullable(os, myOuterClassName);
+    os.writeBoolean(myLines != null);
+    if (myLines != null) {
+      CoverageIOUtil.writeINT(os, myLines.length);
+      for (LineData line : myLines) {
+        CoverageIOUtil.writeINT(os, line.getLineNumber());
+        CoverageIOUtil.writeUTF(os, line.getMethodSignature());
+        CoverageIOUtil.writeINT(os, line.jumpsCount());
+        final SwitchData[] switches = line.getSwitches();
+        CoverageIOUtil.writeINT(os, switches != null ? switches.length : 0);
+        if (switches != null) {
+          for (SwitchData switchData : switches) {
+            final int[] keys = switchData.getKeys();
+            CoverageIOUtil.writeINT(os, keys.length);
+            for (int key : keys) {
+              os.writeInt(key);
+            }
+          }
+        }
+      }
+    }
+    os.writeBoolean(myProbeLayout != null);
+    if (myProbeLayout != null) {
+      myProbeLayout.save(os);
+    }
+  }
+
+  public static ClassRegistration load(DataInput in, String className) throws IOException {
+    final String source = readNullable(in);
+    FileMapData[] lineMaps = null;
+    if (in.readBoolean()) {
+      lineMaps = new FileMapData[CoverageIOUtil.readINT(in)];
+      for (int i = 0; i < lineMaps.length; i++) {
+        final String mappedClassName = CoverageIOUtil.readUTFFast(in);
+        final LineMapData[] lines = new LineMapData[CoverageIOUtil.readINT(in)];
+        for (int l = 0; l < lines.length; l++) {
+          if (!in.readBoolean()) continue;
+          final int sourceLine = CoverageIOUtil.readINT(in);
+          final int targetMinLine = CoverageIOUtil.readINT(in);
+          lines[l] = new LineMapData(sourceLine, targetMinLine, CoverageIOUtil.readINT(in));
+        }
+        lineMaps[i] = new FileMapData(mappedClassName, lines);
+      }
+    }
+    final String outerClassName = readNullable(in);
+    LineData[] lines = null;
+    if (in.readBoolean()) {
+      lines = new LineData[CoverageIOUtil.readINT(in)];
+      for (int i = 0; i < lines.length; i++) {
+        final LineData line = new LineData(CoverageIOUtil.readINT(in), CoverageIOUtil.readUTFFast(in));
+        final int jumps = CoverageIOUtil.readINT(in);
+        for (int jump = 0; jump < jumps; jump++) {
+          line.addJump(jump);
+        }
+        final int switches = CoverageIOUtil.readINT(in);
+        for (int s = 0; s < switches; s++) {
+          final int[] keys = new int[CoverageIOUtil.readINT(in)];
+          for (int k = 0; k < keys.length; k++) {
+            keys[k] = in.readInt();
+          }
+          line.addSwitch(s, keys);
+        }
+        line.fillArrays();
+        lines[i] = line;
+      }
+    }
+    final ProbeLayout probeLayout = in.readBoolean() ? ProbeLayout.load(in) : null;
+    return new ClassRegistration(className, source, lineMaps, outerClassName, lines, probeLayout);
+  }
+
+  private static void writeNullable(DataOutput os, String value) throws IOException {
+    os.writeBoolean(value != null);
+    if (value != null) {
+      CoverageIOUtil.writeUTF(os, value);
+    }
+  }
+
+  private static String readNullable(DataInput in) throws IOException {
+    return in.readBoolean() ? CoverageIOUtil.readUTFFast(in) : null;
+  }
+}
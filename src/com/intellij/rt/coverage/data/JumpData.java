@@ -48,8 +48,8 @@ public class JumpData implements CoverageData {
 
   public void merge(final CoverageData data) {
     final JumpData jumpData = (JumpData)data;
-    myTrueHits += jumpData.myTrueHits;
-    myFalseHits += jumpData.myFalseHits;
+    myTrueHits += jumpData.getTrueHits();
+    myFalseHits += jumpData.getFalseHits();
   }
 
   public void setTrueHits(final int trueHits) {
@@ -34,6 +34,17 @@ public class JumpsAndSwitches implements CoverageData {
   private List<SwitchData> mySwitches;
   private SwitchData[] mySwitchesArray;
 
+  public JumpsAndSwitches() {
+  }
+
+  /**
+   * Jumps and switches which are already filled, see {@link #fillArrays()}.
+   */
+  JumpsAndSwitches(JumpData[] jumps, SwitchData[] switches) {
+    myJumpsArray = jumps;
+    mySwitchesArray = switches;
+  }
+
   public JumpData[] getJumps() {
     return myJumpsArray;
   }
@@ -29,6 +29,7 @@ public class LineData implements CoverageData {
 
   private byte myStatus = -1;
   private String myUniqueTestName = null;
+  private int myUniqueTestId = 0;
   private boolean myMayBeUnique = true;
 
   private JumpsAndSwitches myJumpsAndSwitches;
@@ -40,7 +41,7 @@ public class LineData implements CoverageData {
 
   public void touch() {
     myHits++;
-    setTestName(ProjectData.getCurrentTestName());
+    setTestId(ProjectData.getCurrentTestId());
   }
 
   public int getHits() {
@@ -96,7 +97,8 @@ public class LineData implements CoverageData {
 
   public void save(final DataOutputStream os) throws IOException {
     CoverageIOUtil.writeINT(os, myLineNumber);
-    CoverageIOUtil.writeUTF(os, myUniqueTestName != null ? myUniqueTestName : "");
+    final String testName = getUniqueTestName();
+    CoverageIOUtil.writeUTF(os, testName != null ? testName : "");
     CoverageIOUtil.writeINT(os, myHits);
     if (myHits > 0) {
       if (myJumpsAndSwitches != null) {
@@ -109,12 +111,12 @@ public class LineData implements CoverageData {
 
   public void merge(final CoverageData data) {
     LineData lineData = (LineData)data;
-    myHits += lineData.myHits;
-    if (myJumpsAndSwitches != null || lineData.myJumpsAndSwitches != null) {
+    myHits += lineData.getHits();
+    if (myJumpsAndSwitches != null || lineData.getJumps() != null || lineData.getSwitches() != null) {
       getOrCreateJumpsAndSwitches().merge(lineData.getOrCreateJumpsAndSwitches());
     }
-    if (lineData.myMethodSignature != null) {
-      myMethodSignature = lineData.myMethodSignature;
+    if (lineData.getMethodSignature() != null) {
+      myMethodSignature = lineData.getMethodSignature();
     }
     if (myStatus != -1) {
       byte status = (byte) lineData.getStatus();
@@ -188,6 +190,13 @@ public class LineData implements CoverageData {
     myStatus = status;
   }
 
+  /**
+   * @return status if it is already known, -1 otherwise
+   */
+  byte getCachedStatus() {
+    return myStatus;
+  }
+
   public void setTrueHits(final int jumpNumber, final int trueHits) {
     addJump(jumpNumber).setTrueHits(trueHits);
   }
@@ -246,6 +255,7 @@ public class LineData implements CoverageData {
 
   public void setTestName(String testName) {
     if (testName != null) {
+      resolveTestName();
       if (myUniqueTestName == null) {
         if (myMayBeUnique) myUniqueTestName = testName;
       } else if (!myUniqueTestName.equals(testName)) {
@@ -255,8 +265,63 @@ public class LineData implements CoverageData {
     }
   }
 
+  private void setTestId(int testId) {
+    if (testId == 0 || testId == myUniqueTestId || !myMayBeUnique) return;
+    if (myUniqueTestId == 0 && myUniqueTestName == null) {
+      myUniqueTestId = testId;
+    } else if (myUniqueTestId != 0) {
+      myUniqueTestId = 0;
+      myMayBeUnique = false;
+    } else if (myUniqueTestName.equals(ProjectData.getTestName(testId))) {
+      // test name was loaded with initial coverage data
+      myUniqueTestId = testId;
+      myUniqueTestName = null;
+    } else {
+      myUniqueTestName = null;
+      myMayBeUnique = false;
+    }
+  }
+
+  /**
+   * Replaces the id of the unique test with its name, names are resolved lazily as the id is compared on every hit.
+   */
+  private void resolveTestName() {
+    if (myUniqueTestId != 0) {
+      myUniqueTestName = ProjectData.getTestName(myUniqueTestId);
+      myUniqueTestId = 0;
+    }
+  }
+
+  /**
+   * @return id of the only test which covered the line, 0 if it is unknown and -1 if the line is covered by several tests
+   */
+  int getUniqueTestId() {
+    return myMayBeUnique ? myUniqueTestId : -1;
+  }
+
+  /**
+   * @return name of the only test which covered the line, as loaded with initial coverage data
+   */
+  String getLoadedTestName() {
+    return myUniqueTestName;
+  }
+
+  /**
+   * Restores the state returned by {@link #getUniqueTestId()} and {@link #getLoadedTestName()}.
+   */
+  void setUniqueTest(int testId, String testName) {
+    myMayBeUnique = testId != -1;
+    myUniqueTestId = myMayBeUnique ? testId : 0;
+    myUniqueTestName = myMayBeUnique ? testName : null;
+  }
+
+  private String getUniqueTestName() {
+    return myUniqueTestId != 0 ? ProjectData.getTestName(myUniqueTestId) : myUniqueTestName;
+  }
+
   public boolean isCoveredByOneTest() {
-    return myUniqueTestName != null && myUniqueTestName.length() > 0;
+    final String testName = getUniqueTestName();
+    return testName != null && testName.length() > 0;
   }
 
   public void removeJump(final int jump) {
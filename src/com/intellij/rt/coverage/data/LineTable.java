@@ -0,0 +1,683 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ProjectDataWriter;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Coverage of the lines of a class kept in parallel arrays indexed by slot, so that a line costs a few array elements
+ * instead of a {@link LineData} with its jumps and switches. Slots are assigned in the order of line numbers,
+ * methods are referenced by their index in the method table of the class.
+ * <p>
+ * Counters of jumps and switches of a line are packed into a single array: the number of jumps, the number of switches,
+ * true and false hits of every jump, then for every switch the number of keys, default hits, the keys and their hits.
+ * <p>
+ * Lines are fixed when the table is created. Counters of existing lines are merged in place, a class gets a new table
+ * only when lines, jumps or switches are added, so the instrumented code always sees consistent arrays.
+ * <p>
+ * A line is found by binary search over the lines of the slots. A direct lookup array indexed by line is added
+ * only when lines are dense enough, so classes with huge line numbers, e.g. Kotlin inline functions mapped
+ * after the end of the file, take memory proportional to the number of their lines.
+ */
+final class LineTable {
+  private static final byte UNKNOWN = -1;
+  private static final int NOT_UNIQUE = -1;
+  private static final int BRANCHES_HEADER = 2;
+  private static final int DENSE_FACTOR = 4;
+  private static final int DENSE_MIN_LENGTH = 64;
+
+  private final int myLength;
+  private final int[] myLines;
+  private final int[] mySlots;
+  private final int[] myLineNumbers;
+  private final int[] myMethods;
+  private final int[] myHits;
+  private final byte[] myStatus;
+  private final int[][] myBranches;
+  private int[] myTestIds;
+  private String[] myTestNames;
+
+  private LineTable(int length, int[] lines, int[] slots, int[] lineNumbers,
+                    int[] methods, int[] hits, byte[] status, int[][] branches) {
+    myLength = length;
+    myLines = lines;
+    mySlots = slots;
+    myLineNumbers = lineNumbers;
+    myMethods = methods;
+    myHits = hits;
+    myStatus = status;
+    myBranches = branches;
+  }
+
+  /**
+   * @param lines lines by line number, which are copied into the table. Line numbers are kept only
+   *              if a line is not at the index of its number.
+   */
+  static LineTable create(LineData[] lines, ClassData classData) {
+    int count = 0;
+    for (LineData line : lines) {
+      if (line != null) count++;
+    }
+    final LineData[] sortedLines = new LineData[count];
+    final int[] indices = new int[count];
+    int slot = 0;
+    for (int index = 0; index < lines.length; index++) {
+      if (lines[index] == null) continue;
+      sortedLines[slot] = lines[index];
+      indices[slot++] = index;
+    }
+    return create(sortedLines, indices, lines.length, classData);
+  }
+
+  /**
+   * @param lines lines sorted by line number without gaps for missing lines, which are copied into the table
+   */
+  static LineTable createSorted(LineData[] lines, ClassData classData) {
+    final int[] indices = new int[lines.length];
+    for (int slot = 0; slot < lines.length; slot++) {
+      indices[slot] = lines[slot].getLineNumber();
+      if (slot > 0 && indices[slot] <= indices[slot - 1]) {
+        throw new IllegalArgumentException("Lines are not sorted: " + indices[slot - 1] + ", " + indices[slot]);
+      }
+    }
+    return create(lines, indices, lines.length == 0 ? 0 : indices[lines.length - 1] + 1, classData);
+  }
+
+  /**
+   * @param indices ascending indices of the lines, by which they are looked up
+   * @param length  size of the line numbers range
+   */
+  private static LineTable create(LineData[] lines, int[] indices, int length, ClassData classData) {
+    final int count = lines.length;
+    boolean hasBranches = false;
+    boolean hasLineNumbers = false;
+    for (int slot = 0; slot < count; slot++) {
+      final LineData line = lines[slot];
+      hasBranches |= line.getJumps() != null || line.getSwitches() != null;
+      hasLineNumbers |= line.getLineNumber() != indices[slot];
+    }
+    final boolean dense = length <= DENSE_MIN_LENGTH || length <= DENSE_FACTOR * count;
+    final LineTable table = new LineTable(length, indices, dense ? new int[length] : null, hasLineNumbers ? new int[count] : null,
+        new int[count], new int[count], new byte[count], hasBranches ? new int[count][] : null);
+    for (int slot = 0; slot < count; slot++) {
+      final LineData line = lines[slot];
+      if (dense) {
+        table.mySlots[indices[slot]] = slot + 1;
+      }
+      if (hasLineNumbers) {
+        table.myLineNumbers[slot] = line.getLineNumber();
+      }
+      table.myMethods[slot] = classData.getMethodIndex(line.getMethodSignature());
+      table.myHits[slot] = line.getHits();
+      table.myStatus[slot] = line.getCachedStatus();
+      if (hasBranches) {
+        table.myBranches[slot] = pack(line.getJumps(), line.getSwitches());
+      }
+      final int testId = line.getUniqueTestId();
+      final String testName = line.getLoadedTestName();
+      if (testId != 0 || testName != null) {
+        table.createTests();
+        table.myTestIds[slot] = testId;
+        table.myTestNames[slot] = testName;
+      }
+    }
+    return table;
+  }
+
+  private static int[] pack(JumpData[] jumps, SwitchData[] switches) {
+    final int jumpsCount = jumps == null ? 0 : jumps.length;
+    final int switchesCount = switches == null ? 0 : switches.length;
+    if (jumpsCount == 0 && switchesCount == 0) return null;
+    int size = BRANCHES_HEADER + 2 * jumpsCount;
+    for (int s = 0; s < switchesCount; s++) {
+      size += 2 + (switches[s] == null ? 0 : 2 * switches[s].getKeys().length);
+    }
+    final int[] branches = new int[size];
+    branches[0] = jumpsCount;
+    branches[1] = switchesCount;
+    int offset = BRANCHES_HEADER;
+    for (int j = 0; j < jumpsCount; j++) {
+      if (jumps[j] != null) {
+        branches[offset] = jumps[j].getTrueHits();
+        branches[offset + 1] = jumps[j].getFalseHits();
+      }
+      offset += 2;
+    }
+    for (int s = 0; s < switchesCount; s++) {
+      final SwitchData switchData = switches[s];
+      if (switchData == null) {
+        offset += 2;
+        continue;
+      }
+      final int[] keys = switchData.getKeys();
+      final int[] hits = switchData.getHits();
+      branches[offset] = keys.length;
+      branches[offset + 1] = switchData.getDefaultHits();
+      System.arraycopy(keys, 0, branches, offset + 2, keys.length);
+      System.arraycopy(hits, 0, branches, offset + 2 + keys.length, Math.min(hits.length, keys.length));
+      offset += 2 + 2 * keys.length;
+    }
+    return branches;
+  }
+
+  /**
+   * Copy of the table with the same lines, which is not affected by the hits of this table.
+   */
+  LineTable copy() {
+    int[][] branches = null;
+    if (myBranches != null) {
+      branches = new int[myBranches.length][];
+      for (int slot = 0; slot < branches.length; slot++) {
+        if (myBranches[slot] != null) {
+          branches[slot] = myBranches[slot].clone();
+        }
+      }
+    }
+    final LineTable copy = new LineTable(myLength, myLines, mySlots, myLineNumbers, myMethods, myHits.clone(), new byte[myStatus.length], branches);
+    Arrays.fill(copy.myStatus, UNKNOWN);
+    if (myTestIds != null) {
+      copy.myTestIds = myTestIds.clone();
+      copy.myTestNames = myTestNames.clone();
+    }
+    return copy;
+  }
+
+  /**
+   * Size of the line numbers range, the greatest line number is <code>length() - 1</code>.
+   */
+  int length() {
+    return myLength;
+  }
+
+  /**
+   * @return index of the line in the table, which is its number unless the line was added at another index
+   */
+  int getLine(int slot) {
+    return myLines[slot];
+  }
+
+  int getLineNumber(int slot) {
+    return myLineNumbers == null ? myLines[slot] : myLineNumbers[slot];
+  }
+
+  int size() {
+    return myHits.length;
+  }
+
+  /**
+   * @return slot of the line or -1 if the class has no such line
+   */
+  int getSlot(int line) {
+    if (line < 0 || line >= myLength) return -1;
+    if (mySlots != null) return mySlots[line] - 1;
+    final int slot = Arrays.binarySearch(myLines, line);
+    return slot >= 0 ? slot : -1;
+  }
+
+  int getMethod(int slot) {
+    return myMethods[slot];
+  }
+
+  int getHits(int slot) {
+    return myHits[slot];
+  }
+
+  void setHits(int slot, int hits) {
+    myHits[slot] = hits;
+  }
+
+  void setMethod(int slot, int method) {
+    myMethods[slot] = method;
+  }
+
+  void touch(int slot) {
+    myHits[slot]++;
+    setTestId(slot, ProjectData.getCurrentTestId());
+  }
+
+  byte getCachedStatus(int slot) {
+    return myStatus[slot];
+  }
+
+  void setStatus(int slot, byte status) {
+    myStatus[slot] = status;
+  }
+
+  /**
+   * Same as {@link LineData#getStatus()}, the status is computed once.
+   */
+  int getStatus(int slot) {
+    if (myStatus[slot] != UNKNOWN) return myStatus[slot];
+    myStatus[slot] = computeStatus(slot);
+    return myStatus[slot];
+  }
+
+  private byte computeStatus(int slot) {
+    if (myHits[slot] == 0) return LineCoverage.NONE;
+    final int[] branches = getBranches(slot);
+    if (branches == null) return LineCoverage.FULL;
+    int offset = BRANCHES_HEADER;
+    for (int j = 0; j < branches[0]; j++, offset += 2) {
+      if (branches[offset] == 0 || branches[offset + 1] == 0) return LineCoverage.PARTIAL;
+    }
+    for (int s = 0; s < branches[1]; s++) {
+      final int keys = branches[offset];
+      if (branches[offset + 1] == 0) return LineCoverage.PARTIAL;
+      for (int k = 0; k < keys; k++) {
+        if (branches[offset + 2 + keys + k] == 0) return LineCoverage.PARTIAL;
+      }
+      offset += 2 + 2 * keys;
+    }
+    return LineCoverage.FULL;
+  }
+
+  /**
+   * Resets hits of all lines, their jumps and switches.
+   */
+  void resetHits() {
+    for (int slot = 0; slot < myHits.length; slot++) {
+      resetHits(slot);
+    }
+  }
+
+  void resetHits(int slot) {
+    myHits[slot] = 0;
+    myStatus[slot] = UNKNOWN;
+    final int[] branches = getBranches(slot);
+    if (branches != null) {
+      int offset = BRANCHES_HEADER;
+      for (int j = 0; j < branches[0]; j++, offset += 2) {
+        branches[offset] = 0;
+        branches[offset + 1] = 0;
+      }
+      for (int s = 0; s < branches[1]; s++) {
+        final int keys = branches[offset];
+        branches[offset + 1] = 0;
+        Arrays.fill(branches, offset + 2 + keys, offset + 2 + 2 * keys, 0);
+        offset += 2 + 2 * keys;
+      }
+    }
+  }
+
+  /**
+   * @return whether the line has no jumps, switches or switch keys which the slot does not have,
+   * so that it may be merged with {@link #merge(int, LineData)}
+   */
+  boolean canMerge(int slot, LineData line) {
+    final JumpData[] jumps = line.getJumps();
+    if (jumps != null && jumps.length > getJumpsCount(slot)) return false;
+    final SwitchData[] switches = line.getSwitches();
+    if (switches == null) return true;
+    if (switches.length > getSwitchesCount(slot)) return false;
+    for (int s = 0; s < switches.length; s++) {
+      if (switches[s] == null) continue;
+      if (switches[s].getHits().length > getBranches(slot)[getSwitchOffset(slot, s)]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Adds the counters of the line to the slot, the same as {@link LineData#merge(CoverageData)}.
+   */
+  void merge(int slot, LineData line) {
+    myHits[slot] += line.getHits();
+    myStatus[slot] = UNKNOWN;
+    final int[] branches = getBranches(slot);
+    final JumpData[] jumps = line.getJumps();
+    if (jumps != null) {
+      for (int j = 0; j < jumps.length; j++) {
+        if (jumps[j] == null) continue;
+        final int index = getJumpIndex(slot, j, true);
+        branches[index] += jumps[j].getTrueHits();
+        branches[index + 1] += jumps[j].getFalseHits();
+      }
+    }
+    final SwitchData[] switches = line.getSwitches();
+    if (switches != null) {
+      for (int s = 0; s < switches.length; s++) {
+        if (switches[s] == null) continue;
+        final int offset = getSwitchOffset(slot, s);
+        final int keys = branches[offset];
+        final int[] hits = switches[s].getHits();
+        branches[offset + 1] += switches[s].getDefaultHits();
+        for (int k = 0; k < hits.length; k++) {
+          branches[offset + 2 + keys + k] += hits[k];
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves hits made in <code>table</code> after it was copied into <code>copy</code> to this table,
+   * which replaced <code>table</code> while the instrumented code might still increment it.
+   */
+  void addHitsSince(LineTable table, LineTable copy) {
+    for (int slot = 0; slot < table.size(); slot++) {
+      final int newSlot = getSlot(table.getLine(slot));
+      if (newSlot < 0) continue;
+      final int hits = table.myHits[slot] - copy.myHits[slot];
+      if (hits != 0) {
+        myHits[newSlot] += hits;
+        myStatus[newSlot] = UNKNOWN;
+      }
+      final int[] branches = table.getBranches(slot);
+      if (branches == null) continue;
+      final int[] copied = copy.getBranches(slot);
+      for (int j = 0; j < table.getJumpsCount(slot); j++) {
+        final int index = table.getJumpIndex(slot, j, true);
+        final int newIndex = getJumpIndex(newSlot, j, true);
+        myBranches[newSlot][newIndex] += branches[index] - copied[index];
+        myBranches[newSlot][newIndex + 1] += branches[index + 1] - copied[index + 1];
+      }
+      for (int s = 0; s < table.getSwitchesCount(slot); s++) {
+        final int keys = branches[table.getSwitchOffset(slot, s)];
+        for (int k = -1; k < keys; k++) {
+          final int index = table.getSwitchIndex(slot, s, k);
+          final int newIndex = getSwitchIndex(newSlot, s, k);
+          if (newIndex >= 0) {
+            myBranches[newSlot][newIndex] += branches[index] - copied[index];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return packed counters of jumps and switches of the line, or null if the line has none
+   */
+  int[] getBranches(int slot) {
+    return myBranches == null ? null : myBranches[slot];
+  }
+
+  int getJumpsCount(int slot) {
+    final int[] branches = getBranches(slot);
+    return branches == null ? 0 : branches[0];
+  }
+
+  int getSwitchesCount(int slot) {
+    final int[] branches = getBranches(slot);
+    return branches == null ? 0 : branches[1];
+  }
+
+  /**
+   * @param hit direction of the jump in terms of {@link LineData#touchBranch(int, boolean)}
+   * @return index of the jump counter in {@link #getBranches(int)} or -1 if the line has no such jump
+   */
+  int getJumpIndex(int slot, int jump, boolean hit) {
+    final int[] branches = getBranches(slot);
+    if (branches == null || jump < 0 || jump >= branches[0]) return -1;
+    return BRANCHES_HEADER + 2 * jump + (hit ? 0 : 1);
+  }
+
+  /**
+   * @return index of the number of switch keys in {@link #getBranches(int)}, followed by default hits, keys and hits,
+   * or -1 if the line has no such switch
+   */
+  int getSwitchOffset(int slot, int switchNumber) {
+    final int[] branches = getBranches(slot);
+    if (branches == null || switchNumber < 0 || switchNumber >= branches[1]) return -1;
+    int offset = BRANCHES_HEADER + 2 * branches[0];
+    for (int s = 0; s < switchNumber; s++) {
+      offset += 2 + 2 * branches[offset];
+    }
+    return offset;
+  }
+
+  /**
+   * @param key index of the switch key, or -1 for the default branch
+   * @return index of the key counter in {@link #getBranches(int)} or -1 if the line has no such switch or key
+   */
+  int getSwitchIndex(int slot, int switchNumber, int key) {
+    final int offset = getSwitchOffset(slot, switchNumber);
+    if (offset < 0) return -1;
+    if (key == -1) return offset + 1;
+    final int keys = getBranches(slot)[offset];
+    return key >= 0 && key < keys ? offset + 2 + keys + key : -1;
+  }
+
+  void touchJump(int slot, int jump, boolean hit) {
+    final int index = getJumpIndex(slot, jump, hit);
+    if (index >= 0) {
+      myBranches[slot][index]++;
+    }
+  }
+
+  void touchSwitch(int slot, int switchNumber, int key) {
+    final int index = getSwitchIndex(slot, switchNumber, key);
+    if (index >= 0) {
+      myBranches[slot][index]++;
+    }
+  }
+
+  /**
+   * Counterpart of {@link LineData#getBranchData()}.
+   */
+  BranchData getBranchData(int slot) {
+    final int[] branches = getBranches(slot);
+    if (branches == null) return null;
+    int total = 0;
+    int covered = 0;
+    int offset = BRANCHES_HEADER;
+    for (int j = 0; j < branches[0]; j++, offset += 2) {
+      total++;
+      if (branches[offset] > 0 && branches[offset + 1] > 0) covered++;
+    }
+    for (int s = 0; s < branches[1]; s++) {
+      final int keys = branches[offset];
+      for (int k = 0; k < keys; k++) {
+        total++;
+        if (branches[offset + 2 + keys + k] > 0) covered++;
+      }
+      offset += 2 + 2 * keys;
+    }
+    return new BranchData(total, covered);
+  }
+
+  /**
+   * Writes the line in the format of {@link LineData#save(DataOutputStream)}.
+   */
+  void save(int slot, int line, DataOutputStream os) throws IOException {
+    CoverageIOUtil.writeINT(os, line);
+    final String testName = getUniqueTestName(slot);
+    CoverageIOUtil.writeUTF(os, testName != null ? testName : "");
+    CoverageIOUtil.writeINT(os, myHits[slot]);
+    if (myHits[slot] == 0) return;
+    final int[] branches = getBranches(slot);
+    if (branches == null) {
+      CoverageIOUtil.writeINT(os, 0);
+      CoverageIOUtil.writeINT(os, 0);
+      return;
+    }
+    CoverageIOUtil.writeINT(os, branches[0]);
+    int offset = BRANCHES_HEADER;
+    for (int j = 0; j < branches[0]; j++, offset += 2) {
+      CoverageIOUtil.writeINT(os, branches[offset]);
+      CoverageIOUtil.writeINT(os, branches[offset + 1]);
+    }
+    CoverageIOUtil.writeINT(os, branches[1]);
+    for (int s = 0; s < branches[1]; s++) {
+      final int keys = branches[offset];
+      CoverageIOUtil.writeINT(os, branches[offset + 1]);
+      CoverageIOUtil.writeINT(os, keys);
+      for (int k = 0; k < keys; k++) {
+        CoverageIOUtil.writeINT(os, branches[offset + 2 + k]);
+        CoverageIOUtil.writeINT(os, branches[offset + 2 + keys + k]);
+      }
+      offset += 2 + 2 * keys;
+    }
+  }
+
+  /**
+   * Writes the line in the compact format of {@link ClassData#saveCompact(DataOutputStream, com.intellij.rt.coverage.util.DictionaryLookup)}:
+   * the difference with the previous line number shifted left by {@link ProjectDataWriter#LINE_FLAGS_SIZE} together with the flags,
+   * then only the parts of the line which are present. Jumps and switches are written only for a covered line,
+   * the same as in {@link #save(int, int, DataOutputStream)}.
+   *
+   * @param testNames indices of the test names already written for the class, the first occurrence of a name
+   *                  is written after its index
+   */
+  void saveCompact(int slot, int lineDelta, Map<String, Integer> testNames, DataOutputStream os) throws IOException {
+    final int hits = myHits[slot];
+    final int[] branches = hits > 0 ? getBranches(slot) : null;
+    final String testName = getUniqueTestName(slot);
+    final boolean hasTest = testName != null && testName.length() > 0;
+    final int flags = (hits > 0 ? ProjectDataWriter.LINE_HITS : 0)
+                      | (branches != null ? ProjectDataWriter.LINE_BRANCHES : 0)
+                      | (hasTest ? ProjectDataWriter.LINE_TEST : 0);
+    CoverageIOUtil.writeINT(os, lineDelta << ProjectDataWriter.LINE_FLAGS_SIZE | flags);
+    if (hits > 0) {
+      CoverageIOUtil.writeINT(os, hits);
+    }
+    if (branches != null) {
+      CoverageIOUtil.writeINT(os, branches[0]);
+      int offset = BRANCHES_HEADER;
+      for (int j = 0; j < branches[0]; j++, offset += 2) {
+        CoverageIOUtil.writeINT(os, branches[offset]);
+        CoverageIOUtil.writeINT(os, branches[offset + 1]);
+      }
+      CoverageIOUtil.writeINT(os, branches[1]);
+      for (int s = 0; s < branches[1]; s++) {
+        final int keys = branches[offset];
+        CoverageIOUtil.writeINT(os, branches[offset + 1]);
+        CoverageIOUtil.writeINT(os, keys);
+        for (int k = 0; k < keys; k++) {
+          CoverageIOUtil.writeINT(os, branches[offset + 2 + k]);
+          CoverageIOUtil.writeINT(os, branches[offset + 2 + keys + k]);
+        }
+        offset += 2 + 2 * keys;
+      }
+    }
+    if (hasTest) {
+      final Integer index = testNames.get(testName);
+      if (index != null) {
+        CoverageIOUtil.writeINT(os, index);
+      } else {
+        CoverageIOUtil.writeINT(os, testNames.size());
+        CoverageIOUtil.writeUTF(os, testName);
+        testNames.put(testName, testNames.size());
+      }
+    }
+  }
+
+  /**
+   * Detached copy of the line with its jumps and switches.
+   */
+  LineData toLineData(int slot, int line, String methodSignature) {
+    final LineData lineData = new LineData(line, methodSignature);
+    lineData.setHits(myHits[slot]);
+    final int[] branches = getBranches(slot);
+    if (branches != null) {
+      int offset = BRANCHES_HEADER;
+      for (int j = 0; j < branches[0]; j++, offset += 2) {
+        final JumpData jump = lineData.addJump(j);
+        jump.setTrueHits(branches[offset]);
+        jump.setFalseHits(branches[offset + 1]);
+      }
+      for (int s = 0; s < branches[1]; s++) {
+        final int keys = branches[offset];
+        final int[] keyValues = new int[keys];
+        final int[] hits = new int[keys];
+        System.arraycopy(branches, offset + 2, keyValues, 0, keys);
+        System.arraycopy(branches, offset + 2 + keys, hits, 0, keys);
+        final SwitchData switchData = lineData.addSwitch(s, keyValues);
+        switchData.setDefaultHits(branches[offset + 1]);
+        switchData.setKeysAndHits(keyValues, hits);
+        offset += 2 + 2 * keys;
+      }
+      lineData.fillArrays();
+    }
+    lineData.setStatus(myStatus[slot]);
+    if (myTestIds != null) {
+      lineData.setUniqueTest(myTestIds[slot], myTestNames[slot]);
+    }
+    return lineData;
+  }
+
+  /**
+   * @return id of the only test which covered the line, 0 if it is unknown and -1 if the line is covered by several tests
+   */
+  int getUniqueTestId(int slot) {
+    final int[] testIds = myTestIds;
+    return testIds == null ? 0 : testIds[slot];
+  }
+
+  /**
+   * @return name of the only test which covered the line, as loaded with initial coverage data
+   */
+  String getLoadedTestName(int slot) {
+    final String[] testNames = myTestNames;
+    return testNames == null ? null : testNames[slot];
+  }
+
+  String getUniqueTestName(int slot) {
+    final int testId = getUniqueTestId(slot);
+    return testId > 0 ? ProjectData.getTestName(testId) : getLoadedTestName(slot);
+  }
+
+  /**
+   * Same as {@link LineData#setTestName(String)}.
+   */
+  void setTestName(int slot, String testName) {
+    if (testName == null) return;
+    createTests();
+    if (myTestIds[slot] > 0) {
+      myTestNames[slot] = ProjectData.getTestName(myTestIds[slot]);
+      myTestIds[slot] = 0;
+    }
+    if (myTestNames[slot] == null) {
+      if (myTestIds[slot] != NOT_UNIQUE) myTestNames[slot] = testName;
+    } else if (!myTestNames[slot].equals(testName)) {
+      myTestNames[slot] = null;
+      myTestIds[slot] = NOT_UNIQUE;
+    }
+  }
+
+  private void setTestId(int slot, int testId) {
+    if (testId == 0) return;
+    createTests();
+    final int uniqueTestId = myTestIds[slot];
+    if (testId == uniqueTestId || uniqueTestId == NOT_UNIQUE) return;
+    final String uniqueTestName = myTestNames[slot];
+    if (uniqueTestId == 0 && uniqueTestName == null) {
+      myTestIds[slot] = testId;
+    } else if (uniqueTestId != 0) {
+      myTestIds[slot] = NOT_UNIQUE;
+    } else if (uniqueTestName.equals(ProjectData.getTestName(testId))) {
+      // test name was loaded with initial coverage data
+      myTestIds[slot] = testId;
+      myTestNames[slot] = null;
+    } else {
+      myTestIds[slot] = NOT_UNIQUE;
+      myTestNames[slot] = null;
+    }
+  }
+
+  /**
+   * Tests are tracked only when a test is running or test names were loaded, so the arrays are created lazily.
+   */
+  private synchronized void createTests() {
+    if (myTestIds != null) return;
+    myTestNames = new String[myHits.length];
+    myTestIds = new int[myHits.length];
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Line of a {@link ClassData} which reads and writes the {@link LineTable} of the class, so that
+ * <code>LineData</code> objects are created only when lines are requested, e.g. for a report.
+ * The view looks the line up on every call, so it stays valid when the class gets a new table.
+ * <p>
+ * Jumps and switches of a line are fixed when the line is added to the class: jumps and switches added to a view
+ * are detached, the same as those added to a <code>LineData</code> after {@link LineData#fillArrays()}.
+ */
+final class LineView extends LineData {
+  private static final int[] NO_KEYS = new int[0];
+
+  private final ClassData myClassData;
+  private final int myLine;
+
+  /**
+   * @param line index of the line in the table of the class
+   */
+  LineView(ClassData classData, int line, int lineNumber) {
+    super(lineNumber, null);
+    myClassData = classData;
+    myLine = line;
+  }
+
+  private LineTable getTable() {
+    return myClassData.getLineTable();
+  }
+
+  private int getSlot(LineTable table) {
+    return table == null ? -1 : table.getSlot(myLine);
+  }
+
+  public void touch() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot >= 0) table.touch(slot);
+  }
+
+  public int getHits() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getHits(slot) : 0;
+  }
+
+  public void setHits(int hits) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot >= 0) table.setHits(slot, hits);
+  }
+
+  public int getStatus() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getStatus(slot) : LineCoverage.NONE;
+  }
+
+  public void setStatus(byte status) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot >= 0) table.setStatus(slot, status);
+  }
+
+  byte getCachedStatus() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getCachedStatus(slot) : -1;
+  }
+
+  public String getMethodSignature() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? myClassData.getMethodSignature(table.getMethod(slot)) : null;
+  }
+
+  public void save(DataOutputStream os) throws IOException {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot >= 0) {
+      table.save(slot, getLineNumber(), os);
+    } else {
+      new LineData(getLineNumber(), null).save(os);
+    }
+  }
+
+  public void merge(CoverageData data) {
+    myClassData.mergeLine(myLine, (LineData) data);
+  }
+
+  JumpsAndSwitches getOrCreateJumpsAndSwitches() {
+    return new JumpsAndSwitches(getJumps(), getSwitches());
+  }
+
+  public int jumpsCount() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getJumpsCount(slot) : 0;
+  }
+
+  public JumpData addJump(int jump) {
+    return jump < jumpsCount() ? new JumpView(this, jump) : new JumpData();
+  }
+
+  public JumpData getJumpData(int jump) {
+    return 0 <= jump && jump < jumpsCount() ? new JumpView(this, jump) : null;
+  }
+
+  public JumpData[] getJumps() {
+    final int count = jumpsCount();
+    if (count == 0) return null;
+    final JumpData[] jumps = new JumpData[count];
+    for (int jump = 0; jump < count; jump++) {
+      jumps[jump] = new JumpView(this, jump);
+    }
+    return jumps;
+  }
+
+  public void touchBranch(int jump, boolean hit) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot >= 0) table.touchJump(slot, jump, hit);
+  }
+
+  public void removeJump(int jump) {
+  }
+
+  private int switchesCount() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getSwitchesCount(slot) : 0;
+  }
+
+  public SwitchData addSwitch(int switchNumber, int[] keys) {
+    return 0 <= switchNumber && switchNumber < switchesCount() ? new SwitchView(this, switchNumber) : new SwitchData(keys);
+  }
+
+  public SwitchData getSwitchData(int switchNumber) {
+    return 0 <= switchNumber && switchNumber < switchesCount() ? new SwitchView(this, switchNumber) : null;
+  }
+
+  public SwitchData[] getSwitches() {
+    final int count = switchesCount();
+    if (count == 0) return null;
+    final SwitchData[] switches = new SwitchData[count];
+    for (int switchNumber = 0; switchNumber < count; switchNumber++) {
+      switches[switchNumber] = new SwitchView(this, switchNumber);
+    }
+    return switches;
+  }
+
+  public void touchBranch(int switchNumber, int key) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot >= 0) table.touchSwitch(slot, switchNumber, key);
+  }
+
+  public void removeSwitch(int switchNumber) {
+  }
+
+  public void fillArrays() {
+  }
+
+  public BranchData getBranchData() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getBranchData(slot) : null;
+  }
+
+  public void setTestName(String testName) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot >= 0) table.setTestName(slot, testName);
+  }
+
+  public boolean isCoveredByOneTest() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot < 0) return false;
+    final String testName = table.getUniqueTestName(slot);
+    return testName != null && testName.length() > 0;
+  }
+
+  int getUniqueTestId() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getUniqueTestId(slot) : 0;
+  }
+
+  String getLoadedTestName() {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getLoadedTestName(slot) : null;
+  }
+
+  /**
+   * Reads a counter of the line in {@link LineTable#getBranches(int)}, a missing counter reads as zero.
+   */
+  private int getCounter(int index) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot < 0 || index < 0) return 0;
+    final int[] branches = table.getBranches(slot);
+    return branches != null && index < branches.length ? branches[index] : 0;
+  }
+
+  private void setCounter(int index, int value) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    if (slot < 0 || index < 0) return;
+    final int[] branches = table.getBranches(slot);
+    if (branches != null && index < branches.length) {
+      branches[index] = value;
+    }
+  }
+
+  private int getJumpIndex(int jump, boolean hit) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getJumpIndex(slot, jump, hit) : -1;
+  }
+
+  private int getSwitchIndex(int switchNumber, int key) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    return slot >= 0 ? table.getSwitchIndex(slot, switchNumber, key) : -1;
+  }
+
+  private int[] getSwitchKeys(int switchNumber) {
+    final LineTable table = getTable();
+    final int slot = getSlot(table);
+    final int offset = slot >= 0 ? table.getSwitchOffset(slot, switchNumber) : -1;
+    if (offset < 0) return NO_KEYS;
+    final int[] branches = table.getBranches(slot);
+    final int[] keys = new int[branches[offset]];
+    System.arraycopy(branches, offset + 2, keys, 0, keys.length);
+    return keys;
+  }
+
+  private static final class JumpView extends JumpData {
+    private final LineView myLine;
+    private final int myJump;
+
+    JumpView(LineView line, int jump) {
+      myLine = line;
+      myJump = jump;
+    }
+
+    public void touchTrueHit() {
+      setTrueHits(getTrueHits() + 1);
+    }
+
+    public void touchFalseHit() {
+      setFalseHits(getFalseHits() + 1);
+    }
+
+    public int getTrueHits() {
+      return myLine.getCounter(myLine.getJumpIndex(myJump, true));
+    }
+
+    public int getFalseHits() {
+      return myLine.getCounter(myLine.getJumpIndex(myJump, false));
+    }
+
+    public void setTrueHits(int trueHits) {
+      myLine.setCounter(myLine.getJumpIndex(myJump, true), trueHits);
+    }
+
+    public void setFalseHits(int falseHits) {
+      myLine.setCounter(myLine.getJumpIndex(myJump, false), falseHits);
+    }
+
+    public void save(DataOutputStream os) throws IOException {
+      final JumpData jumpData = new JumpData();
+      jumpData.merge(this);
+      jumpData.save(os);
+    }
+
+    public void merge(CoverageData data) {
+      final JumpData jumpData = (JumpData) data;
+      setTrueHits(getTrueHits() + jumpData.getTrueHits());
+      setFalseHits(getFalseHits() + jumpData.getFalseHits());
+    }
+  }
+
+  /**
+   * Keys and hits arrays of the view are copies.
+   */
+  private static final class SwitchView extends SwitchData {
+    private final LineView myLine;
+    private final int mySwitch;
+
+    SwitchView(LineView line, int switchNumber) {
+      super(NO_KEYS);
+      myLine = line;
+      mySwitch = switchNumber;
+    }
+
+    public void touch(int key) {
+      final int index = myLine.getSwitchIndex(mySwitch, key);
+      myLine.setCounter(index, myLine.getCounter(index) + 1);
+    }
+
+    public int getDefaultHits() {
+      return myLine.getCounter(myLine.getSwitchIndex(mySwitch, -1));
+    }
+
+    public void setDefaultHits(int defaultHits) {
+      myLine.setCounter(myLine.getSwitchIndex(mySwitch, -1), defaultHits);
+    }
+
+    public int[] getKeys() {
+      return myLine.getSwitchKeys(mySwitch);
+    }
+
+    public int[] getHits() {
+      final int[] hits = new int[getKeys().length];
+      for (int key = 0; key < hits.length; key++) {
+        hits[key] = myLine.getCounter(myLine.getSwitchIndex(mySwitch, key));
+      }
+      return hits;
+    }
+
+    /**
+     * Keys of the switch are fixed, hits of the existing keys are replaced.
+     */
+    public void setKeysAndHits(int[] keys, int[] hits) {
+      final int count = Math.min(hits.length, getKeys().length);
+      for (int key = 0; key < count; key++) {
+        myLine.setCounter(myLine.getSwitchIndex(mySwitch, key), hits[key]);
+      }
+    }
+
+    public void save(DataOutputStream os) throws IOException {
+      final SwitchData switchData = new SwitchData(getKeys());
+      switchData.merge(this);
+      switchData.save(os);
+    }
+
+    public void merge(CoverageData data) {
+      final SwitchData switchData = (SwitchData) data;
+      setDefaultHits(getDefaultHits() + switchData.getDefaultHits());
+      final int[] hits = switchData.getHits();
+      final int count = Math.min(hits.length, getKeys().length);
+      for (int key = 0; key < count; key++) {
+        final int index = myLine.getSwitchIndex(mySwitch, key);
+        myLine.setCounter(index, myLine.getCounter(index) + hits[key]);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import java.util.Arrays;
+
+/**
+ * Hits arrays of one version of a class, counted with its own {@link ProbeLayout}.
+ * Class loaders which define the same version share the arrays, while another version of the class gets arrays
+ * of its own, so that a slot is always applied with the layout it was incremented for.
+ * <p>
+ * Accessed under the lock of the owning {@link ClassData}.
+ */
+final class ProbeHits {
+  private final ProbeLayout myLayout;
+  private int[] myHits;
+  private int[] myAppliedHits;
+  private boolean[] myHitFlags;
+  private ThreadHits myThreadHits;
+
+  ProbeHits(ProbeLayout layout) {
+    myLayout = layout;
+  }
+
+  ProbeLayout getLayout() {
+    return myLayout;
+  }
+
+  int[] getOrCreateHits() {
+    if (myHits == null) {
+      myHits = new int[myLayout.size()];
+      myAppliedHits = new int[myHits.length];
+    }
+    return myHits;
+  }
+
+  boolean[] getOrCreateHitFlags() {
+    if (myHitFlags == null) {
+      myHitFlags = new boolean[myLayout.size()];
+    }
+    return myHitFlags;
+  }
+
+  ThreadHits getOrCreateThreadHits() {
+    if (myThreadHits == null) {
+      myThreadHits = new ThreadHits(myLayout.size());
+    }
+    return myThreadHits;
+  }
+
+  /**
+   * Adds hits made since the previous call to the lines, see {@link ClassData#applyHits()}.
+   */
+  void apply(LineTable table) {
+    if (myHits != null) {
+      myLayout.apply(table, myHits, myAppliedHits);
+    }
+    if (myHitFlags != null) {
+      myLayout.apply(table, myHitFlags);
+    }
+    if (myThreadHits != null) {
+      myLayout.apply(table, myThreadHits.collect());
+    }
+  }
+
+  void resetFlags() {
+    if (myHitFlags != null) {
+      Arrays.fill(myHitFlags, false);
+    }
+  }
+}
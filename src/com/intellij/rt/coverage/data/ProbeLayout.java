@@ -0,0 +1,225 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Describes the slots of a class hits array: every slot counts hits of a line,
+ * of one direction of a jump or of one key of a switch.
+ * Instrumented code increments the slots directly, the hits are moved into
+ * {@link LineData}, {@link JumpData} and {@link SwitchData} of the class when its hits are applied.
+ */
+public class ProbeLayout {
+  private static final byte LINE = 0;
+  private static final byte TRUE_JUMP = 1;
+  private static final byte FALSE_JUMP = 2;
+  private static final byte SWITCH = 3;
+  private static final byte REMOVED = 4;
+
+  private final int myId;
+  private byte[] myKinds = new byte[16];
+  private int[] myLines = new int[16];
+  private int[] myIndices = new int[16];
+  private int[] myKeys = new int[16];
+  private int mySize;
+
+  /**
+   * @param id id of the class version, see {@link #getId()}
+   */
+  public ProbeLayout(int id) {
+    myId = id;
+  }
+
+  /**
+   * Id of the instrumented version of the class, the instrumented code passes it when it requests its hits array.
+   * Versions with different ids get different arrays, see {@link ClassData#setProbeLayout(ProbeLayout)}.
+   */
+  public int getId() {
+    return myId;
+  }
+
+  public int addLine(int line) {
+    return add(LINE, line, 0, 0);
+  }
+
+  /**
+   * @param hit direction of the jump in terms of {@link LineData#touchBranch(int, boolean)}
+   */
+  public int addJump(int line, int jump, boolean hit) {
+    return add(hit ? TRUE_JUMP : FALSE_JUMP, line, jump, 0);
+  }
+
+  /**
+   * @param key index of the switch key, or -1 for the default branch
+   */
+  public int addSwitch(int line, int switchNumber, int key) {
+    return add(SWITCH, line, switchNumber, key);
+  }
+
+  /**
+   * Detaches slots of the jump from the coverage data, when the jump is filtered out after its probes were inserted.
+   * Slots of a jump which is added later with the same index are not affected.
+   */
+  public void removeJump(int line, int jump) {
+    remove(TRUE_JUMP, FALSE_JUMP, line, jump);
+  }
+
+  /**
+   * Detaches slots of the switch from the coverage data, see {@link #removeJump(int, int)}.
+   */
+  public void removeSwitch(int line, int switchNumber) {
+    remove(SWITCH, SWITCH, line, switchNumber);
+  }
+
+  private void remove(byte kind1, byte kind2, int line, int index) {
+    for (int slot = 0; slot < mySize; slot++) {
+      final byte kind = myKinds[slot];
+      if ((kind == kind1 || kind == kind2) && myLines[slot] == line && myIndices[slot] == index) {
+        myKinds[slot] = REMOVED;
+      }
+    }
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  private int add(byte kind, int line, int index, int key) {
+    if (mySize == myKinds.length) {
+      grow();
+    }
+    myKinds[mySize] = kind;
+    myLines[mySize] = line;
+    myIndices[mySize] = index;
+    myKeys[mySize] = key;
+    return mySize++;
+  }
+
+  public void save(DataOutput os) throws IOException {
+    os.writeInt(myId);
+    CoverageIOUtil.writeINT(os, mySize);
+    for (int slot = 0; slot < mySize; slot++) {
+      os.writeByte(myKinds[slot]);
+      CoverageIOUtil.writeINT(os, myLines[slot]);
+      CoverageIOUtil.writeINT(os, myIndices[slot]);
+      CoverageIOUtil.writeINT(os, myKeys[slot] + 1);
+    }
+  }
+
+  public static ProbeLayout load(DataInput in) throws IOException {
+    final ProbeLayout layout = new ProbeLayout(in.readInt());
+    final int size = CoverageIOUtil.readINT(in);
+    for (int slot = 0; slot < size; slot++) {
+      final byte kind = in.readByte();
+      final int line = CoverageIOUtil.readINT(in);
+      final int index = CoverageIOUtil.readINT(in);
+      layout.add(kind, line, index, CoverageIOUtil.readINT(in) - 1);
+    }
+    return layout;
+  }
+
+  private void grow() {
+    final int newSize = mySize * 2;
+    final byte[] kinds = new byte[newSize];
+    final int[] lines = new int[newSize];
+    final int[] indices = new int[newSize];
+    final int[] keys = new int[newSize];
+    System.arraycopy(myKinds, 0, kinds, 0, mySize);
+    System.arraycopy(myLines, 0, lines, 0, mySize);
+    System.arraycopy(myIndices, 0, indices, 0, mySize);
+    System.arraycopy(myKeys, 0, keys, 0, mySize);
+    myKinds = kinds;
+    myLines = lines;
+    myIndices = indices;
+    myKeys = keys;
+  }
+
+  /**
+   * Adds the hits to the corresponding coverage data.
+   */
+  void apply(LineTable lines, int[] hits) {
+    final int size = Math.min(mySize, hits.length);
+    for (int slot = 0; slot < size; slot++) {
+      final int hit = hits[slot];
+      if (hit != 0) {
+        apply(lines, slot, hit, false);
+      }
+    }
+  }
+
+  /**
+   * Adds hits made since the previous call to the corresponding coverage data.
+   * The hits array is only read, so increments made concurrently by the instrumented code are never lost,
+   * hits which are already in the coverage data are kept in <code>applied</code>.
+   */
+  void apply(LineTable lines, int[] hits, int[] applied) {
+    final int size = Math.min(mySize, Math.min(hits.length, applied.length));
+    for (int slot = 0; slot < size; slot++) {
+      final int hit = hits[slot];
+      final int delta = hit - applied[slot];
+      if (delta == 0) continue;
+      applied[slot] = hit;
+      apply(lines, slot, delta, false);
+    }
+  }
+
+  /**
+   * Marks the coverage data of the touched slots as hit at least once.
+   * Flags are not reset, so applying them several times gives the same result.
+   */
+  void apply(LineTable lines, boolean[] flags) {
+    final int size = Math.min(mySize, flags.length);
+    for (int slot = 0; slot < size; slot++) {
+      if (flags[slot]) {
+        apply(lines, slot, 1, true);
+      }
+    }
+  }
+
+  private void apply(LineTable lines, int slot, int hit, boolean atLeast) {
+    final int lineSlot = lines.getSlot(myLines[slot]);
+    if (lineSlot < 0) return;
+    final int index;
+    switch (myKinds[slot]) {
+      case LINE:
+        lines.setHits(lineSlot, merge(lines.getHits(lineSlot), hit, atLeast));
+        return;
+      case TRUE_JUMP:
+      case FALSE_JUMP:
+        index = lines.getJumpIndex(lineSlot, myIndices[slot], myKinds[slot] == TRUE_JUMP);
+        break;
+      case SWITCH:
+        index = lines.getSwitchIndex(lineSlot, myIndices[slot], myKeys[slot]);
+        break;
+      default:
+        return;
+    }
+    if (index >= 0) {
+      final int[] branches = lines.getBranches(lineSlot);
+      branches[index] = merge(branches[index], hit, atLeast);
+    }
+  }
+
+  private static int merge(int hits, int hit, boolean atLeast) {
+    return atLeast ? Math.max(hits, hit) : hits + hit;
+  }
+}
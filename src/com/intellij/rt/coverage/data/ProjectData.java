@@ -16,13 +16,16 @@
 
 package com.intellij.rt.coverage.data;
 
+import com.intellij.rt.coverage.bridge.CoverageBridge;
 import com.intellij.rt.coverage.util.ErrorReporter;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -30,20 +33,33 @@ public class ProjectData implements CoverageData, Serializable {
   public static final String PROJECT_DATA_OWNER = "com/intellij/rt/coverage/data/ProjectData";
 
   private static final MethodCaller TOUCH_LINE_METHOD = new MethodCaller("touchLine", new Class[] {int.class});
-  private static final MethodCaller TOUCH_LINES_METHOD = new MethodCaller("touchLines", new Class[] {int[].class});
   private static final MethodCaller TOUCH_SWITCH_METHOD = new MethodCaller("touch", new Class[] {int.class, int.class, int.class});
   private static final MethodCaller TOUCH_JUMP_METHOD = new MethodCaller("touch", new Class[] {int.class, int.class, boolean.class});
   private static final MethodCaller TOUCH_METHOD = new MethodCaller("touch", new Class[] {int.class});
   private static final MethodCaller GET_CLASS_DATA_METHOD = new MethodCaller("getClassData", new Class[]{String.class});
   private static final MethodCaller TRACE_LINE_METHOD = new MethodCaller("traceLine", new Class[]{Object.class, int.class});
+  private static final MethodCaller GET_HITS_METHOD = new MethodCaller("getOrCreateHits", new Class[]{int.class});
+  private static final MethodCaller GET_HIT_FLAGS_METHOD = new MethodCaller("getOrCreateHitFlags", new Class[]{int.class});
+  private static final MethodCaller GET_THREAD_HITS_METHOD = new MethodCaller("getOrCreateThreadHits", new Class[]{int.class});
+  private static final MethodCaller THREAD_HITS_GET_METHOD = new MethodCaller("get", new Class[0]);
+
+  /**
+   * Entry point for copies of this class defined by other class loaders, see {@link CoverageBridge}.
+   */
+  public static final CoverageBridge BRIDGE = new DirectBridge();
 
   private static boolean ourStopped = false;
 
   public static ProjectData ourProjectData;
   private File myDataFile;
 
-  /** @noinspection UnusedDeclaration*/
-  private String myCurrentTestName;
+  /**
+   * Id of the currently running test, 0 if there is no test.
+   * Lines remember the id instead of the name, see {@link #getTestName(int)}.
+   */
+  private volatile int myCurrentTestId;
+  private final Map<String, Integer> myTestIds = new HashMap<String, Integer>();
+  private final List<String> myTestNames = new ArrayList<String>();
   private boolean myTraceLines;
   private boolean mySampling;
   private Map<ClassData, boolean[]> myTrace;
@@ -53,6 +69,8 @@ public class ProjectData implements CoverageData, Serializable {
   private Map<String, FileMapData[]> myLinesMap;
 
   private static Object ourProjectDataObject;
+  private static CoverageBridge ourBridge;
+  private static volatile boolean ourBridgeResolved;
 
   public ClassData getClassData(final String name) {
     return myClasses.get(name);
@@ -83,6 +101,10 @@ public class ProjectData implements CoverageData, Serializable {
     return mySampling;
   }
 
+  public boolean isTraceLines() {
+    return myTraceLines;
+  }
+
   public static ProjectData createProjectData(final File dataFile,
                                               final ProjectData initialData,
                                               boolean traceLines,
@@ -113,6 +135,41 @@ public class ProjectData implements CoverageData, Serializable {
     }
   }
 
+  /**
+   * Copy of the project coverage which may be saved without stopping the collection, see {@link ClassData#createSnapshot(boolean)}.
+   */
+  public ProjectData createSnapshot(boolean reset) {
+    final ProjectData snapshot = new ProjectData();
+    snapshot.mySampling = mySampling;
+    snapshot.myTraceLines = myTraceLines;
+    snapshot.myDataFile = myDataFile;
+    if (myLinesMap != null) {
+      snapshot.myLinesMap = new HashMap<String, FileMapData[]>(myLinesMap);
+    }
+    for (ClassData classData : myClasses.values()) {
+      snapshot.myClasses.put(classData.getName(), classData.createSnapshot(reset));
+    }
+    return snapshot;
+  }
+
+  /**
+   * Resets hits of all classes without copying them, see {@link ClassData#resetHits()}.
+   */
+  public void resetHits() {
+    for (ClassData classData : myClasses.values()) {
+      classData.resetHits();
+    }
+  }
+
+  /**
+   * Moves hits collected by array-based instrumentation into the coverage data of all classes.
+   */
+  public void applyHits() {
+    for (ClassData classData : myClasses.values()) {
+      classData.applyHits();
+    }
+  }
+
   public void checkLineMappings() {
     if (myLinesMap != null) {
       for (Object o : myLinesMap.keySet()) {
@@ -188,7 +245,7 @@ public class ProjectData implements CoverageData, Serializable {
  }
 
   public void testStarted(final String name) {
-    myCurrentTestName = name;
+    myCurrentTestId = name != null ? getOrCreateTestId(name) : 0;
     if (myTraceLines) myTrace = new ConcurrentHashMap<ClassData, boolean[]>();
   }
   //---------------------------------------------------------- //
@@ -207,13 +264,30 @@ public class ProjectData implements CoverageData, Serializable {
     return myTracesDir;
   }
 
-  public static String getCurrentTestName() {
-    try {
-      final Object projectDataObject = getProjectDataObject();
-      return (String) projectDataObject.getClass().getDeclaredField("myCurrentTestName").get(projectDataObject);
-    } catch (Exception e) {
-      ErrorReporter.reportError("Current test name was not retrieved:", e);
-      return null;
+  private synchronized int getOrCreateTestId(String name) {
+    Integer id = myTestIds.get(name);
+    if (id == null) {
+      myTestNames.add(name);
+      id = myTestNames.size();
+      myTestIds.put(name, id);
+    }
+    return id;
+  }
+
+  /**
+   * Id of the currently running test, cheap enough to be requested on every line hit.
+   * {@link LineData} is loaded together with the project data instance, so no reflection is needed here.
+   */
+  static int getCurrentTestId() {
+    final ProjectData projectData = ourProjectData;
+    return projectData != null ? projectData.myCurrentTestId : 0;
+  }
+
+  static String getTestName(int testId) {
+    final ProjectData projectData = ourProjectData;
+    if (projectData == null || testId <= 0) return null;
+    synchronized (projectData) {
+      return testId <= projectData.myTestNames.size() ? projectData.myTestNames.get(testId - 1) : null;
     }
   }
 
@@ -222,6 +296,13 @@ public class ProjectData implements CoverageData, Serializable {
     return myClasses.asMap();
   }
 
+  /**
+   * @return live view of the classes, unlike {@link #getClasses()} does not copy them
+   */
+  public Collection<ClassData> getClassesCollection() {
+    return myClasses.values();
+  }
+
 
 
   // -----------------------  used from instrumentation  ------------------------------------------------//
@@ -237,6 +318,11 @@ public class ProjectData implements CoverageData, Serializable {
       ((ClassData) classData).touchLine(line);
       return;
     }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      bridge.touchLine(classData, line);
+      return;
+    }
     touch(TOUCH_LINE_METHOD,
           classData,
           new Object[]{line});
@@ -247,6 +333,11 @@ public class ProjectData implements CoverageData, Serializable {
       ((ClassData) classData).touch(line, switchNumber, key);
       return;
     }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      bridge.touchSwitch(classData, line, switchNumber, key);
+      return;
+    }
     touch(TOUCH_SWITCH_METHOD,
           classData,
           new Object[]{line, switchNumber, key});
@@ -257,6 +348,11 @@ public class ProjectData implements CoverageData, Serializable {
       ((ClassData) classData).touch(line, jump, hit);
       return;
     }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      bridge.touchJump(classData, line, jump, hit);
+      return;
+    }
     touch(TOUCH_JUMP_METHOD,
           classData,
           new Object[]{line, jump, hit});
@@ -268,6 +364,11 @@ public class ProjectData implements CoverageData, Serializable {
       ourProjectData.traceLine((ClassData) classData, line);
       return;
     }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      bridge.trace(classData, line);
+      return;
+    }
 
     touch(TOUCH_METHOD,
           classData,
@@ -289,24 +390,79 @@ public class ProjectData implements CoverageData, Serializable {
     }
   }
 
-  public static int[] touchClassLines(String className, int[] lines) {
-      if (ourProjectData != null) {
-          return ourProjectData.getClassData(className).touchLines(lines);
-      }
-      try {
-          final Object projectDataObject = getProjectDataObject();
-          Object classData = GET_CLASS_DATA_METHOD.invoke(projectDataObject, new Object[]{className});
-          return (int[]) touch(TOUCH_LINES_METHOD, classData, new Object[] {lines});
-      } catch (Exception e) {
-          ErrorReporter.reportError("Error in class data loading: " + className, e);
-          return lines;
-      }
+  /**
+   * @param layoutId id of the instrumented class version, see {@link ProbeLayout#getId()}
+   * @return hits array of the class version, or null if the class is not registered
+   */
+  public static int[] loadHits(String className, int layoutId) {
+    if (ourProjectData != null) {
+      final ClassData classData = ourProjectData.getClassData(className);
+      return classData != null ? classData.getOrCreateHits(layoutId) : null;
+    }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      return bridge.getOrCreateHits(bridge.loadClassData(className), layoutId);
+    }
+    return (int[]) loadClassDataObject(className, GET_HITS_METHOD, layoutId);
+  }
+
+  public static boolean[] loadHitFlags(String className, int layoutId) {
+    if (ourProjectData != null) {
+      final ClassData classData = ourProjectData.getClassData(className);
+      return classData != null ? classData.getOrCreateHitFlags(layoutId) : null;
+    }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      return bridge.getOrCreateHitFlags(bridge.loadClassData(className), layoutId);
+    }
+    return (boolean[]) loadClassDataObject(className, GET_HIT_FLAGS_METHOD, layoutId);
+  }
+
+  public static Object loadThreadHits(String className, int layoutId) {
+    if (ourProjectData != null) {
+      final ClassData classData = ourProjectData.getClassData(className);
+      return classData != null ? classData.getOrCreateThreadHits(layoutId) : null;
+    }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      return bridge.getOrCreateThreadHits(bridge.loadClassData(className), layoutId);
+    }
+    return loadClassDataObject(className, GET_THREAD_HITS_METHOD, layoutId);
+  }
+
+  private static Object loadClassDataObject(String className, MethodCaller methodCaller, int layoutId) {
+    try {
+      final Object classData = loadClassData(className);
+      return classData != null ? methodCaller.invoke(classData, new Object[]{layoutId}) : null;
+    } catch (Exception e) {
+      ErrorReporter.reportError("Error in class data loading: " + className, e);
+      return null;
+    }
+  }
+
+  /**
+   * @param threadHits object returned by {@link #loadThreadHits(String, int)}
+   * @return hits array of the current thread
+   */
+  public static int[] getThreadHits(Object threadHits) {
+    if (ourProjectData != null) {
+      return ((ThreadHits) threadHits).get();
+    }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      return bridge.getThreadHits(threadHits);
+    }
+    return (int[]) touch(THREAD_HITS_GET_METHOD, threadHits, new Object[0]);
   }
 
   public static Object loadClassData(String className) {
     if (ourProjectData != null) {
       return ourProjectData.getClassData(className);
     }
+    final CoverageBridge bridge = getBridge();
+    if (bridge != null) {
+      return bridge.loadClassData(className);
+    }
     try {
       final Object projectDataObject = getProjectDataObject();
       return GET_CLASS_DATA_METHOD.invoke(projectDataObject, new Object[]{className});
@@ -324,6 +480,30 @@ public class ProjectData implements CoverageData, Serializable {
     return ourProjectDataObject;
   }
 
+  /**
+   * @return bridge of the agent when this class is a copy defined by another class loader and the bridge interface
+   * is shared with the agent, null otherwise
+   */
+  private static CoverageBridge getBridge() {
+    if (!ourBridgeResolved) {
+      try {
+        final Class<?> projectDataClass = Class.forName(ProjectData.class.getName(), false, null);
+        if (projectDataClass != ProjectData.class) {
+          final Object bridge = projectDataClass.getField("BRIDGE").get(null);
+          if (bridge instanceof CoverageBridge) {
+            ourBridge = (CoverageBridge) bridge;
+          }
+        }
+      } catch (Exception e) {
+        // no agent in the bootstrap class loader, calls go through reflection
+      } catch (LinkageError e) {
+        // the bridge interface is not available
+      }
+      ourBridgeResolved = true;
+    }
+    return ourBridge;
+  }
+
   public void traceLine(ClassData classData, int line) {
     if (myTrace != null) {
       synchronized (myTrace) {
@@ -344,6 +524,48 @@ public class ProjectData implements CoverageData, Serializable {
   }
   // ----------------------------------------------------------------------------------------------- //
 
+  private static class DirectBridge implements CoverageBridge {
+    public Object loadClassData(String className) {
+      final ProjectData projectData = ourProjectData;
+      return projectData != null ? projectData.getClassData(className) : null;
+    }
+
+    public void touchLine(Object classData, int line) {
+      if (classData != null) ((ClassData) classData).touchLine(line);
+    }
+
+    public void touchSwitch(Object classData, int line, int switchNumber, int key) {
+      if (classData != null) ((ClassData) classData).touch(line, switchNumber, key);
+    }
+
+    public void touchJump(Object classData, int line, int jump, boolean hit) {
+      if (classData != null) ((ClassData) classData).touch(line, jump, hit);
+    }
+
+    public void trace(Object classData, int line) {
+      final ProjectData projectData = ourProjectData;
+      if (classData == null || projectData == null) return;
+      ((ClassData) classData).touch(line);
+      projectData.traceLine((ClassData) classData, line);
+    }
+
+    public int[] getOrCreateHits(Object classData, int layoutId) {
+      return classData != null ? ((ClassData) classData).getOrCreateHits(layoutId) : null;
+    }
+
+    public boolean[] getOrCreateHitFlags(Object classData, int layoutId) {
+      return classData != null ? ((ClassData) classData).getOrCreateHitFlags(layoutId) : null;
+    }
+
+    public Object getOrCreateThreadHits(Object classData, int layoutId) {
+      return classData != null ? ((ClassData) classData).getOrCreateThreadHits(layoutId) : null;
+    }
+
+    public int[] getThreadHits(Object threadHits) {
+      return threadHits != null ? ((ThreadHits) threadHits).get() : null;
+    }
+  }
+
   private static class MethodCaller {
     private Method myMethod;
     private final String myMethodName;
@@ -407,6 +629,10 @@ public class ProjectData implements CoverageData, Serializable {
       return myClasses.keySet();
     }
 
+    public Collection<ClassData> values() {
+      return myClasses.values();
+    }
+
     private static Map<String, ClassData> createClassesMap() {
       if ("true".equals(System.getProperty("idea.coverage.thread-safe.enabled", "true"))) {
         return new ConcurrentHashMap<String, ClassData>(DEFAULT_CAPACITY);
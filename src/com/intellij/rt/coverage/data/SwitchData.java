@@ -64,16 +64,17 @@ public class SwitchData implements CoverageData {
 
   public void merge(final CoverageData data) {
     SwitchData switchData = (SwitchData)data;
-    myDefaultHits += switchData.myDefaultHits;
-    for (int i = Math.min(myHits.length, switchData.myHits.length) - 1; i >= 0; i--) {
-      myHits[i] += switchData.myHits[i];
+    final int[] hits = switchData.getHits();
+    myDefaultHits += switchData.getDefaultHits();
+    for (int i = Math.min(myHits.length, hits.length) - 1; i >= 0; i--) {
+      myHits[i] += hits[i];
     }
-    if (switchData.myHits.length > myHits.length) {
+    if (hits.length > myHits.length) {
       int[] old = myHits;
-      myHits = new int[switchData.myHits.length];
+      myHits = new int[hits.length];
       System.arraycopy(old, 0, myHits, 0, old.length);
-      System.arraycopy(switchData.myHits, old.length, myHits, old.length, myHits.length - old.length);
-      myKeys = switchData.myKeys;
+      System.arraycopy(hits, old.length, myHits, old.length, myHits.length - old.length);
+      myKeys = switchData.getKeys();
     }
   }
 
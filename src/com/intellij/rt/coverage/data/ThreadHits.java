@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hits array striped by threads: every thread increments its own array,
+ * so hits are neither lost nor contended between threads.
+ * Arrays are summed up in {@link #collect()}, the owning threads are not stopped or synchronized for that.
+ * Arrays of finished threads are folded into a common base array, so that applications which start
+ * many short-living threads do not keep all their arrays.
+ */
+public class ThreadHits {
+  private static final int MIN_PURGE_THRESHOLD = 16;
+
+  private final ThreadLocal<int[]> myHits = new ThreadLocal<int[]>();
+  private final List<ThreadArray> myAllHits = new ArrayList<ThreadArray>();
+  private final int mySize;
+  private final int[] myBase;
+  private int[] myCollected;
+  private int myPurgeThreshold = MIN_PURGE_THRESHOLD;
+
+  public ThreadHits(int size) {
+    mySize = size;
+    myBase = new int[size];
+    myCollected = new int[size];
+  }
+
+  /**
+   * @return hits array of the current thread
+   */
+  public int[] get() {
+    int[] hits = myHits.get();
+    if (hits == null) {
+      hits = register(new int[mySize]);
+      myHits.set(hits);
+    }
+    return hits;
+  }
+
+  private synchronized int[] register(int[] hits) {
+    if (myAllHits.size() >= myPurgeThreshold) {
+      foldFinishedThreads();
+      myPurgeThreshold = Math.max(MIN_PURGE_THRESHOLD, 2 * myAllHits.size());
+    }
+    myAllHits.add(new ThreadArray(Thread.currentThread(), hits));
+    return hits;
+  }
+
+  /**
+   * @return hits made by all threads since the previous call
+   */
+  public synchronized int[] collect() {
+    foldFinishedThreads();
+    final int[] total = new int[mySize];
+    System.arraycopy(myBase, 0, total, 0, mySize);
+    for (ThreadArray array : myAllHits) {
+      final int[] hits = array.myHits;
+      for (int i = 0; i < hits.length; i++) {
+        total[i] += hits[i];
+      }
+    }
+    final int[] delta = new int[total.length];
+    for (int i = 0; i < total.length; i++) {
+      delta[i] = total[i] - myCollected[i];
+    }
+    myCollected = total;
+    return delta;
+  }
+
+  synchronized int getThreadArrayCount() {
+    return myAllHits.size();
+  }
+
+  /**
+   * A finished thread does not write its array anymore, so the array may be added to the base and dropped.
+   */
+  private void foldFinishedThreads() {
+    for (Iterator<ThreadArray> it = myAllHits.iterator(); it.hasNext(); ) {
+      final ThreadArray array = it.next();
+      final Thread thread = array.myThread.get();
+      if (thread != null && thread.isAlive()) continue;
+      final int[] hits = array.myHits;
+      for (int i = 0; i < hits.length; i++) {
+        myBase[i] += hits[i];
+      }
+      it.remove();
+    }
+  }
+
+  private static class ThreadArray {
+    private final WeakReference<Thread> myThread;
+    private final int[] myHits;
+
+    private ThreadArray(Thread thread, int[] hits) {
+      myThread = new WeakReference<Thread>(thread);
+      myHits = hits;
+    }
+  }
+}
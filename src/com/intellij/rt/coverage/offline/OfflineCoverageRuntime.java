@@ -0,0 +1,82 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.offline;
+
+import com.intellij.rt.coverage.data.ClassRegistration;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.ProjectDataWriter;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Entry point of the slim runtime jar which collects coverage of classes instrumented offline,
+ * see <code>com.intellij.rt.coverage.offline.OfflineInstrumentation</code>.
+ * No classes are transformed, so neither ASM nor trove are needed at runtime.
+ * <p>
+ * Usage: <code>-javaagent:intellij-coverage-runtime.jar=&lt;data file&gt;{path separator}&lt;metadata file&gt;</code>
+ */
+public class OfflineCoverageRuntime implements Runnable {
+  private final ProjectData myProjectData;
+  private final File myDataFile;
+
+  private OfflineCoverageRuntime(ProjectData projectData, File dataFile) {
+    myProjectData = projectData;
+    myDataFile = dataFile;
+  }
+
+  public static void premain(String argsString, Instrumentation instrumentation) throws Exception {
+    final String[] args = argsString != null ? argsString.split(File.pathSeparator) : new String[0];
+    if (args.length != 2) {
+      System.err.println("Data file and offline metadata file separated with '" + File.pathSeparator + "' are expected");
+      System.exit(1);
+    }
+    init(new File(args[0]), new File(args[1]));
+  }
+
+  /**
+   * Registers offline instrumented classes and saves their coverage into <code>dataFile</code> on exit.
+   */
+  public static ProjectData init(File dataFile, File metadataFile) throws IOException {
+    final OfflineMetadata metadata = OfflineMetadata.load(metadataFile);
+    final ProjectData projectData = ProjectData.createProjectData(dataFile, null, false, metadata.isSampling());
+    for (ClassRegistration registration : metadata.getRegistrations()) {
+      registration.register(projectData);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(new OfflineCoverageRuntime(projectData, dataFile)));
+    return projectData;
+  }
+
+  public void run() {
+    myProjectData.stop();
+    DataOutputStream os = null;
+    try {
+      myProjectData.applyHits();
+      myProjectData.checkLineMappings();
+      os = CoverageIOUtil.openFile(myDataFile);
+      ProjectDataWriter.write(os, myProjectData);
+    } catch (Throwable e) {
+      ErrorReporter.reportError("Error writing file " + myDataFile.getPath(), e);
+    } finally {
+      CoverageIOUtil.close(os);
+    }
+  }
+}
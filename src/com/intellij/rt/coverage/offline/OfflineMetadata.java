@@ -0,0 +1,89 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.offline;
+
+import com.intellij.rt.coverage.data.ClassRegistration;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Sidecar file of offline instrumented classes: {@link ClassRegistration} of every instrumented class,
+ * which lets the runtime register line and branch tables of the classes without instrumenting them.
+ * <p>
+ * Format: <code>INT version, BOOLEAN sampling, INT classes count, (UTF class name, registration)*</code>.
+ */
+public class OfflineMetadata {
+  private static final int VERSION = 3;
+
+  private final boolean mySampling;
+  private final List<ClassRegistration> myRegistrations;
+
+  public OfflineMetadata(boolean sampling, List<ClassRegistration> registrations) {
+    mySampling = sampling;
+    myRegistrations = registrations;
+  }
+
+  /**
+   * Whether the classes were instrumented in sampling mode.
+   */
+  public boolean isSampling() {
+    return mySampling;
+  }
+
+  public List<ClassRegistration> getRegistrations() {
+    return myRegistrations;
+  }
+
+  public static void write(File file, boolean sampling, Collection<ClassRegistration> registrations) throws IOException {
+    final DataOutputStream os = CoverageIOUtil.openFile(file);
+    try {
+      os.writeInt(VERSION);
+      os.writeBoolean(sampling);
+      CoverageIOUtil.writeINT(os, registrations.size());
+      for (ClassRegistration registration : registrations) {
+        CoverageIOUtil.writeUTF(os, registration.getClassName());
+        registration.save(os);
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  public static OfflineMetadata load(File file) throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      final int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported offline metadata version " + version + " in " + file.getPath());
+      }
+      final boolean sampling = in.readBoolean();
+      final int count = CoverageIOUtil.readINT(in);
+      final List<ClassRegistration> result = new ArrayList<ClassRegistration>(count);
+      for (int i = 0; i < count; i++) {
+        final String className = CoverageIOUtil.readUTFFast(in);
+        result.add(ClassRegistration.load(in, className));
+      }
+      return new OfflineMetadata(sampling, result);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bytes from the position of a buffer to its limit.
+ */
+public class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer myBuffer;
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    myBuffer = buffer;
+  }
+
+  public int read() {
+    return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+  }
+
+  public int read(byte[] bytes, int offset, int length) {
+    if (length == 0) return 0;
+    if (!myBuffer.hasRemaining()) return -1;
+    final int count = Math.min(length, myBuffer.remaining());
+    myBuffer.get(bytes, offset, count);
+    return count;
+  }
+
+  public int available() {
+    return myBuffer.remaining();
+  }
+}
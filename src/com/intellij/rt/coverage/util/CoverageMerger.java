@@ -0,0 +1,220 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Merges coverage data files with the same result as sequential {@link ProjectData#merge} of the files in the given order.
+ * <p>
+ * Files are loaded concurrently, at most a few files ahead of the merged one to bound memory.
+ * Classes are independent, so every loaded file is merged in parallel by partitions of class names.
+ * <p>
+ * Input files may be in any format read by {@link ProjectDataLoader}, with <code>-compressed</code> the result is written
+ * in the compressed format, see {@link ProjectDataWriter#writeCompressed}.
+ * <p>
+ * Usage: <code>CoverageMerger &lt;output file&gt; &lt;input files&gt;... [-threads &lt;number&gt;] [-compressed]</code>
+ */
+public class CoverageMerger {
+  private final int myThreads;
+  private final boolean myCompressed;
+  private final Statistics myStatistics = new Statistics();
+
+  public CoverageMerger(int threads) {
+    this(threads, false);
+  }
+
+  public CoverageMerger(int threads, boolean compressed) {
+    myThreads = Math.max(1, threads);
+    myCompressed = compressed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean compressed = false;
+    final List<File> files = new ArrayList<File>();
+    for (int i = 0; i < args.length; i++) {
+      if ("-threads".equals(args[i]) && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-compressed".equals(args[i])) {
+        compressed = true;
+      } else {
+        files.add(new File(args[i]));
+      }
+    }
+    if (files.size() < 2) {
+      System.err.println("Usage: CoverageMerger <output file> <input files>... [-threads <number>] [-compressed]");
+      System.exit(1);
+    }
+    final File output = files.remove(0);
+    final CoverageMerger merger = new CoverageMerger(threads, compressed);
+    merger.write(merger.merge(files), output);
+    System.out.println(merger.getStatistics());
+  }
+
+  public Statistics getStatistics() {
+    return myStatistics;
+  }
+
+  public ProjectData merge(List<File> files) throws InterruptedException, ExecutionException {
+    final long start = System.nanoTime();
+    final ExecutorService loaders = Executors.newFixedThreadPool(myThreads);
+    final ExecutorService mergers = Executors.newFixedThreadPool(myThreads);
+    final ProjectData result = new ProjectData();
+    final List<Map<String, ClassData>> partitions = new ArrayList<Map<String, ClassData>>(myThreads);
+    for (int i = 0; i < myThreads; i++) {
+      partitions.add(new HashMap<String, ClassData>());
+    }
+    try {
+      final LinkedList<Future<ProjectData>> loaded = new LinkedList<Future<ProjectData>>();
+      for (final File file : files) {
+        if (loaded.size() >= 2 * myThreads) {
+          mergeLoaded(loaded.removeFirst(), result, partitions, mergers);
+        }
+        loaded.add(loaders.submit(new Callable<ProjectData>() {
+          public ProjectData call() {
+            myStatistics.addFile(file.length());
+            return ProjectDataLoader.load(file);
+          }
+        }));
+      }
+      while (!loaded.isEmpty()) {
+        mergeLoaded(loaded.removeFirst(), result, partitions, mergers);
+      }
+    } finally {
+      loaders.shutdownNow();
+      mergers.shutdownNow();
+    }
+
+    for (Map<String, ClassData> partition : partitions) {
+      myStatistics.myClasses += partition.size();
+    }
+    myStatistics.myTotalTime += System.nanoTime() - start;
+    return result;
+  }
+
+  private void mergeLoaded(Future<ProjectData> loaded,
+                           final ProjectData result,
+                           final List<Map<String, ClassData>> partitions,
+                           ExecutorService mergers) throws InterruptedException, ExecutionException {
+    long start = System.nanoTime();
+    final ProjectData data = loaded.get();
+    myStatistics.myWaitTime += System.nanoTime() - start;
+
+    start = System.nanoTime();
+    final List<List<ClassData>> classes = new ArrayList<List<ClassData>>(myThreads);
+    for (int i = 0; i < myThreads; i++) {
+      classes.add(new ArrayList<ClassData>());
+    }
+    for (ClassData classData : data.getClassesCollection()) {
+      classes.get(getPartition(classData.getName())).add(classData);
+    }
+    final List<Future<?>> merged = new ArrayList<Future<?>>(myThreads);
+    for (int i = 0; i < myThreads; i++) {
+      final Map<String, ClassData> partition = partitions.get(i);
+      final List<ClassData> partitionClasses = classes.get(i);
+      merged.add(mergers.submit(new Runnable() {
+        public void run() {
+          for (ClassData mergedData : partitionClasses) {
+            ClassData classData = partition.get(mergedData.getName());
+            if (classData == null) {
+              // partition owns its classes, the result is only locked to register a new class
+              synchronized (result) {
+                classData = result.getOrCreateClassData(mergedData.getName());
+              }
+              partition.put(mergedData.getName(), classData);
+            }
+            classData.merge(mergedData);
+          }
+        }
+      }));
+    }
+    for (Future<?> future : merged) {
+      future.get();
+    }
+    myStatistics.myMergeTime += System.nanoTime() - start;
+  }
+
+  private int getPartition(String className) {
+    return (className.hashCode() & Integer.MAX_VALUE) % myThreads;
+  }
+
+  public void write(ProjectData projectData, File output) throws IOException {
+    final long start = System.nanoTime();
+    final DataOutputStream os = CoverageIOUtil.openFile(output);
+    try {
+      if (myCompressed) {
+        ProjectDataWriter.writeCompressed(os, projectData);
+      } else {
+        ProjectDataWriter.write(os, projectData);
+      }
+    } finally {
+      os.close();
+    }
+    myStatistics.myWriteTime += System.nanoTime() - start;
+    myStatistics.myTotalTime += System.nanoTime() - start;
+  }
+
+  public static class Statistics {
+    private int myFiles;
+    private long myBytes;
+    private int myClasses;
+    private long myWaitTime;
+    private long myMergeTime;
+    private long myWriteTime;
+    private long myTotalTime;
+
+    private synchronized void addFile(long bytes) {
+      myFiles++;
+      myBytes += bytes;
+    }
+
+    public synchronized int getFiles() {
+      return myFiles;
+    }
+
+    public synchronized long getBytes() {
+      return myBytes;
+    }
+
+    public int getClasses() {
+      return myClasses;
+    }
+
+    public String toString() {
+      final long totalMs = TimeUnit.NANOSECONDS.toMillis(myTotalTime);
+      final double mb = getBytes() / (1024.0 * 1024.0);
+      final double seconds = Math.max(totalMs, 1) / 1000.0;
+      return "Merged " + getFiles() + " files (" + format(mb) + " MB, " + myClasses + " classes) in " + totalMs + " ms: " +
+             "waiting for loading " + TimeUnit.NANOSECONDS.toMillis(myWaitTime) + " ms, " +
+             "merging " + TimeUnit.NANOSECONDS.toMillis(myMergeTime) + " ms, " +
+             "writing " + TimeUnit.NANOSECONDS.toMillis(myWriteTime) + " ms; " +
+             format(mb / seconds) + " MB/s, " + format(getFiles() / seconds) + " files/s";
+    }
+
+    private static String format(double value) {
+      return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * View of coverage data written in the indexed format by {@link ProjectDataWriter#writeIndexed}.
+ * The file is memory mapped and only the footer is read on open,
+ * {@link ClassData} is read on the first {@link #getClassData(String)} request of the class.
+ * Classes are sorted by name in the file, so a class is found by binary search over the index.
+ * <p>
+ * {@link #getClasses()} and {@link #getClassesCollection()} read all the classes.
+ */
+public class IndexedProjectData extends ProjectData {
+  private final ByteBuffer myBuffer;
+  private final int myIndexOffset;
+  private final int myClassCount;
+  private final boolean[] myLoaded;
+
+  private IndexedProjectData(ByteBuffer buffer, int indexOffset, int classCount) {
+    myBuffer = buffer;
+    myIndexOffset = indexOffset;
+    myClassCount = classCount;
+    myLoaded = new boolean[classCount];
+  }
+
+  public static IndexedProjectData open(File file) throws IOException {
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    final ByteBuffer buffer;
+    try {
+      final FileChannel channel = randomAccessFile.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Coverage data file is too large: " + file.getPath());
+      }
+      // mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      randomAccessFile.close();
+    }
+
+    final DataInputStream in = createInput(buffer, 0);
+    if (CoverageIOUtil.readINT(in) != ProjectDataWriter.VERSIONED_FORMAT_MARKER) {
+      throw new IOException("Coverage data file is not indexed: " + file.getPath());
+    }
+    final int version = CoverageIOUtil.readINT(in);
+    if (version != ProjectDataWriter.INDEXED_FORMAT_VERSION) {
+      throw new IOException("Unsupported coverage data format version " + version + ": " + file.getPath());
+    }
+    final int footerOffset = buffer.limit() - ProjectDataWriter.INDEXED_FOOTER_SIZE;
+    final int indexOffset = buffer.getInt(footerOffset);
+    final int classCount = buffer.getInt(footerOffset + 4);
+    if (indexOffset < 0 || classCount < 0 || indexOffset + (long) classCount * ProjectDataWriter.INDEX_ENTRY_SIZE != footerOffset) {
+      throw new IOException("Coverage data file index is corrupted: " + file.getPath());
+    }
+    return new IndexedProjectData(buffer, indexOffset, classCount);
+  }
+
+  public ClassData getClassData(String name) {
+    final ClassData classData = super.getClassData(name);
+    if (classData != null) return classData;
+    final int index = indexOf(name);
+    return index >= 0 ? load(index) : null;
+  }
+
+  public ClassData getOrCreateClassData(String name) {
+    final ClassData classData = getClassData(name);
+    return classData != null ? classData : super.getOrCreateClassData(name);
+  }
+
+  public Map<String, ClassData> getClasses() {
+    loadAll();
+    return super.getClasses();
+  }
+
+  public Collection<ClassData> getClassesCollection() {
+    loadAll();
+    return super.getClassesCollection();
+  }
+
+  private void loadAll() {
+    for (int i = 0; i < myClassCount; i++) {
+      load(i);
+    }
+  }
+
+  private synchronized ClassData load(int index) {
+    final String name = readName(index);
+    if (myLoaded[index]) {
+      return super.getClassData(name);
+    }
+    final ClassData classData = super.getOrCreateClassData(StringsPool.getFromPool(name));
+    try {
+      final DataInputStream in = createInput(myBuffer, getIndexEntry(index, 4));
+      CoverageIOUtil.readINT(in); // dictionary index of the class
+      ProjectDataLoader.loadClass(in, classData, new ProjectDataLoader.Dictionary() {
+        public String getName(int index) {
+          return readName(index);
+        }
+      });
+    } catch (IOException e) {
+      ErrorReporter.reportError("Failed to load coverage data of class " + name, e);
+    }
+    myLoaded[index] = true;
+    return classData;
+  }
+
+  private int indexOf(String name) {
+    int low = 0;
+    int high = myClassCount - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int cmp = readName(middle).compareTo(name);
+      if (cmp < 0) {
+        low = middle + 1;
+      } else if (cmp > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private String readName(int index) {
+    try {
+      return CoverageIOUtil.readUTFFast(createInput(myBuffer, getIndexEntry(index, 0)));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int getIndexEntry(int index, int field) {
+    if (index < 0 || index >= myClassCount) {
+      throw new IndexOutOfBoundsException("Class index " + index + " is out of " + myClassCount);
+    }
+    return myBuffer.getInt(myIndexOffset + index * ProjectDataWriter.INDEX_ENTRY_SIZE + field);
+  }
+
+  private static DataInputStream createInput(ByteBuffer buffer, int offset) {
+    final ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    return new DataInputStream(new ByteBufferInputStream(duplicate));
+  }
+}
@@ -19,6 +19,8 @@ package com.intellij.rt.coverage.util;
 import com.intellij.rt.coverage.data.LineData;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
+import java.util.Arrays;
+
 /*
  * @author anna
  * @since 26-Feb-2010
@@ -35,4 +37,22 @@ public class LinesUtil {
     }
     return linesArray;
   }
-}
\ No newline at end of file
+
+  /**
+   * Lines sorted by line number without gaps for missing lines, see {@link com.intellij.rt.coverage.data.ClassData#setSortedLines(LineData[])}.
+   * Unlike {@link #calcLineArray(int, TIntObjectHashMap)} the array is not sized by the greatest line number.
+   */
+  public static LineData[] calcSortedLines(final TIntObjectHashMap lines) {
+    final int[] lineNumbers = lines.keys();
+    Arrays.sort(lineNumbers);
+    int start = 0;
+    while (start < lineNumbers.length && lineNumbers[start] < 1) start++;
+    final LineData[] result = new LineData[lineNumbers.length - start];
+    for (int i = 0; i < result.length; i++) {
+      final LineData lineData = (LineData) lines.get(lineNumbers[start + i]);
+      lineData.fillArrays();
+      result[i] = lineData;
+    }
+    return result;
+  }
+}
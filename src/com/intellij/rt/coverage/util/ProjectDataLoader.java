@@ -22,6 +22,11 @@ import com.intellij.rt.coverage.data.ProjectData;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * @author anna
@@ -29,68 +34,55 @@ import java.io.*;
  */
 public class ProjectDataLoader {
 
+  /**
+   * A file in the compressed format is loaded only as a whole: if it is truncated or damaged, no data is returned.
+   */
   public static ProjectData load(File sessionDataFile) {
     final ProjectData projectInfo = new ProjectData();
     DataInputStream in = null;
+    boolean isCompressed = false;
     try {
-      in = new DataInputStream(new BufferedInputStream(new FileInputStream(sessionDataFile)));
+      final CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(sessionDataFile)));
+      in = new DataInputStream(counting);
       final TIntObjectHashMap<ClassData> dict = new TIntObjectHashMap<ClassData>(1000, 0.99f);
-      final int classCount = CoverageIOUtil.readINT(in);
+      int classCount = CoverageIOUtil.readINT(in);
+      CompressedInput compressed = null;
+      if (classCount == ProjectDataWriter.VERSIONED_FORMAT_MARKER) {
+        final int version = CoverageIOUtil.readINT(in);
+        if (version == ProjectDataWriter.COMPRESSED_FORMAT_VERSION) {
+          isCompressed = true;
+          compressed = CompressedInput.open(sessionDataFile, counting);
+          in = compressed;
+        } else if (version != ProjectDataWriter.INDEXED_FORMAT_VERSION) {
+          throw new IOException("Unsupported coverage data format version: " + version);
+        }
+        // the index at the end of an indexed file is not needed for sequential reading
+        classCount = CoverageIOUtil.readINT(in);
+      }
       for (int c = 0; c < classCount; c++) {
         final ClassData classInfo = projectInfo.getOrCreateClassData(StringsPool.getFromPool(CoverageIOUtil.readUTFFast(in)));
         dict.put(c, classInfo);
       }
       for (int c = 0; c < classCount; c++) {
         final ClassData classInfo = dict.get(CoverageIOUtil.readINT(in));
-        final int methCount = CoverageIOUtil.readINT(in);
-        final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
-        int maxLine = 1;
-        for (int m = 0; m < methCount; m++) {
-          final String methodSig = expand(in, dict);
-          final int lineCount = CoverageIOUtil.readINT(in);
-          for (int l = 0; l < lineCount; l++) {
-            final int line = CoverageIOUtil.readINT(in);
-            LineData lineInfo = lines.get(line);
-            if (lineInfo == null) {
-              lineInfo = new LineData(line, StringsPool.getFromPool(methodSig));
-              lines.put(line, lineInfo);
-              if (line > maxLine) maxLine = line;
-            }
-            classInfo.registerMethodSignature(lineInfo);
-            String testName = CoverageIOUtil.readUTFFast(in);
-            if (testName != null && testName.length() > 0) {
-              lineInfo.setTestName(testName);
-            }
-            final int hits = CoverageIOUtil.readINT(in);
-            lineInfo.setHits(hits);
-            if (hits > 0) {
-              final int jumpsNumber = CoverageIOUtil.readINT(in);
-              for (int j = 0; j < jumpsNumber; j++) {
-                lineInfo.setTrueHits(j, CoverageIOUtil.readINT(in));
-                lineInfo.setFalseHits(j, CoverageIOUtil.readINT(in));
-              }
-              final int switchesNumber = CoverageIOUtil.readINT(in);
-              for (int s = 0; s < switchesNumber; s++) {
-                final int defaultHit = CoverageIOUtil.readINT(in);
-                final int keysLength = CoverageIOUtil.readINT(in);
-                final int[] keys = new int[keysLength];
-                final int[] keysHits = new int[keysLength];
-                for (int k = 0; k < keysLength; k++) {
-                  keys[k] = CoverageIOUtil.readINT(in);
-                  keysHits[k] = CoverageIOUtil.readINT(in);
-                }
-                lineInfo.setDefaultHits(s, keys, defaultHit);
-                lineInfo.setSwitchHits(s, keys, keysHits);
-              }
-            }
-            lineInfo.fillArrays();
+        final Dictionary dictionary = new Dictionary() {
+          public String getName(int index) {
+            return dict.get(index).getName();
           }
+        };
+        if (compressed != null) {
+          loadCompactClass(in, classInfo, dictionary);
+        } else {
+          loadClass(in, classInfo, dictionary);
         }
-        classInfo.setLines(com.intellij.rt.coverage.util.LinesUtil.calcLineArray(maxLine, lines));
+      }
+      if (compressed != null) {
+        compressed.verify();
       }
     } catch (Exception e) {
       ErrorReporter.reportError("Failed to load coverage data from file: " + sessionDataFile.getAbsolutePath(), e);
-      return projectInfo;
+      // classes loaded from a damaged compressed file may have any hits, so they are dropped
+      return isCompressed ? new ProjectData() : projectInfo;
     }
     finally {
       try {
@@ -103,7 +95,101 @@ public class ProjectDataLoader {
     return projectInfo;
   }
 
-  private static String expand(DataInputStream in, final TIntObjectHashMap<ClassData> dict) throws IOException {
+  /**
+   * Reads a class record after the dictionary index of the class.
+   *
+   * @param dictionary class names by their dictionary indices
+   */
+  static void loadClass(DataInputStream in, ClassData classInfo, Dictionary dictionary) throws IOException {
+    final int methCount = CoverageIOUtil.readINT(in);
+    final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
+    for (int m = 0; m < methCount; m++) {
+      final String methodSig = expand(in, dictionary);
+      final int lineCount = CoverageIOUtil.readINT(in);
+      for (int l = 0; l < lineCount; l++) {
+        final int line = CoverageIOUtil.readINT(in);
+        LineData lineInfo = lines.get(line);
+        if (lineInfo == null) {
+          lineInfo = new LineData(line, StringsPool.getFromPool(methodSig));
+          lines.put(line, lineInfo);
+        }
+        classInfo.registerMethodSignature(lineInfo);
+        String testName = CoverageIOUtil.readUTFFast(in);
+        if (testName != null && testName.length() > 0) {
+          lineInfo.setTestName(testName);
+        }
+        final int hits = CoverageIOUtil.readINT(in);
+        lineInfo.setHits(hits);
+        if (hits > 0) {
+          loadBranches(in, lineInfo);
+        }
+        lineInfo.fillArrays();
+      }
+    }
+    classInfo.setSortedLines(LinesUtil.calcSortedLines(lines));
+  }
+
+  /**
+   * Reads a class record of the compressed format, see {@link ClassData#saveCompact}.
+   */
+  static void loadCompactClass(DataInputStream in, ClassData classInfo, Dictionary dictionary) throws IOException {
+    final int methCount = CoverageIOUtil.readINT(in);
+    final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
+    final List<String> testNames = new ArrayList<String>();
+    for (int m = 0; m < methCount; m++) {
+      final String methodSig = expand(in, dictionary);
+      final int lineCount = CoverageIOUtil.readINT(in);
+      int line = 0;
+      for (int l = 0; l < lineCount; l++) {
+        final int header = CoverageIOUtil.readINT(in);
+        line += header >> ProjectDataWriter.LINE_FLAGS_SIZE;
+        LineData lineInfo = lines.get(line);
+        if (lineInfo == null) {
+          lineInfo = new LineData(line, StringsPool.getFromPool(methodSig));
+          lines.put(line, lineInfo);
+        }
+        classInfo.registerMethodSignature(lineInfo);
+        lineInfo.setHits((header & ProjectDataWriter.LINE_HITS) != 0 ? CoverageIOUtil.readINT(in) : 0);
+        if ((header & ProjectDataWriter.LINE_BRANCHES) != 0) {
+          loadBranches(in, lineInfo);
+        }
+        if ((header & ProjectDataWriter.LINE_TEST) != 0) {
+          final int testIndex = CoverageIOUtil.readINT(in);
+          if (testIndex == testNames.size()) {
+            testNames.add(CoverageIOUtil.readUTFFast(in));
+          } else if (testIndex > testNames.size()) {
+            throw new IOException("Unknown test index " + testIndex + " in class " + classInfo.getName());
+          }
+          lineInfo.setTestName(testNames.get(testIndex));
+        }
+        lineInfo.fillArrays();
+      }
+    }
+    classInfo.setSortedLines(LinesUtil.calcSortedLines(lines));
+  }
+
+  private static void loadBranches(DataInputStream in, LineData lineInfo) throws IOException {
+    final int jumpsNumber = CoverageIOUtil.readINT(in);
+    for (int j = 0; j < jumpsNumber; j++) {
+      lineInfo.setTrueHits(j, CoverageIOUtil.readINT(in));
+      lineInfo.setFalseHits(j, CoverageIOUtil.readINT(in));
+    }
+    final int switchesNumber = CoverageIOUtil.readINT(in);
+    for (int s = 0; s < switchesNumber; s++) {
+      final int defaultHit = CoverageIOUtil.readINT(in);
+      final int keysLength = CoverageIOUtil.readINT(in);
+      final int[] keys = new int[keysLength];
+      final int[] keysHits = new int[keysLength];
+      for (int k = 0; k < keysLength; k++) {
+        keys[k] = CoverageIOUtil.readINT(in);
+        keysHits[k] = CoverageIOUtil.readINT(in);
+      }
+      lineInfo.setDefaultHits(s, keys, defaultHit);
+      lineInfo.setSwitchHits(s, keys, keysHits);
+    }
+  }
+
+  private static String expand(DataInputStream in, final Dictionary dictionary) throws IOException {
     return CoverageIOUtil.processWithDictionary(CoverageIOUtil.readUTFFast(in), new CoverageIOUtil.Consumer() {
       protected String consume(String type) {
           final int typeIdx;
@@ -112,8 +198,103 @@ public class ProjectDataLoader {
           } catch (NumberFormatException e) {
             return type;
           }
-          return (dict.get(typeIdx)).getName();
+          return dictionary.getName(typeIdx);
       }
     });
   }
-}
\ No newline at end of file
+
+  interface Dictionary {
+    String getName(int index);
+  }
+
+  /**
+   * Decompressed data of the compressed format. The trailer is checked before reading,
+   * so a truncated file is rejected without loading a part of it, the checksum is checked by {@link #verify()}.
+   */
+  private static class CompressedInput extends DataInputStream {
+    private final CRC32 myChecksum;
+    private final int myExpectedChecksum;
+
+    private CompressedInput(InputStream in, CRC32 checksum, int expectedChecksum) {
+      super(in);
+      myChecksum = checksum;
+      myExpectedChecksum = expectedChecksum;
+    }
+
+    /**
+     * @param header stream of the file positioned after the format version
+     */
+    static CompressedInput open(File file, CountingInputStream header) throws IOException {
+      final long fileLength = file.length();
+      final long dataOffset = header.getCount();
+      if (fileLength < dataOffset + ProjectDataWriter.COMPRESSED_TRAILER_SIZE) {
+        throw new IOException("Coverage data is truncated");
+      }
+      final long length;
+      final int checksum;
+      final RandomAccessFile trailer = new RandomAccessFile(file, "r");
+      try {
+        trailer.seek(fileLength - ProjectDataWriter.COMPRESSED_TRAILER_SIZE);
+        length = trailer.readLong();
+        checksum = trailer.readInt();
+      } finally {
+        trailer.close();
+      }
+      if (dataOffset + length + ProjectDataWriter.COMPRESSED_TRAILER_SIZE != fileLength) {
+        throw new IOException("Coverage data is truncated or damaged: the trailer does not match the file length " + fileLength);
+      }
+      final CRC32 crc = new CRC32();
+      return new CompressedInput(new BufferedInputStream(new CheckedInputStream(new InflaterInputStream(header), crc), 64 * 1024),
+          crc, checksum);
+    }
+
+    /**
+     * Checks that all the data is read and matches the checksum.
+     */
+    void verify() throws IOException {
+      if (read() != -1) {
+        throw new IOException("Unexpected data after the last class");
+      }
+      if ((int) myChecksum.getValue() != myExpectedChecksum) {
+        throw new IOException("Coverage data is damaged: checksum mismatch");
+      }
+    }
+  }
+
+  /**
+   * Counts bytes read from the stream.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private long myCount;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    public int read() throws IOException {
+      final int b = in.read();
+      if (b >= 0) myCount++;
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int read = in.read(b, off, len);
+      if (read > 0) myCount += read;
+      return read;
+    }
+
+    public long skip(long n) throws IOException {
+      final long skipped = in.skip(n);
+      myCount += skipped;
+      return skipped;
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+
+    long getCount() {
+      return myCount;
+    }
+  }
+}
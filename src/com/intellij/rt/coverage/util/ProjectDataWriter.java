@@ -0,0 +1,219 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes coverage data in the format read by {@link ProjectDataLoader#load(java.io.File)}.
+ * <p>
+ * Classes are written straight from the project data: the only auxiliary structure is an array of classes
+ * sorted by name, it serves as the dictionary, so the dictionary index of a class is found with binary search.
+ * <p>
+ * Indexed format starts with {@link #VERSIONED_FORMAT_MARKER} and the format version followed by the same data,
+ * then goes the index of class name and class record offsets and a fixed size footer, see {@link IndexedProjectData}.
+ * <p>
+ * Compressed format starts with {@link #VERSIONED_FORMAT_MARKER} and {@link #COMPRESSED_FORMAT_VERSION},
+ * the rest of the data is compressed with {@link Deflater} and class records are written compactly,
+ * see {@link ClassData#saveCompact}. The file ends with a fixed size trailer: the length of the compressed data
+ * and CRC32 of the uncompressed data, so that a truncated or damaged file is rejected as a whole.
+ */
+public class ProjectDataWriter {
+  /**
+   * Class count of the unversioned format is never negative, so readers distinguish formats by the first value.
+   */
+  public static final int VERSIONED_FORMAT_MARKER = -1;
+  public static final int INDEXED_FORMAT_VERSION = 1;
+  public static final int COMPRESSED_FORMAT_VERSION = 2;
+  /**
+   * Trailer of the compressed format: compressed data length as a fixed size long and CRC32 as a fixed size int.
+   */
+  static final int COMPRESSED_TRAILER_SIZE = 12;
+  /**
+   * Flags of a line in the compressed format, which tell whether hits, jumps and switches or a test name
+   * follow the line number difference.
+   */
+  public static final int LINE_HITS = 1;
+  public static final int LINE_BRANCHES = 2;
+  public static final int LINE_TEST = 4;
+  public static final int LINE_FLAGS_SIZE = 3;
+  /**
+   * Footer of the indexed format: index offset and class count as fixed size ints.
+   */
+  static final int INDEXED_FOOTER_SIZE = 8;
+  /**
+   * Index entry of the indexed format: name offset and record offset as fixed size ints.
+   */
+  static final int INDEX_ENTRY_SIZE = 8;
+
+  private static final Comparator<ClassData> BY_NAME = new Comparator<ClassData>() {
+    public int compare(ClassData o1, ClassData o2) {
+      return o1.getName().compareTo(o2.getName());
+    }
+  };
+
+  public static void write(DataOutputStream os, ProjectData projectData) throws IOException {
+    write(os, getSortedClasses(projectData), null, null);
+  }
+
+  /**
+   * Writes the indexed format, offsets are counted from the start of the stream,
+   * so <code>os</code> should be opened at the beginning of a file.
+   */
+  public static void writeIndexed(DataOutputStream os, ProjectData projectData) throws IOException {
+    final ClassData[] classes = getSortedClasses(projectData);
+    final int[] nameOffsets = new int[classes.length];
+    final int[] recordOffsets = new int[classes.length];
+    CoverageIOUtil.writeINT(os, VERSIONED_FORMAT_MARKER);
+    CoverageIOUtil.writeINT(os, INDEXED_FORMAT_VERSION);
+    write(os, classes, nameOffsets, recordOffsets);
+
+    final int indexOffset = getOffset(os);
+    for (int i = 0; i < classes.length; i++) {
+      os.writeInt(nameOffsets[i]);
+      os.writeInt(recordOffsets[i]);
+    }
+    os.writeInt(indexOffset);
+    os.writeInt(classes.length);
+  }
+
+  /**
+   * Writes the compressed format, <code>os</code> is not closed.
+   */
+  public static void writeCompressed(DataOutputStream os, ProjectData projectData) throws IOException {
+    final ClassData[] classes = getSortedClasses(projectData);
+    CoverageIOUtil.writeINT(os, VERSIONED_FORMAT_MARKER);
+    CoverageIOUtil.writeINT(os, COMPRESSED_FORMAT_VERSION);
+
+    final CountingOutputStream counting = new CountingOutputStream(os);
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    final CRC32 crc = new CRC32();
+    try {
+      final DeflaterOutputStream deflated = new DeflaterOutputStream(counting, deflater, 64 * 1024);
+      final DataOutputStream body = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(deflated, crc), 64 * 1024));
+      CoverageIOUtil.writeINT(body, classes.length);
+      for (ClassData classData : classes) {
+        CoverageIOUtil.writeUTF(body, classData.getName());
+      }
+      final DictionaryLookup dictionaryLookup = new DictionaryLookup() {
+        public int getDictionaryIndex(String className) {
+          return indexOf(classes, className);
+        }
+      };
+      for (ClassData classData : classes) {
+        classData.saveCompact(body, dictionaryLookup);
+      }
+      body.flush();
+      deflated.finish();
+    } finally {
+      deflater.end();
+    }
+    os.writeLong(counting.getCount());
+    os.writeInt((int) crc.getValue());
+  }
+
+  private static ClassData[] getSortedClasses(ProjectData projectData) {
+    final ClassData[] classes = projectData.getClassesCollection().toArray(new ClassData[0]);
+    Arrays.sort(classes, BY_NAME);
+    return classes;
+  }
+
+  private static void write(DataOutputStream os, final ClassData[] classes, int[] nameOffsets, int[] recordOffsets) throws IOException {
+    CoverageIOUtil.writeINT(os, classes.length);
+    for (int i = 0; i < classes.length; i++) {
+      if (nameOffsets != null) {
+        nameOffsets[i] = getOffset(os);
+      }
+      CoverageIOUtil.writeUTF(os, classes[i].getName());
+    }
+
+    final DictionaryLookup dictionaryLookup = new DictionaryLookup() {
+      public int getDictionaryIndex(String className) {
+        return indexOf(classes, className);
+      }
+    };
+    for (int i = 0; i < classes.length; i++) {
+      if (recordOffsets != null) {
+        recordOffsets[i] = getOffset(os);
+      }
+      classes[i].save(os, dictionaryLookup);
+    }
+  }
+
+  private static int getOffset(DataOutputStream os) throws IOException {
+    final int offset = os.size();
+    if (offset == Integer.MAX_VALUE) {
+      throw new IOException("Coverage data is too large for the indexed format");
+    }
+    return offset;
+  }
+
+  private static int indexOf(ClassData[] classes, String className) {
+    int low = 0;
+    int high = classes.length - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int cmp = classes[middle].getName().compareTo(className);
+      if (cmp < 0) {
+        low = middle + 1;
+      } else if (cmp > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Counts bytes written to the stream, the stream is not closed.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long myCount;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      myCount++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      myCount += len;
+    }
+
+    public void close() throws IOException {
+      flush();
+    }
+
+    long getCount() {
+      return myCount;
+    }
+  }
+}
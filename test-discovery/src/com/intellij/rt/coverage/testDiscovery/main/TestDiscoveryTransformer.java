@@ -19,6 +19,7 @@ package com.intellij.rt.coverage.testDiscovery.main;
 import com.intellij.rt.coverage.instrumentation.AbstractIntellijClassfileTransformer;
 import com.intellij.rt.coverage.testDiscovery.instrumentation.TestDiscoveryInnerClassInstrumenter;
 import com.intellij.rt.coverage.testDiscovery.instrumentation.TestDiscoveryInstrumenter;
+import com.intellij.rt.coverage.util.ClassFilter;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
@@ -29,12 +30,10 @@ import java.util.regex.Pattern;
 public class TestDiscoveryTransformer extends AbstractIntellijClassfileTransformer {
   private static final boolean COUNTERS_IN_INNER_CLASS = System.getProperty("idea.test.discovery.counters.in.inner.class") != null;
 
-  private final List<Pattern> exclude;
-  private final List<Pattern> include;
+  private final ClassFilter myFilter;
 
   public TestDiscoveryTransformer(List<Pattern> exclude, List<Pattern> include) {
-    this.exclude = exclude;
-    this.include = include;
+    myFilter = new ClassFilter(include, exclude);
   }
 
   @Override
@@ -46,13 +45,7 @@ public class TestDiscoveryTransformer extends AbstractIntellijClassfileTransform
 
   @Override
   protected boolean shouldExclude(String className) {
-    for (Pattern e : exclude) {
-      if (e.matcher(className).matches()) return true;
-    }
-    for (Pattern e : include) {
-      if (e.matcher(className).matches()) return false;
-    }
     // if we have any include pattern we should say exclude class here
-    return !include.isEmpty();
+    return myFilter.isExcluded(className) || !myFilter.isIncluded(className);
   }
 }
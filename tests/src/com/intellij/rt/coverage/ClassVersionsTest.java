@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageClassfileTransformer;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
+import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+/**
+ * Different versions of a class loaded by different class loaders count hits in arrays of their own.
+ */
+public class ClassVersionsTest extends TestCase {
+  private static final String NEW_TRACING = "idea.new.tracing.coverage";
+  private static final String NAME = "com.intellij.rt.coverage.VersionSample";
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(NEW_TRACING);
+    super.tearDown();
+  }
+
+  public void testSampling() throws Exception {
+    doTest(ProjectData.createProjectData(null, null, false, true));
+  }
+
+  public void testTracing() throws Exception {
+    System.setProperty(NEW_TRACING, "true");
+    doTest(ProjectData.createProjectData(null, null, false, false));
+  }
+
+  public void testUnregisteredClass() throws Exception {
+    ProjectData.createProjectData(null, null, false, true);
+    assertNull(ProjectData.loadHits(NAME, 0));
+    assertNull(ProjectData.loadHitFlags(NAME, 0));
+    assertNull(ProjectData.loadThreadHits(NAME, 0));
+  }
+
+  private void doTest(ProjectData projectData) throws Exception {
+    final byte[] first = instrument(projectData, generate(10, 11));
+    final byte[] second = instrument(projectData, generate(11, 20, 21));
+    run(first, 1);
+    run(second, 2);
+    // the same version in another loader shares the hits array
+    run(instrument(projectData, generate(10, 11)), 1);
+
+    final ClassData classData = projectData.createSnapshot(false).getClassData(NAME);
+    assertEquals(2, getHits(classData, 10));
+    assertEquals(4, getHits(classData, 11));
+    assertEquals(2, getHits(classData, 20));
+    assertEquals(2, getHits(classData, 21));
+  }
+
+  private static int getHits(ClassData classData, int line) {
+    final LineData lineData = classData.getLineData(line);
+    assertNotNull(String.valueOf(line), lineData);
+    return lineData.getHits();
+  }
+
+  private void run(byte[] bytes, int times) throws Exception {
+    final Class<?> aClass = new TransformedClassLoader(getClass().getClassLoader(), NAME, bytes).loadClass(NAME, true);
+    for (int i = 0; i < times; i++) {
+      aClass.getMethod("run").invoke(null);
+    }
+  }
+
+  private static byte[] instrument(ProjectData projectData, byte[] bytes) {
+    final ClassFinder finder = new ClassFinder(Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList());
+    return new CoverageClassfileTransformer(projectData, false, Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), finder)
+        .instrument(bytes, NAME, ClassVersionsTest.class.getClassLoader(), true);
+  }
+
+  /**
+   * @return class with a static method <code>run</code>, which has a statement on each of the lines
+   */
+  private static byte[] generate(int... lines) {
+    final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    final String internalName = NAME.replace('.', '/');
+    cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+    cw.visitSource("VersionSample.java", null);
+    final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+    mv.visitCode();
+    for (int line : lines) {
+      final Label label = new Label();
+      mv.visitLabel(label);
+      mv.visitLineNumber(line, label);
+      mv.visitInsn(Opcodes.ICONST_0);
+      mv.visitInsn(Opcodes.POP);
+    }
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+}
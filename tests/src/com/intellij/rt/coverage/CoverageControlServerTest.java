@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageClassfileTransformer;
+import com.intellij.rt.coverage.instrumentation.CoverageControlServer;
+import com.intellij.rt.coverage.instrumentation.SaveHook;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class CoverageControlServerTest extends TestCase {
+  private CoverageControlServer myServer;
+  private LineData myLine;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, false);
+    final ClassData classData = projectData.getOrCreateClassData("A");
+    classData.setLines(new LineData[]{null, new LineData(1, "foo()V")});
+    myLine = classData.getLineData(1);
+
+    final ClassFinder classFinder = new ClassFinder(Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList());
+    final SaveHook saveHook = new SaveHook(null, false, classFinder);
+    final CoverageClassfileTransformer transformer = new CoverageClassfileTransformer(projectData, false,
+        Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), classFinder);
+    myServer = new CoverageControlServer(0, saveHook, transformer);
+    final Thread thread = new Thread(myServer);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myServer.close();
+    super.tearDown();
+  }
+
+  public void testDumpAndReset() throws Exception {
+    myLine.touch();
+    myLine.touch();
+    assertEquals(2, dump("dump").getClassData("A").getLineData(1).getHits());
+    assertEquals(2, dump("dump-reset").getClassData("A").getLineData(1).getHits());
+    assertEquals(0, dump("dump").getClassData("A").getLineData(1).getHits());
+
+    myLine.touch();
+    assertEquals("OK\n", new String(send("reset"), "UTF-8"));
+    assertEquals(0, dump("dump").getClassData("A").getLineData(1).getHits());
+  }
+
+  public void testStats() throws Exception {
+    final String stats = new String(send("stats"), "UTF-8");
+    assertTrue(stats, stats.contains("classes.transformed=0\n"));
+    assertTrue(stats, stats.contains("classes.registered=1\n"));
+    assertTrue(stats, stats.contains("hierarchy.cache.misses=0\n"));
+    assertTrue(stats, stats.contains("strings.pool.hits="));
+  }
+
+  public void testUnknownCommand() throws Exception {
+    assertTrue(new String(send("foo"), "UTF-8").startsWith("ERROR"));
+  }
+
+  private ProjectData dump(String command) throws IOException {
+    final File file = File.createTempFile("coverage", ".ic");
+    try {
+      final FileOutputStream os = new FileOutputStream(file);
+      try {
+        os.write(send(command));
+      } finally {
+        os.close();
+      }
+      return ProjectDataLoader.load(file);
+    } finally {
+      file.delete();
+    }
+  }
+
+  private byte[] send(String command) throws IOException {
+    final Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), myServer.getPort());
+    try {
+      socket.getOutputStream().write((command + "\n").getBytes("UTF-8"));
+      socket.getOutputStream().flush();
+      final InputStream in = socket.getInputStream();
+      final ByteArrayOutputStream result = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        result.write(buffer, 0, read);
+      }
+      return result.toByteArray();
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -19,6 +19,8 @@ package com.intellij.rt.coverage;
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.CoverageMerger;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
 import com.sun.tools.javac.Main;
 import junit.framework.TestCase;
 
@@ -153,6 +155,16 @@ public class CoverageMergeTest extends TestCase {
     //check that data was not spoiled
     checkData(expected1, FRST_CLASS_NAMES, projectData1);
     checkData(expected2, SCD_CLASS_NAMES, projectData2);
+
+    final String testDataPath = getTestDataPath(testName);
+    final List<File> files = Arrays.asList(new File(testDataPath, "Test1.ic"), new File(testDataPath, "Test2.ic"));
+    final CoverageMerger merger = new CoverageMerger(2);
+    final File mergedFile = new File(testDataPath, "merged.ic");
+    myFiles2Delete.add(mergedFile);
+    merger.write(merger.merge(files), mergedFile);
+    checkData(expectedMerged, ALL_CLASS_NAMES, ProjectDataLoader.load(mergedFile));
+    assertEquals(2, merger.getStatistics().getFiles());
+    assertEquals(ALL_CLASS_NAMES.length, merger.getStatistics().getClasses());
   }
 
   private void checkData(String expected, String[] classNames, ProjectData projectData) {
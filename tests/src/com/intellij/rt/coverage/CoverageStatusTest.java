@@ -17,8 +17,10 @@
 package com.intellij.rt.coverage;
 
 import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.JumpData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.data.SwitchData;
 import com.intellij.rt.coverage.util.FileUtil;
 import com.intellij.rt.coverage.util.ProcessUtil;
 import com.intellij.rt.coverage.util.ProjectDataLoader;
@@ -30,6 +32,7 @@ import org.junit.Assert;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 
@@ -38,6 +41,22 @@ import java.util.Comparator;
  * @since 22-May-2008
  */
 public class CoverageStatusTest extends TestCase {
+  private static final String NEW_TRACING = "-Didea.new.tracing.coverage=true";
+  private static final String OLD_SAMPLING = "-Didea.new.sampling.coverage=false";
+  private static final String HIT_FLAGS = "-Didea.coverage.hit.flags=true";
+  private static final String THREAD_HITS = "-Didea.coverage.thread.hits=true";
+
+  private static final String SIMPLE_TRACING = "1:NONE\n" +
+      "3:FULL\n" +
+      "4:PARTIAL\n" +
+      "5:FULL\n" +
+      "6:FULL\n" +
+      "8:NONE\n" +
+      "11:PARTIAL\n" +
+      "13:FULL\n" +
+      "14:FULL\n" +
+      "16:NONE\n";
+
   private File myDataFile;
   private File myClassFile;
 
@@ -136,6 +155,15 @@ public class CoverageStatusTest extends TestCase {
     doTest("longClass", expectedBuilder.toString(), true);
   }
 
+  public void testLongClassOldSampling() throws Exception {
+    StringBuilder expectedBuilder = new StringBuilder("1:NONE\n" +
+        "3:FULL\n");
+    for (int line = 32004; line <= 34004; line++) {
+      expectedBuilder.append(line).append(":FULL\n");
+    }
+    doTest("longClass", expectedBuilder.toString(), true, OLD_SAMPLING);
+  }
+
   public void testLongClassTracing() throws Exception {
     StringBuilder expectedBuilder = new StringBuilder("1:NONE\n" +
         "3:FULL\n");
@@ -145,6 +173,200 @@ public class CoverageStatusTest extends TestCase {
     doTest("longClass", expectedBuilder.toString());
   }
 
+  public void testSimpleNewTracing() throws Exception {
+    doTest("simple", "1:NONE\n" +
+            "3:FULL\n" +
+            "4:PARTIAL\n" +
+            "5:FULL\n" +
+            "6:FULL\n" +
+            "8:NONE\n" +
+            "11:PARTIAL\n" +
+            "13:FULL\n" +
+            "14:FULL\n" +
+            "16:NONE\n", false, NEW_TRACING);
+  }
+
+  public void testBranchesNewTracing() throws Exception {
+    doTest("branches", "1:NONE\n" +
+            "3:FULL\n" +
+            "4:PARTIAL\n" +
+            "5:PARTIAL\n" +
+            "6:NONE\n", false, NEW_TRACING);
+  }
+
+  /**
+   * Instrumented class is loaded by a class loader with its own copy of the coverage data classes,
+   * which calls the agent through the bridge.
+   */
+  public void testProjectDataCopy() throws Exception {
+    final String testDataPath = prepareForAgentRun("bridge");
+    final ProjectData projectData = runCoverage(testDataPath, myDataFile, "Test(\\$.*)*", "Test", false, false,
+        "-Dcoverage.agent.path=" + ResourceUtil.getAgentPath("intellij-coverage-agent"));
+    final StringBuilder result = new StringBuilder();
+    for (Object object : projectData.getClassData("Test$Sample").getLines()) {
+      if (object == null) continue;
+      final LineData line = (LineData) object;
+      result.append(line.getLineNumber()).append(":").append(line.getHits());
+      final JumpData[] jumps = line.getJumps();
+      for (int i = 0; jumps != null && i < jumps.length; i++) {
+        result.append(",jump").append(i).append("=").append(jumps[i].getTrueHits()).append("/").append(jumps[i].getFalseHits());
+      }
+      result.append("\n");
+    }
+    assertEquals("31:0\n" +
+        "33:1\n" +
+        "34:4,jump0=3/1\n" +
+        "35:3,jump0=2/1\n" +
+        "36:2\n" +
+        "39:1\n" +
+        "41:1\n" +
+        "42:1\n" +
+        "44:0\n" +
+        "46:1\n", result.toString());
+  }
+
+  /**
+   * Jump of an assertion is filtered out after its probes are inserted, the next jump of the line gets the same index.
+   */
+  public void testAssertionsNewTracing() throws Exception {
+    final String testDataPath = prepareForAgentRun("assertions");
+    final String expected = describeBranches(runCoverage(testDataPath, myDataFile, "Test(\\$.*)*", "Test", false, false));
+    myDataFile.delete();
+    assertEquals(expected, describeBranches(runCoverage(testDataPath, myDataFile, "Test(\\$.*)*", "Test", false, false, NEW_TRACING)));
+    assertTrue(expected, expected.contains("4:jump0=0/0,jump1=0/1"));
+  }
+
+  private static String describeBranches(ProjectData projectData) {
+    final StringBuilder result = new StringBuilder();
+    for (Object object : projectData.getClassData("Test").getLines()) {
+      if (object == null) continue;
+      final LineData line = (LineData) object;
+      result.append(line.getLineNumber()).append(":");
+      final JumpData[] jumps = line.getJumps();
+      for (int i = 0; jumps != null && i < jumps.length; i++) {
+        result.append("jump").append(i).append("=").append(jumps[i].getTrueHits()).append("/").append(jumps[i].getFalseHits()).append(",");
+      }
+      final SwitchData[] switches = line.getSwitches();
+      for (int i = 0; switches != null && i < switches.length; i++) {
+        result.append("switch").append(i).append("=").append(Arrays.toString(switches[i].getHits()))
+            .append("/").append(switches[i].getDefaultHits()).append(",");
+      }
+      result.setLength(result.length() - 1);
+      result.append("\n");
+    }
+    return result.toString();
+  }
+
+  public void testLongClassNewTracing() throws Exception {
+    StringBuilder expectedBuilder = new StringBuilder("1:NONE\n" +
+        "3:FULL\n");
+    for (int line = 32004; line < 34004; line++) {
+      expectedBuilder.append(line).append(":FULL\n");
+    }
+    doTest("longClass", expectedBuilder.toString(), false, NEW_TRACING);
+  }
+
+  public void testSimpleTracingHitFlags() throws Exception {
+    doTest("simple", "1:NONE\n" +
+            "3:FULL\n" +
+            "4:PARTIAL\n" +
+            "5:FULL\n" +
+            "6:FULL\n" +
+            "8:NONE\n" +
+            "11:PARTIAL\n" +
+            "13:FULL\n" +
+            "14:FULL\n" +
+            "16:NONE\n", false, HIT_FLAGS);
+  }
+
+  public void testLongClassHitFlags() throws Exception {
+    StringBuilder expectedBuilder = new StringBuilder("1:NONE\n" +
+        "3:FULL\n");
+    for (int line = 32004; line <= 34004; line++) {
+      expectedBuilder.append(line).append(":FULL\n");
+    }
+    doTest("longClass", expectedBuilder.toString(), true, HIT_FLAGS);
+  }
+
+  public void testBranchesTracingHitFlags() throws Exception {
+    doTest("branches", "1:NONE\n" +
+            "3:FULL\n" +
+            "4:PARTIAL\n" +
+            "5:PARTIAL\n" +
+            "6:NONE\n", false, HIT_FLAGS);
+  }
+
+  public void testSimpleThreadHits() throws Exception {
+    doTest("simple", "1:NONE\n" +
+            "3:FULL\n" +
+            "4:PARTIAL\n" +
+            "5:FULL\n" +
+            "6:FULL\n" +
+            "8:NONE\n" +
+            "11:PARTIAL\n" +
+            "13:FULL\n" +
+            "14:FULL\n" +
+            "16:NONE\n", false, THREAD_HITS);
+  }
+
+  public void testLongClassThreadHits() throws Exception {
+    StringBuilder expectedBuilder = new StringBuilder("1:NONE\n" +
+        "3:FULL\n");
+    for (int line = 32004; line <= 34004; line++) {
+      expectedBuilder.append(line).append(":FULL\n");
+    }
+    doTest("longClass", expectedBuilder.toString(), true, THREAD_HITS);
+  }
+
+  public void testSimpleInstrumentedClassCache() throws Exception {
+    doCachedTest("simple", SIMPLE_TRACING, false);
+  }
+
+  public void testSimpleNewTracingInstrumentedClassCache() throws Exception {
+    doCachedTest("simple", SIMPLE_TRACING, false, "-Didea.new.tracing.coverage=true");
+  }
+
+  public void testSimpleSamplingInstrumentedClassCache() throws Exception {
+    doCachedTest("simple", "1:NONE\n" +
+        "3:FULL\n" +
+        "4:FULL\n" +
+        "5:FULL\n" +
+        "6:FULL\n" +
+        "8:NONE\n" +
+        "11:FULL\n" +
+        "13:FULL\n" +
+        "14:FULL\n" +
+        "16:NONE\n" +
+        "18:FULL\n", true);
+  }
+
+  private void doCachedTest(String className, String expected, boolean sampling, String... jvmArgs) throws Exception {
+    final File cacheDir = new File(System.getProperty("java.io.tmpdir"), "coverage-cache-" + System.nanoTime());
+    try {
+      final String[] args = new String[jvmArgs.length + 1];
+      System.arraycopy(jvmArgs, 0, args, 0, jvmArgs.length);
+      args[jvmArgs.length] = "-Didea.coverage.cache.dir=" + cacheDir.getPath();
+      doTest(className, expected, sampling, args);
+      final File[] entries = cacheDir.listFiles();
+      assertNotNull(entries);
+      assertEquals(1, entries.length);
+      final long cachedTime = entries[0].lastModified();
+      entries[0].setLastModified(cachedTime - 10000);
+
+      // the class is taken from the cache and registered without instrumentation
+      doTest(className, expected, sampling, args);
+      assertTrue(entries[0].lastModified() > cachedTime - 10000);
+    } finally {
+      final File[] entries = cacheDir.listFiles();
+      if (entries != null) {
+        for (File entry : entries) {
+          entry.delete();
+        }
+      }
+      cacheDir.delete();
+    }
+  }
+
   public void testIncompleteAgentArguments() throws Exception {
     final String testDataPath = prepareForAgentRun("simple");
     String coverageAgentPath = ResourceUtil.getAgentPath("intellij-coverage-agent");
@@ -173,10 +395,10 @@ public class CoverageStatusTest extends TestCase {
     doTest(className, expected, false);
   }
 
-  private void doTest(final String className, String expected, boolean sampling) throws Exception {
+  private void doTest(final String className, String expected, boolean sampling, String... jvmArgs) throws Exception {
     final String testDataPath = prepareForAgentRun(className);
 
-    final ProjectData projectInfo = runCoverage(testDataPath, myDataFile, "Test(\\$.*)*", "Test", sampling);
+    final ProjectData projectInfo = runCoverage(testDataPath, myDataFile, "Test(\\$.*)*", "Test", sampling, false, jvmArgs);
 
     final StringBuilder buf = new StringBuilder();
 
@@ -209,7 +431,7 @@ public class CoverageStatusTest extends TestCase {
   }
 
   static ProjectData runCoverage(String testDataPath, File coverageDataFile, final String patterns,
-                                 String classToRun, final boolean sampling, boolean calcUnloaded) throws IOException, InterruptedException {
+                                 String classToRun, final boolean sampling, boolean calcUnloaded, String... jvmArgs) throws IOException, InterruptedException {
     String coverageAgentPath = ResourceUtil.getAgentPath("intellij-coverage-agent");
 
     String[] commandLine = {
@@ -218,6 +440,12 @@ public class CoverageStatusTest extends TestCase {
             + sampling + " " + patterns,
         "-classpath", testDataPath, classToRun};
 
+    if (jvmArgs.length > 0) {
+      String[] fullCommandLine = new String[jvmArgs.length + commandLine.length];
+      System.arraycopy(jvmArgs, 0, fullCommandLine, 0, jvmArgs.length);
+      System.arraycopy(commandLine, 0, fullCommandLine, jvmArgs.length, commandLine.length);
+      commandLine = fullCommandLine;
+    }
     ProcessUtil.execJavaProcess(commandLine);
 
     FileUtil.waitUntilFileCreated(coverageDataFile);
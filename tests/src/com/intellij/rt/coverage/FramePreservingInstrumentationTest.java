@@ -0,0 +1,117 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageClassfileTransformer;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class FramePreservingInstrumentationTest extends TestCase {
+  private static final String PRESERVE_FRAMES = "idea.coverage.preserve.frames";
+  private static final String NEW_SAMPLING = "idea.new.sampling.coverage";
+
+  /**
+   * Class hierarchy is not available in this loader, so frames cannot be recomputed.
+   */
+  private static final ClassLoader EMPTY_LOADER = new ClassLoader(null) {
+  };
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(PRESERVE_FRAMES);
+    System.clearProperty(NEW_SAMPLING);
+    super.tearDown();
+  }
+
+  public void testNewSampling() throws Exception {
+    doTest();
+  }
+
+  public void testOldSampling() throws Exception {
+    System.setProperty(NEW_SAMPLING, "false");
+    doTest();
+  }
+
+  public void testRecomputedFramesNeedClassHierarchy() throws Exception {
+    System.setProperty(PRESERVE_FRAMES, "false");
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, true);
+    try {
+      instrument(projectData);
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("not found"));
+    }
+  }
+
+  private void doTest() throws Exception {
+    final String name = FramesSample.class.getName();
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, true);
+    final byte[] bytes = instrument(projectData);
+    final Class<?> aClass = new TransformedClassLoader(getClass().getClassLoader(), name, bytes).loadClass(name, true);
+    assertEquals(17L, aClass.getMethod("run", int.class).invoke(null, 5));
+
+    final ClassData classData = projectData.createSnapshot(false).getClassData(name);
+    int covered = 0;
+    for (Object line : classData.getLines()) {
+      if (line != null && ((LineData) line).getHits() > 0) covered++;
+    }
+    assertTrue(String.valueOf(covered), covered >= 8);
+  }
+
+  private static byte[] instrument(ProjectData projectData) throws Exception {
+    final String name = FramesSample.class.getName();
+    final byte[] bytes = TransformedClassLoader.readBytes(
+        FramesSample.class.getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class"));
+    final ClassFinder finder = new ClassFinder(Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList());
+    return new CoverageClassfileTransformer(projectData, false, Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), finder)
+        .instrument(bytes, name, EMPTY_LOADER, true);
+  }
+
+  @SuppressWarnings("unused")
+  public static class FramesSample {
+    public static class Base {
+    }
+
+    public static class A extends Base {
+    }
+
+    public static class B extends Base {
+    }
+
+    public static long run(int n) {
+      long sum = 0;
+      for (int i = 0; i < n; i++) {
+        final Base base = i % 2 == 0 ? new A() : new B();
+        try {
+          sum += base instanceof A ? 1 : 2;
+          if (i == 3) {
+            throw new IllegalStateException();
+          }
+        } catch (IllegalStateException e) {
+          sum += 10;
+        }
+      }
+      return sum;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.offline.OfflineInstrumentation;
+import com.intellij.rt.coverage.util.FileUtil;
+import com.intellij.rt.coverage.util.ProcessUtil;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import com.intellij.rt.coverage.util.ResourceUtil;
+import com.sun.tools.javac.Main;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class OfflineInstrumentationTest extends TestCase {
+  private File myTempDir;
+  private File myClassesDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = File.createTempFile("offline", "");
+    myTempDir.delete();
+    myClassesDir = new File(myTempDir, "classes");
+    myClassesDir.mkdirs();
+    final String testDataPath = new File("").getAbsolutePath() + File.separator + "testData" + File.separator + "coverage" + File.separator + "simple";
+    if (Main.compile(new String[]{"-d", myClassesDir.getPath(), testDataPath + File.separator + "Test.java"}) != 0) {
+      throw new RuntimeException("Compilation failed");
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(myTempDir);
+    super.tearDown();
+  }
+
+  public void testDirectory() throws Exception {
+    assertEquals("1:NONE\n" +
+        "3:FULL\n" +
+        "4:PARTIAL\n" +
+        "5:FULL\n" +
+        "6:FULL\n" +
+        "8:NONE\n" +
+        "11:PARTIAL\n" +
+        "13:FULL\n" +
+        "14:FULL\n" +
+        "16:NONE\n", doTest(myClassesDir, false));
+  }
+
+  public void testJarSampling() throws Exception {
+    final File jar = new File(myTempDir, "test.jar");
+    final ZipOutputStream os = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (File file : myClassesDir.listFiles()) {
+        os.putNextEntry(new ZipEntry(file.getName()));
+        final InputStream is = new FileInputStream(file);
+        try {
+          os.write(TransformedClassLoader.readBytes(is));
+        } finally {
+          is.close();
+        }
+        os.closeEntry();
+      }
+    } finally {
+      os.close();
+    }
+    assertEquals("1:NONE\n" +
+        "3:FULL\n" +
+        "4:FULL\n" +
+        "5:FULL\n" +
+        "6:FULL\n" +
+        "8:NONE\n" +
+        "11:FULL\n" +
+        "13:FULL\n" +
+        "14:FULL\n" +
+        "16:NONE\n" +
+        "18:FULL\n", doTest(jar, true));
+  }
+
+  private String doTest(File input, boolean sampling) throws Exception {
+    final File outputDir = new File(myTempDir, "out");
+    final File metadataFile = new File(myTempDir, "coverage.meta");
+    final File dataFile = new File(myTempDir, "coverage.ic");
+    final List<Pattern> includes = Collections.singletonList(Pattern.compile("Test(\\$.*)*"));
+    final int classes = new OfflineInstrumentation(Collections.singletonList(input), outputDir, Collections.<File>emptyList(),
+        sampling, 2, includes, Collections.<Pattern>emptyList()).instrument(metadataFile);
+    assertTrue(classes > 0);
+
+    final String runtimePath = ResourceUtil.getAgentPath("intellij-coverage-runtime");
+    ProcessUtil.execJavaProcess(new String[]{
+        "-javaagent:" + runtimePath + "=" + dataFile.getPath() + File.pathSeparator + metadataFile.getPath(),
+        "-classpath", new File(outputDir, input.getName()).getPath(), "Test"});
+
+    FileUtil.waitUntilFileCreated(dataFile);
+    final ProjectData projectData = ProjectDataLoader.load(dataFile);
+    final ClassData classData = projectData.getClassData("Test");
+    assertNotNull(classData);
+    final List<LineData> lines = new ArrayList<LineData>();
+    for (Object line : classData.getLines()) {
+      if (line != null) lines.add((LineData) line);
+    }
+    final StringBuilder result = new StringBuilder();
+    for (LineData line : lines) {
+      result.append(line.getLineNumber()).append(":")
+          .append(line.getStatus() == 0 ? "NONE" : line.getStatus() == 1 ? "PARTIAL" : "FULL").append("\n");
+    }
+    return result.toString();
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
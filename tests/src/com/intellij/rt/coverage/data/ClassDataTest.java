@@ -0,0 +1,227 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class ClassDataTest extends TestCase {
+  public void testLinesAreViews() {
+    final ClassData classData = createClass();
+    final LineData line = classData.getLineData(3);
+    classData.touch(3);
+    classData.touch(3, 0, true);
+    classData.touch(3, 0, 1);
+    line.getJumpData(1).setFalseHits(5);
+
+    assertEquals(1, line.getHits());
+    assertEquals("foo()V", line.getMethodSignature());
+    assertEquals(1, line.getJumpData(0).getTrueHits());
+    assertEquals(5, line.getJumps()[1].getFalseHits());
+    assertEquals(Arrays.toString(new int[]{0, 1}), Arrays.toString(line.getSwitchData(0).getHits()));
+    assertEquals(Arrays.toString(new int[]{10, 20}), Arrays.toString(line.getSwitches()[0].getKeys()));
+    assertEquals(LineCoverage.PARTIAL, line.getStatus());
+    assertEquals(4, line.getBranchData().getTotalBranches());
+    assertEquals(1, line.getBranchData().getCoveredBranches());
+
+    assertNull(classData.getLineData(2));
+    assertNull(classData.getLineData(100));
+    assertFalse(classData.containsLine(2));
+    final Object[] lines = classData.getLines();
+    assertEquals(6, lines.length);
+    assertEquals(5, ((LineData) lines[5]).getLineNumber());
+    assertNull(lines[1]);
+    assertEquals(0, ((LineData) lines[5]).getHits());
+  }
+
+  public void testViewSurvivesMerge() {
+    final ClassData classData = createClass();
+    final LineData line = classData.getLineData(3);
+    line.touch();
+
+    final ClassData other = new ClassData("A");
+    final LineData newLine = new LineData(7, "baz()V");
+    newLine.setHits(2);
+    final LineData sameLine = new LineData(3, "foo()V");
+    sameLine.setHits(4);
+    sameLine.addJump(0).setTrueHits(1);
+    sameLine.fillArrays();
+    final LineData[] otherLines = new LineData[8];
+    otherLines[3] = sameLine;
+    otherLines[7] = newLine;
+    other.setLines(otherLines);
+    classData.merge(other);
+
+    assertEquals(5, line.getHits());
+    assertEquals(1, line.getJumpData(0).getTrueHits());
+    assertEquals(2, classData.getLineData(7).getHits());
+    line.touch();
+    assertEquals(6, classData.getLineData(3).getHits());
+    assertEquals(2, line.getJumps().length);
+  }
+
+  public void testMergeKeepsTable() {
+    final ClassData classData = createClass();
+    final LineTable table = classData.getLineTable();
+    final LineData line = classData.getLineData(3);
+    line.touch();
+
+    final LineData sameLine = new LineData(3, "foo()V");
+    sameLine.setHits(4);
+    sameLine.addJump(1).setFalseHits(2);
+    sameLine.fillArrays();
+    line.merge(sameLine);
+    final LineData[] lines = new LineData[6];
+    lines[5] = new LineData(5, "bar()V");
+    lines[5].setHits(3);
+    classData.setLines(lines);
+
+    assertSame(table, classData.getLineTable());
+    assertEquals(5, line.getHits());
+    assertEquals(2, line.getJumpData(1).getFalseHits());
+    assertEquals(3, classData.getLineData(5).getHits());
+  }
+
+  public void testGrowKeepsLateHits() {
+    final ClassData classData = createClass();
+    final LineTable table = classData.getLineTable();
+    final LineTable copy = table.copy();
+    final int slot = table.getSlot(3);
+    table.touch(slot);
+    table.touchJump(slot, 1, false);
+    table.touchSwitch(slot, 0, -1);
+
+    final LineData[] lines = new LineData[8];
+    lines[7] = new LineData(7, "baz()V");
+    classData.setLines(lines);
+    final LineTable grown = classData.getLineTable();
+    assertNotSame(table, grown);
+    grown.addHitsSince(table, copy);
+
+    final LineData line = classData.getLineData(3);
+    assertEquals(2, line.getHits());
+    assertEquals(2, line.getJumpData(1).getFalseHits());
+    assertEquals(2, line.getSwitchData(0).getDefaultHits());
+    assertNotNull(classData.getLineData(7));
+  }
+
+  public void testMethods() {
+    final ClassData classData = createClass();
+    assertEquals(new HashSet<String>(Arrays.asList("foo()V", "bar()V")), new HashSet<String>(classData.getMethodSigs()));
+    assertEquals(LineCoverage.NONE, classData.getStatus("foo()V").intValue());
+    classData.touch(5);
+    classData.merge(new ClassData("A"));
+    assertEquals(LineCoverage.PARTIAL, classData.getStatus("bar()V").intValue());
+
+    final LineData[] lines = new LineData[100];
+    for (int i = 1; i < lines.length; i++) {
+      lines[i] = new LineData(i, "m" + i + "()V");
+    }
+    final ClassData large = new ClassData("B");
+    large.setLines(lines);
+    assertEquals(99, large.getMethodSigs().size());
+    for (int i = 1; i < lines.length; i++) {
+      assertEquals("m" + i + "()V", large.getLineData(i).getMethodSignature());
+    }
+    assertEquals(LineCoverage.NONE, large.getStatus("m50()V").intValue());
+  }
+
+  public void testSparseLines() {
+    final ClassData classData = new ClassData("A");
+    classData.setSortedLines(new LineData[]{new LineData(3, "foo()V"), new LineData(100000, "foo()V")});
+    classData.touch(100000);
+    classData.touchLine(100000);
+
+    assertEquals(2, classData.getLineData(100000).getHits());
+    assertEquals(0, classData.getLineData(3).getHits());
+    assertNull(classData.getLineData(4));
+    assertNull(classData.getLineData(99999));
+    assertNull(classData.getLineData(100001));
+    assertEquals(LineCoverage.PARTIAL, classData.getStatus("foo()V").intValue());
+
+    classData.setSortedLines(new LineData[]{new LineData(50000, "bar()V")});
+    assertTrue(classData.containsLine(50000));
+    assertEquals(2, classData.getLineData(100000).getHits());
+    assertEquals(100001, classData.getLines().length);
+  }
+
+  public void testSnapshotCountsLineMaskOnce() {
+    final ClassData classData = new ClassData("A");
+    final LineData line = new LineData(1, "foo()V");
+    line.setHits(5);
+    classData.setLines(new LineData[]{null, line});
+    classData.initLineMask((LineData[]) classData.getLines());
+    assertEquals(5, classData.createSnapshot(false).getLineData(1).getHits());
+
+    classData.touchLine(1);
+    classData.mapLinesToMethods();
+    assertEquals(6, classData.createSnapshot(false).getLineData(1).getHits());
+    assertEquals(6, classData.createSnapshot(true).getLineData(1).getHits());
+    assertEquals(0, classData.createSnapshot(false).getLineData(1).getHits());
+  }
+
+  public void testHitsArrayIsNotReset() {
+    final ClassData classData = createClass();
+    final ProbeLayout layout = new ProbeLayout(0);
+    layout.addLine(5);
+    classData.setProbeLayout(layout);
+    final int[] hits = classData.getOrCreateHits(0);
+    hits[0] += 2;
+    assertEquals(2, classData.createSnapshot(false).getLineData(5).getHits());
+    assertEquals(2, hits[0]);
+
+    hits[0]++;
+    assertEquals(3, classData.createSnapshot(true).getLineData(5).getHits());
+    hits[0]++;
+    classData.applyHits();
+    classData.applyHits();
+    assertEquals(1, classData.getLineData(5).getHits());
+    assertEquals(4, hits[0]);
+  }
+
+  public void testResetHits() {
+    final ClassData classData = createClass();
+    final ProbeLayout layout = new ProbeLayout(0);
+    layout.addLine(5);
+    classData.setProbeLayout(layout);
+    final int[] hits = classData.getOrCreateHits(0);
+    hits[0] += 2;
+    classData.touch(3);
+    classData.resetHits();
+    assertEquals(0, classData.getLineData(3).getHits());
+    assertEquals(0, classData.getLineData(5).getHits());
+
+    hits[0]++;
+    assertEquals(1, classData.createSnapshot(false).getLineData(5).getHits());
+  }
+
+  private static ClassData createClass() {
+    final ClassData classData = new ClassData("A");
+    final LineData branches = new LineData(3, "foo()V");
+    branches.addJump(0);
+    branches.addJump(1);
+    branches.addSwitch(0, new int[]{10, 20});
+    branches.fillArrays();
+    final LineData[] lines = new LineData[6];
+    lines[3] = branches;
+    lines[5] = new LineData(5, "bar()V");
+    classData.setLines(lines);
+    return classData;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+public class SnapshotTest extends TestCase {
+  public void testTracingSnapshot() {
+    final ClassData classData = createClass();
+    final LineData line = classData.getLineData(1);
+    line.touch();
+    line.touch();
+    line.touchBranch(0, true);
+    line.getSwitchData(0).touch(-1);
+
+    final ClassData snapshot = classData.createSnapshot(false);
+    assertEquals(2, snapshot.getLineData(1).getHits());
+    assertEquals(1, snapshot.getLineData(1).getJumpData(0).getTrueHits());
+    assertEquals(1, snapshot.getLineData(1).getSwitchData(0).getDefaultHits());
+
+    line.touch();
+    assertEquals(2, snapshot.getLineData(1).getHits());
+    assertEquals(3, classData.createSnapshot(false).getLineData(1).getHits());
+  }
+
+  public void testSnapshotReset() {
+    final ClassData classData = createClass();
+    final LineData line = classData.getLineData(1);
+    line.touch();
+    line.touchBranch(0, false);
+    line.getSwitchData(0).touch(0);
+
+    final ClassData snapshot = classData.createSnapshot(true);
+    assertEquals(1, snapshot.getLineData(1).getHits());
+    assertEquals(1, snapshot.getLineData(1).getJumpData(0).getFalseHits());
+    assertEquals(1, snapshot.getLineData(1).getSwitchData(0).getHits()[0]);
+
+    final LineData next = classData.createSnapshot(true).getLineData(1);
+    assertEquals(0, next.getHits());
+    assertEquals(0, next.getJumpData(0).getFalseHits());
+    assertEquals(0, next.getSwitchData(0).getHits()[0]);
+    assertEquals(LineCoverage.NONE, next.getStatus());
+  }
+
+  public void testSamplingSnapshotReset() {
+    final ClassData classData = createClass();
+    classData.initLineMask((LineData[]) classData.getLines());
+    classData.touchLine(1);
+    classData.touchLine(1);
+
+    assertEquals(2, classData.createSnapshot(true).getLineData(1).getHits());
+    assertEquals(0, classData.createSnapshot(true).getLineData(1).getHits());
+    classData.touchLine(1);
+    assertEquals(1, classData.createSnapshot(false).getLineData(1).getHits());
+  }
+
+  public void testProjectSnapshot() {
+    final ProjectData projectData = new ProjectData();
+    final ClassData classData = projectData.getOrCreateClassData("A");
+    classData.setLines((LineData[]) createClass().getLines());
+    classData.getLineData(1).touch();
+
+    final ProjectData snapshot = projectData.createSnapshot(true);
+    assertNotSame(classData, snapshot.getClassData("A"));
+    assertEquals(1, snapshot.getClassData("A").getLineData(1).getHits());
+    assertEquals(0, projectData.createSnapshot(false).getClassData("A").getLineData(1).getHits());
+  }
+
+  private static ClassData createClass() {
+    final ClassData classData = new ClassData("A");
+    final LineData line = new LineData(1, "foo()V");
+    line.addJump(0);
+    line.addSwitch(0, new int[]{1, 2});
+    line.fillArrays();
+    classData.setLines(new LineData[]{null, line});
+    return classData;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+public class ThreadHitsTest extends TestCase {
+  private static final int THREADS = 8;
+  private static final int HITS = 100000;
+
+  public void testConcurrentHits() throws Exception {
+    final ThreadHits threadHits = new ThreadHits(2);
+    final Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int hit = 0; hit < HITS; hit++) {
+            threadHits.get()[hit % 2]++;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    final int[] hits = threadHits.collect();
+    assertEquals(THREADS * HITS / 2, hits[0]);
+    assertEquals(THREADS * HITS / 2, hits[1]);
+  }
+
+  public void testCollectReturnsNewHits() {
+    final ThreadHits threadHits = new ThreadHits(1);
+    threadHits.get()[0] += 3;
+    assertEquals(3, threadHits.collect()[0]);
+    assertEquals(0, threadHits.collect()[0]);
+
+    threadHits.get()[0]++;
+    assertEquals(1, threadHits.collect()[0]);
+  }
+
+  public void testFinishedThreadsAreFolded() throws Exception {
+    final ThreadHits threadHits = new ThreadHits(1);
+    for (int i = 0; i < 100; i++) {
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          threadHits.get()[0]++;
+        }
+      };
+      thread.start();
+      thread.join();
+    }
+    assertTrue(threadHits.getThreadArrayCount() <= 32);
+    assertEquals(100, threadHits.collect()[0]);
+    assertEquals(0, threadHits.getThreadArrayCount());
+    assertEquals(0, threadHits.collect()[0]);
+
+    threadHits.get()[0]++;
+    assertEquals(1, threadHits.collect()[0]);
+    assertEquals(1, threadHits.getThreadArrayCount());
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+public class UniqueTestNameTest extends TestCase {
+  private ProjectData myProjectData;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myProjectData = ProjectData.createProjectData(null, null, false, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ProjectData.ourProjectData = null;
+    super.tearDown();
+  }
+
+  public void testNoTest() {
+    final LineData lineData = new LineData(1, "foo()V");
+    lineData.touch();
+    assertFalse(lineData.isCoveredByOneTest());
+  }
+
+  public void testOneTest() {
+    final LineData lineData = new LineData(1, "foo()V");
+    myProjectData.testStarted("Test.test1");
+    lineData.touch();
+    lineData.touch();
+    myProjectData.testStarted("Test.test1");
+    lineData.touch();
+    assertTrue(lineData.isCoveredByOneTest());
+    assertEquals(3, lineData.getHits());
+  }
+
+  public void testSeveralTests() {
+    final LineData lineData = new LineData(1, "foo()V");
+    myProjectData.testStarted("Test.test1");
+    lineData.touch();
+    myProjectData.testStarted("Test.test2");
+    lineData.touch();
+    myProjectData.testStarted("Test.test1");
+    lineData.touch();
+    assertFalse(lineData.isCoveredByOneTest());
+  }
+
+  public void testLoadedTestName() {
+    final LineData sameTest = new LineData(1, "foo()V");
+    sameTest.setTestName("Test.test1");
+    final LineData otherTest = new LineData(2, "foo()V");
+    otherTest.setTestName("Test.test2");
+
+    myProjectData.testStarted("Test.test1");
+    sameTest.touch();
+    otherTest.touch();
+    sameTest.setTestName("Test.test1");
+    assertTrue(sameTest.isCoveredByOneTest());
+    assertFalse(otherTest.isCoveredByOneTest());
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.TransformedClassLoader;
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class ClassDataFieldTest extends TestCase {
+  private static final String NEW_SAMPLING = "idea.new.sampling.coverage";
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(NEW_SAMPLING);
+    super.tearDown();
+  }
+
+  public void testTracing() throws Exception {
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, false);
+    final ClassData classData = doTest(projectData);
+    assertEquals(3, getHits(classData));
+  }
+
+  public void testOldSampling() throws Exception {
+    System.setProperty(NEW_SAMPLING, "false");
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, true);
+    final ClassData classData = doTest(projectData);
+    assertEquals(3, getHits(projectData.createSnapshot(false).getClassData(classData.getName())));
+  }
+
+  private static int getHits(ClassData classData) {
+    for (Object line : classData.getLines()) {
+      if (line != null && "get()I".equals(((LineData) line).getMethodSignature())) {
+        return ((LineData) line).getHits();
+      }
+    }
+    return -1;
+  }
+
+  private ClassData doTest(ProjectData projectData) throws Exception {
+    final String name = Sample.class.getName();
+    final byte[] bytes = TransformedClassLoader.readBytes(getClass().getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class"));
+    final ClassFinder finder = new ClassFinder(Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList());
+    final byte[] instrumented = new CoverageClassfileTransformer(projectData, false, Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), finder)
+        .instrument(bytes, name, getClass().getClassLoader(), true);
+    final Class<?> aClass = new TransformedClassLoader(getClass().getClassLoader(), name, instrumented).loadClass(name, true);
+    final Field field = aClass.getDeclaredField("__$classData$__");
+    assertTrue(field.isSynthetic());
+    field.setAccessible(true);
+    assertNull(field.get(null));
+
+    for (int i = 0; i < 3; i++) {
+      aClass.getMethod("get").invoke(null);
+    }
+    final ClassData classData = projectData.getClassData(name);
+    assertSame(classData, field.get(null));
+    return classData;
+  }
+
+  public static class Sample {
+    public static int get() {
+      return 42;
+    }
+  }
+}
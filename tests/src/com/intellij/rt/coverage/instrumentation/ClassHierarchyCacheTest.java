@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClassHierarchyCacheTest extends TestCase {
+  private static final String NAME = "com/intellij/rt/coverage/instrumentation/ClassHierarchyCacheTest";
+
+  public void testHeaders() throws Exception {
+    final ClassHierarchyCache cache = new ClassHierarchyCache(100);
+    final ClassHierarchyCache.ClassInfo info = cache.get(NAME, getClass().getClassLoader());
+    assertEquals("junit/framework/TestCase", info.getSuperName());
+    assertEquals(0, info.getInterfaces().length);
+    assertFalse(info.isInterface());
+    assertTrue(cache.get("java/util/List", null).isInterface());
+
+    assertSame(info, cache.get(NAME, getClass().getClassLoader()));
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(2, cache.size());
+  }
+
+  public void testSharedBetweenClassLoaders() throws Exception {
+    final ClassHierarchyCache cache = new ClassHierarchyCache(100);
+    final ClassHierarchyCache.ClassInfo info1 = cache.get(NAME, createLoader());
+    final ClassHierarchyCache.ClassInfo info2 = cache.get(NAME, createLoader());
+    assertSame(info1, info2);
+    assertEquals(2, cache.getMisses());
+  }
+
+  public void testSizeLimit() throws Exception {
+    final ClassHierarchyCache cache = new ClassHierarchyCache(2);
+    cache.get("java/lang/String", null);
+    cache.get("java/lang/Integer", null);
+    assertEquals(0, cache.getEvictions());
+    cache.get("java/lang/Long", null);
+    assertEquals(1, cache.getEvictions());
+    assertEquals(0, cache.size());
+    cache.get("java/lang/String", null);
+    assertEquals(4, cache.getMisses());
+  }
+
+  public void testNotFound() {
+    try {
+      new ClassHierarchyCache(100).get("no/such/Class", null);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("no/such/Class"));
+    }
+  }
+
+  private static ClassLoader createLoader() throws Exception {
+    final List<URL> urls = new ArrayList<URL>();
+    for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      urls.add(new File(path).toURI().toURL());
+    }
+    return new URLClassLoader(urls.toArray(new URL[0]), null);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.classFinder.ClassEntry;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Pattern;
+
+public class UnloadedClassesAnalyzerTest extends TestCase {
+  private static final String PREFIX = UnloadedClassesAnalyzerTest.class.getName() + "$";
+
+  public void testAnalyze() throws Exception {
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, false);
+    projectData.getOrCreateClassData(Loaded.class.getName());
+    final Map<String, UnloadedClassesAnalyzer.Result> results = analyze(createAnalyzer(), projectData);
+
+    assertEquals(new HashSet<String>(Arrays.asList(PREFIX + "Sample", PREFIX + "Sample$1", PREFIX + "NoCode")), results.keySet());
+
+    final UnloadedClassesAnalyzer.Result sample = results.get(PREFIX + "Sample");
+    assertEquals("UnloadedClassesAnalyzerTest.java", sample.getSource());
+    assertEquals(new HashSet<Object>(Arrays.asList("<init>()V", "foo()I", "bar(I)V", "baz()Ljava/lang/Runnable;")), new HashSet<Object>(Arrays.asList(sample.getLines().getValues())));
+    assertEquals("com/intellij/rt/coverage/instrumentation/UnloadedClassesAnalyzerTest$Sample", results.get(PREFIX + "Sample$1").getOuterClassName());
+    assertNull(results.get(PREFIX + "NoCode").getLines());
+  }
+
+  public void testBackground() throws Exception {
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, false);
+    final UnloadedClassesAnalyzer analyzer = createAnalyzer();
+    analyzer.startInBackground(projectData);
+    // loaded after the background pass has started
+    projectData.getOrCreateClassData(PREFIX + "NoCode");
+    final Map<String, UnloadedClassesAnalyzer.Result> results = analyze(analyzer, projectData);
+
+    assertEquals(new HashSet<String>(Arrays.asList(PREFIX + "Sample", PREFIX + "Sample$1", PREFIX + "Loaded")), results.keySet());
+    assertSame(results.get(PREFIX + "Sample"), analyze(analyzer, projectData).get(PREFIX + "Sample"));
+  }
+
+  public void testIndex() throws Exception {
+    final File directory = File.createTempFile("index", "");
+    directory.delete();
+    directory.mkdirs();
+    try {
+      final ProjectData projectData = ProjectData.createProjectData(null, null, false, false);
+      final Map<String, UnloadedClassesAnalyzer.Result> analyzed = analyze(new UnloadedClassesAnalyzer(createFinder(), true, new UnloadedClassesIndex(directory, true)), projectData);
+      final UnloadedClassesIndex index = new UnloadedClassesIndex(directory, true) {
+        @Override
+        public void put(ClassEntry classEntry, byte[] bytes, UnloadedClassesAnalyzer.Result result) {
+          fail(classEntry.getClassName() + " is analyzed again");
+        }
+      };
+      final Map<String, UnloadedClassesAnalyzer.Result> indexed = analyze(new UnloadedClassesAnalyzer(createFinder(), true, index), projectData);
+      assertEquals(analyzed.keySet(), indexed.keySet());
+      for (String className : analyzed.keySet()) {
+        final TIntObjectHashMap<String> lines = analyzed.get(className).getLines();
+        assertEquals(className, lines, indexed.get(className).getLines());
+      }
+    } finally {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  private static UnloadedClassesAnalyzer createAnalyzer() {
+    return new UnloadedClassesAnalyzer(createFinder(), true, null);
+  }
+
+  private static ClassFinder createFinder() {
+    // include patterns are matched against the top level class name
+    final String testName = Pattern.quote(UnloadedClassesAnalyzerTest.class.getName());
+    final List<Pattern> include = Collections.singletonList(Pattern.compile(testName + "(\\$.*)*"));
+    final List<Pattern> exclude = Collections.singletonList(Pattern.compile(testName + "(\\$\\d+)?"));
+    final ClassFinder finder = new ClassFinder(include, exclude);
+    finder.addClassLoader(UnloadedClassesAnalyzerTest.class.getClassLoader());
+    return finder;
+  }
+
+  private static Map<String, UnloadedClassesAnalyzer.Result> analyze(UnloadedClassesAnalyzer analyzer, ProjectData projectData) throws InterruptedException {
+    final Map<String, UnloadedClassesAnalyzer.Result> results = new HashMap<String, UnloadedClassesAnalyzer.Result>();
+    for (UnloadedClassesAnalyzer.Result result : analyzer.analyze(projectData)) {
+      results.put(result.getClassName(), result);
+    }
+    return results;
+  }
+
+  public static class Sample {
+    public static int foo() {
+      return 42;
+    }
+
+    public void bar(int x) {
+      System.out.println(x);
+    }
+
+    public Runnable baz() {
+      return new Runnable() {
+        public void run() {
+          System.out.println();
+        }
+      };
+    }
+  }
+
+  public interface NoCode {
+    void foo();
+  }
+
+  public static class Loaded {
+    public int foo() {
+      return 1;
+    }
+  }
+}
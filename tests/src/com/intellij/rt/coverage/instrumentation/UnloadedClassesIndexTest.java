@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.util.classFinder.ClassEntry;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class UnloadedClassesIndexTest extends TestCase {
+  private File myDirectory;
+  private File myArchive;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDirectory = File.createTempFile("index", "");
+    myDirectory.delete();
+    myDirectory.mkdirs();
+    myArchive = File.createTempFile("classes", ".jar");
+    write(myArchive, new byte[]{1, 2, 3});
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    final File[] files = myDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    myDirectory.delete();
+    myArchive.delete();
+    super.tearDown();
+  }
+
+  public void testArchive() throws Exception {
+    final ClassEntry entry = new ClassEntry("a.B", null, myArchive.getPath());
+    final UnloadedClassesIndex index = new UnloadedClassesIndex(myDirectory, true);
+    assertFalse(index.needsBytes(entry));
+    assertNull(index.get(entry, null));
+    index.put(entry, null, createResult("a.B"));
+    index.put(new ClassEntry("a.NoCode", null, myArchive.getPath()), null, new UnloadedClassesAnalyzer.Result("a.NoCode", null, null, null));
+    index.save();
+
+    final UnloadedClassesIndex loaded = new UnloadedClassesIndex(myDirectory, true);
+    assertResult(loaded.get(entry, null));
+    final UnloadedClassesAnalyzer.Result noCode = loaded.get(new ClassEntry("a.NoCode", null, myArchive.getPath()), null);
+    assertNull(noCode.getSource());
+    assertNull(noCode.getLines());
+    assertNull(new UnloadedClassesIndex(myDirectory, false).get(entry, null));
+
+    write(myArchive, new byte[]{1, 2, 3, 4});
+    assertNull(new UnloadedClassesIndex(myDirectory, true).get(entry, null));
+  }
+
+  public void testDirectory() throws Exception {
+    final ClassEntry entry = new ClassEntry("a.B", null, myDirectory.getPath());
+    final byte[] bytes = {1, 2, 3};
+    final UnloadedClassesIndex index = new UnloadedClassesIndex(myDirectory, true);
+    assertTrue(index.needsBytes(entry));
+    index.put(entry, bytes, createResult("a.B"));
+    index.save();
+
+    final UnloadedClassesIndex loaded = new UnloadedClassesIndex(myDirectory, true);
+    assertResult(loaded.get(entry, bytes));
+    assertNull(loaded.get(entry, new byte[]{1, 2, 4}));
+    assertNull(loaded.get(new ClassEntry("a.B", null, null), bytes));
+  }
+
+  public void testDamagedIndexIsNotUsed() throws Exception {
+    final ClassEntry entry = new ClassEntry("a.B", null, myArchive.getPath());
+    final UnloadedClassesIndex index = new UnloadedClassesIndex(myDirectory, true);
+    index.put(entry, null, createResult("a.B"));
+    index.save();
+    final File[] files = myDirectory.listFiles();
+    assertEquals(1, files.length);
+    final byte[] bytes = read(files[0]);
+
+    for (int i = 0; i < bytes.length; i++) {
+      final byte[] damaged = bytes.clone();
+      damaged[i] ^= 0x55;
+      write(files[0], damaged);
+      assertNull(new UnloadedClassesIndex(myDirectory, true).get(entry, null));
+    }
+    final byte[] damaged = bytes.clone();
+    damaged[bytes.length - 1] ^= 1;
+    write(files[0], damaged);
+    assertNull(new UnloadedClassesIndex(myDirectory, true).get(entry, null));
+    assertFalse(files[0].exists());
+  }
+
+  private static UnloadedClassesAnalyzer.Result createResult(String className) {
+    final TIntObjectHashMap<String> lines = new TIntObjectHashMap<String>();
+    lines.put(10, "foo()V");
+    lines.put(3, "<init>()V");
+    lines.put(100000, "foo()V");
+    return new UnloadedClassesAnalyzer.Result(className, "B.java", "a/Outer", lines);
+  }
+
+  private static void assertResult(UnloadedClassesAnalyzer.Result result) {
+    assertNotNull(result);
+    assertEquals("a.B", result.getClassName());
+    assertEquals("B.java", result.getSource());
+    assertEquals("a/Outer", result.getOuterClassName());
+    assertEquals(3, result.getLines().size());
+    assertEquals("<init>()V", result.getLines().get(3));
+    assertEquals("foo()V", result.getLines().get(10));
+    assertEquals("foo()V", result.getLines().get(100000));
+  }
+
+  private static byte[] read(File file) throws IOException {
+    final byte[] bytes = new byte[(int) file.length()];
+    final FileInputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < bytes.length) {
+        offset += in.read(bytes, offset, bytes.length - offset);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    final FileOutputStream os = new FileOutputStream(file);
+    try {
+      os.write(bytes);
+    } finally {
+      os.close();
+    }
+  }
+}
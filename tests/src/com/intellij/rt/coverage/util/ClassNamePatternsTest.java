@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class ClassNamePatternsTest extends TestCase {
+  private static final String[] REGEXES = {
+      "com\\.product\\..*",
+      "com\\.product\\.api\\.Service(\\$.*)*",
+      "org\\.lib\\.impl.*",
+      "org\\.lib\\.A+.*",
+      "net\\.(foo|bar)\\..*",
+      "a\\.b|c\\.d\\..*",
+      ".*Test",
+      ".*\\$.*",
+      "[a-c]om\\.x\\..*",
+      "x\\.y\\.Z",
+      "(?i)upper\\.case\\..*",
+  };
+
+  private static final String[] NAMES = {
+      "com.product.AAA",
+      "com.product.AAA$1",
+      "com.product.api.Service",
+      "com.product.api.Service$Inner",
+      "com.productive.A",
+      "com.Service",
+      "org.lib.impl.Foo",
+      "org.lib.implementation.Foo",
+      "org.lib.Foo",
+      "org.lib.AAA",
+      "org.lib.Bcd",
+      "net.foo.X",
+      "net.bar.Y",
+      "net.baz.Z",
+      "a.b",
+      "a.bb",
+      "c.d.E",
+      "c.dd.E",
+      "some.FooTest",
+      "some.FooTestCase",
+      "Test",
+      "DefaultPackage",
+      "DefaultPackage$1",
+      "bom.x.Y",
+      "dom.x.Y",
+      "x.y.Z",
+      "x.y.Z$1",
+      "UPPER.CASE.Foo",
+      "lower.Foo",
+  };
+
+  public void testSameAsRegexes() {
+    for (int i = 0; i < REGEXES.length; i++) {
+      assertSameAsRegexes(Collections.singletonList(Pattern.compile(REGEXES[i])));
+    }
+    final List<Pattern> all = new ArrayList<Pattern>();
+    for (String regex : REGEXES) {
+      all.add(Pattern.compile(regex));
+    }
+    assertSameAsRegexes(all);
+    assertSameAsRegexes(Collections.<Pattern>emptyList());
+  }
+
+  public void testLiteralPrefix() {
+    assertEquals("com.product.", ClassNamePatterns.getLiteralPrefix("com\\.product\\..*"));
+    assertEquals("com.product.api.Service", ClassNamePatterns.getLiteralPrefix("com\\.product\\.api\\.Service(\\$.*)*"));
+    assertEquals("org.lib.", ClassNamePatterns.getLiteralPrefix("org\\.lib\\.A+.*"));
+    assertEquals("net.", ClassNamePatterns.getLiteralPrefix("net\\.(foo|bar)\\..*"));
+    assertEquals("", ClassNamePatterns.getLiteralPrefix("a\\.b|c\\.d\\..*"));
+    assertEquals("", ClassNamePatterns.getLiteralPrefix("\\Qa.b\\E.*"));
+    assertEquals("x.y.Z", ClassNamePatterns.getLiteralPrefix("x\\.y\\.Z"));
+  }
+
+  public void testPrefixes() {
+    final ClassNamePatterns patterns = ClassNamePatterns.ofPrefixes("java.", "com.sun.", "org.jetbrains.coverage.gnu.trove.");
+    assertTrue(patterns.matches("java.lang.String"));
+    assertTrue(patterns.matches("com.sun.Foo"));
+    assertTrue(patterns.matches("org.jetbrains.coverage.gnu.trove.TIntArrayList"));
+    assertFalse(patterns.matches("javax.swing.JFrame"));
+    assertFalse(patterns.matches("com.sunny.Foo"));
+    assertFalse(patterns.matches("org.jetbrains.coverage.Foo"));
+  }
+
+  public void testMayMatchPackage() {
+    for (String regex : REGEXES) {
+      final ClassNamePatterns patterns = new ClassNamePatterns(Collections.singletonList(Pattern.compile(regex)));
+      for (String name : NAMES) {
+        if (!patterns.matches(name)) continue;
+        // the package of a matching name and all its parent packages
+        for (int i = name.lastIndexOf('.'); i >= 0; i = name.lastIndexOf('.', i - 1)) {
+          assertTrue(regex + " " + name, patterns.mayMatchPackage(name.substring(0, i + 1)));
+        }
+        assertTrue(regex + " " + name, patterns.mayMatchPackage(""));
+      }
+    }
+    final ClassNamePatterns patterns = new ClassNamePatterns(Collections.singletonList(Pattern.compile("com\\.product\\..*")));
+    assertTrue(patterns.mayMatchPackage("com."));
+    assertTrue(patterns.mayMatchPackage("com.product.impl."));
+    assertFalse(patterns.mayMatchPackage("org."));
+    assertFalse(patterns.mayMatchPackage("com.productive."));
+    assertFalse(new ClassNamePatterns(Collections.<Pattern>emptyList()).mayMatchPackage(""));
+  }
+
+  private static void assertSameAsRegexes(List<Pattern> list) {
+    final ClassNamePatterns patterns = new ClassNamePatterns(list);
+    // twice to check cached package candidates
+    for (int round = 0; round < 2; round++) {
+      for (String name : NAMES) {
+        assertEquals(list + " " + name, ClassNameUtil.shouldExclude(name, list), patterns.matches(name));
+      }
+    }
+  }
+}
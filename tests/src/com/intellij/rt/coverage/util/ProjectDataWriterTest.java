@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class ProjectDataWriterTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = File.createTempFile("coverage", ".ic");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myFile.delete();
+    super.tearDown();
+  }
+
+  public void testWrittenDataIsLoaded() throws Exception {
+    final DataOutputStream os = CoverageIOUtil.openFile(myFile);
+    try {
+      ProjectDataWriter.write(os, createProjectData());
+    } finally {
+      os.close();
+    }
+    checkLoadedData(ProjectDataLoader.load(myFile));
+  }
+
+  public void testIndexedDataIsLoaded() throws Exception {
+    writeIndexed();
+    checkLoadedData(ProjectDataLoader.load(myFile));
+  }
+
+  public void testIndexedDataIsLoadedLazily() throws Exception {
+    writeIndexed();
+    final IndexedProjectData projectData = IndexedProjectData.open(myFile);
+    assertNull(projectData.getClassData("p.Baz"));
+    assertEquals(0, projectData.getClassData("p.Bar").getLineData(1).getHits());
+    assertSame(projectData.getClassData("p.Bar"), projectData.getClassData("p.Bar"));
+    checkLoadedData(projectData);
+  }
+
+  public void testNotIndexedDataIsRejected() throws Exception {
+    final DataOutputStream os = CoverageIOUtil.openFile(myFile);
+    try {
+      ProjectDataWriter.write(os, createProjectData());
+    } finally {
+      os.close();
+    }
+    try {
+      IndexedProjectData.open(myFile);
+      fail();
+    } catch (IOException ignored) {
+    }
+  }
+
+  public void testCompressedDataIsLoaded() throws Exception {
+    writeCompressed();
+    checkLoadedData(ProjectDataLoader.load(myFile));
+  }
+
+  public void testTruncatedCompressedDataIsRejected() throws Exception {
+    writeCompressed();
+    final RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+    try {
+      file.setLength(file.length() - 20);
+    } finally {
+      file.close();
+    }
+    assertTrue(ProjectDataLoader.load(myFile).getClasses().isEmpty());
+  }
+
+  public void testDamagedCompressedDataIsRejected() throws Exception {
+    writeCompressed();
+    final RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+    try {
+      final long position = file.length() / 2;
+      file.seek(position);
+      final int b = file.read();
+      file.seek(position);
+      file.write(b ^ 0x10);
+    } finally {
+      file.close();
+    }
+    assertTrue(ProjectDataLoader.load(myFile).getClasses().isEmpty());
+  }
+
+  public void testCompressedDataIsSmaller() throws Exception {
+    final ProjectData projectData = new ProjectData();
+    for (int c = 0; c < 100; c++) {
+      final LineData[] lines = new LineData[200];
+      for (int i = 1; i < lines.length; i++) {
+        lines[i] = createLine(i, "m" + i / 10 + "()V", i % 3);
+      }
+      projectData.getOrCreateClassData("p.C" + c).setLines(lines);
+    }
+    final DataOutputStream os = CoverageIOUtil.openFile(myFile);
+    try {
+      ProjectDataWriter.write(os, projectData);
+    } finally {
+      os.close();
+    }
+    final long length = myFile.length();
+    final DataOutputStream compressed = CoverageIOUtil.openFile(myFile);
+    try {
+      ProjectDataWriter.writeCompressed(compressed, projectData);
+    } finally {
+      compressed.close();
+    }
+    assertTrue(myFile.length() * 5 < length);
+    assertEquals(2, ProjectDataLoader.load(myFile).getClassData("p.C5").getLineData(5).getHits());
+  }
+
+  private void writeCompressed() throws IOException {
+    final DataOutputStream os = CoverageIOUtil.openFile(myFile);
+    try {
+      ProjectDataWriter.writeCompressed(os, createProjectData());
+    } finally {
+      os.close();
+    }
+  }
+
+  private void writeIndexed() throws IOException {
+    final DataOutputStream os = CoverageIOUtil.openFile(myFile);
+    try {
+      ProjectDataWriter.writeIndexed(os, createProjectData());
+    } finally {
+      os.close();
+    }
+  }
+
+  private static ProjectData createProjectData() {
+    final ProjectData projectData = new ProjectData();
+    final ClassData foo = projectData.getOrCreateClassData("p.Foo");
+    final LineData[] fooLines = new LineData[6];
+    fooLines[1] = createLine(1, "<init>()V", 1);
+    fooLines[3] = createLine(3, "bar(Lp/Bar;)V", 0);
+    fooLines[4] = createLine(4, "bar(Lp/Bar;)V", 5);
+    fooLines[5] = createLine(5, "baz(Ljava/lang/String;)Lp/Foo;", 2);
+    fooLines[4].addJump(0);
+    fooLines[4].setTrueHits(0, 3);
+    fooLines[4].fillArrays();
+    fooLines[5].addSwitch(0, new int[]{-1, 7});
+    fooLines[5].setSwitchHits(0, new int[]{-1, 7}, new int[]{0, 4});
+    fooLines[5].fillArrays();
+    fooLines[1].setTestName("test1");
+    fooLines[5].setTestName("test1");
+    fooLines[4].setTestName("test2");
+    foo.setLines(fooLines);
+    final ClassData bar = projectData.getOrCreateClassData("p.Bar");
+    bar.setLines(new LineData[]{null, createLine(1, "<init>()V", 0)});
+    return projectData;
+  }
+
+  private static void checkLoadedData(ProjectData loaded) {
+    assertEquals(2, loaded.getClasses().size());
+    final ClassData loadedFoo = loaded.getClassData("p.Foo");
+    assertEquals(1, loadedFoo.getLineData(1).getHits());
+    assertEquals("<init>()V", loadedFoo.getLineData(1).getMethodSignature());
+    assertEquals(0, loadedFoo.getLineData(3).getHits());
+    assertEquals("bar(Lp/Bar;)V", loadedFoo.getLineData(3).getMethodSignature());
+    assertEquals(5, loadedFoo.getLineData(4).getHits());
+    assertEquals(3, loadedFoo.getLineData(4).getJumpData(0).getTrueHits());
+    assertEquals(0, loadedFoo.getLineData(4).getJumpData(0).getFalseHits());
+    assertEquals("baz(Ljava/lang/String;)Lp/Foo;", loadedFoo.getLineData(5).getMethodSignature());
+    assertEquals(2, loadedFoo.getLineData(5).getHits());
+    assertEquals(4, loadedFoo.getLineData(5).getSwitchData(0).getHits()[1]);
+    assertEquals(7, loadedFoo.getLineData(5).getSwitchData(0).getKeys()[1]);
+    assertTrue(loadedFoo.getLineData(1).isCoveredByOneTest());
+    assertTrue(loadedFoo.getLineData(4).isCoveredByOneTest());
+    assertFalse(loadedFoo.getLineData(3).isCoveredByOneTest());
+    assertEquals(0, loaded.getClassData("p.Bar").getLineData(1).getHits());
+  }
+
+  private static LineData createLine(int line, String signature, int hits) {
+    final LineData lineData = new LineData(line, signature);
+    lineData.setHits(hits);
+    return lineData;
+  }
+}
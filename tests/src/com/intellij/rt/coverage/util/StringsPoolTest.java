@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StringsPoolTest extends TestCase {
+  public void testPooled() {
+    final String pooled = StringsPool.getFromPool("foo(I)V");
+    assertEquals("foo(I)V", pooled);
+    assertSame(pooled, StringsPool.getFromPool(new String("foo(I)V")));
+    assertSame("", StringsPool.getFromPool(new String("")));
+    assertNull(StringsPool.getFromPool(null));
+  }
+
+  public void testCollision() {
+    final StringsPool pool = new StringsPool(100);
+    final String a = pool.get(42, "a");
+    assertSame(a, pool.get(42, new String("a")));
+    final String b = pool.get(42, "b");
+    assertEquals("b", b);
+    assertEquals(1, pool.getCollisions());
+    assertEquals(1, pool.getHits());
+    assertEquals(1, pool.getMisses());
+    assertEquals(1, pool.size());
+  }
+
+  public void testBounded() {
+    final StringsPool pool = new StringsPool(16 * 100);
+    for (int i = 0; i < 100000; i++) {
+      final String value = String.valueOf(i);
+      assertEquals(value, pool.get(StringHash.calc(value), value));
+    }
+    assertTrue(pool.size() <= 16 * 100);
+    assertEquals(100000, pool.getMisses());
+    assertEquals(100000, pool.size() + pool.getEvictions());
+  }
+
+  public void testConcurrent() throws Exception {
+    final StringsPool pool = new StringsPool(1 << 20);
+    final int count = 10000;
+    final String[][] results = new String[4][count];
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < results.length; t++) {
+      final String[] result = results[t];
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < count; i++) {
+            final String value = "method" + i + "()V";
+            result[i] = pool.get(StringHash.calc(value), value);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    for (int i = 0; i < count; i++) {
+      assertEquals("method" + i + "()V", results[0][i]);
+      for (String[] result : results) {
+        assertSame(results[0][i], result[i]);
+      }
+    }
+    assertEquals(count, pool.size());
+    assertEquals(count, pool.getMisses());
+    assertEquals(3 * count, pool.getHits());
+  }
+}
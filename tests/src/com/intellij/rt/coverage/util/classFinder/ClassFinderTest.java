@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util.classFinder;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClassFinderTest extends TestCase {
+  private File myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = File.createTempFile("classFinder", "");
+    myRoot.delete();
+    myRoot.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(myRoot);
+    super.tearDown();
+  }
+
+  public void testDirectory() throws Exception {
+    final File dir = new File(myRoot, "classes");
+    for (String path : new String[]{"a/b/C.class", "a/b/C$1.class", "a/b/c/D.class", "a/bb/E.class", "x/Y.class", "Z.class", "a/b/res.txt"}) {
+      final File file = new File(dir, path);
+      file.getParentFile().mkdirs();
+      file.createNewFile();
+    }
+    assertClasses(find(dir, "a\\.b\\..*"), "a.b.C", "a.b.C$1", "a.b.c.D");
+    assertClasses(find(dir, "a\\.b.*"), "a.b.C", "a.b.C$1", "a.b.c.D", "a.bb.E");
+    assertClasses(find(dir, ".*Y"), "x.Y");
+    assertClasses(find(dir, "Z"), "Z");
+    assertClasses(find(dir), "a.b.C", "a.b.C$1", "a.b.c.D", "a.bb.E", "x.Y", "Z");
+  }
+
+  public void testArchive() throws Exception {
+    final File jar = new File(myRoot, "classes.jar");
+    writeJar(jar, "a/b/C.class", "a/b/c/D.class", "x/Y.class", "META-INF/MANIFEST.MF");
+    assertClasses(find(jar, "a\\..*"), "a.b.C", "a.b.c.D");
+    assertClasses(find(jar), "a.b.C", "a.b.c.D", "x.Y");
+
+    writeJar(jar, "a/b/C.class", "a/b/New.class");
+    jar.setLastModified(jar.lastModified() + 2000);
+    assertClasses(find(jar, "a\\..*"), "a.b.C", "a.b.New");
+  }
+
+  private static Collection<ClassEntry> find(final File entry, String... include) throws InterruptedException {
+    final List<Pattern> includePatterns = new ArrayList<Pattern>();
+    for (String regex : include) {
+      includePatterns.add(Pattern.compile(regex));
+    }
+    final ClassFinder finder = new ClassFinder(includePatterns, Collections.<Pattern>emptyList()) {
+      @Override
+      protected Collection<ClassPathEntry> getClassPathEntries() {
+        return Collections.singletonList(new ClassPathEntry(entry.getPath(), null));
+      }
+    };
+    final Collection<ClassEntry> classes = finder.findMatchedClasses();
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      assertEquals(classes, finder.findMatchedClasses(executor));
+    } finally {
+      executor.shutdown();
+    }
+    for (ClassEntry classEntry : classes) {
+      assertEquals(entry.getPath(), classEntry.getClassPathEntry());
+    }
+    return classes;
+  }
+
+  private static void assertClasses(Collection<ClassEntry> classes, String... expected) {
+    final Set<String> names = new HashSet<String>();
+    for (ClassEntry classEntry : classes) {
+      names.add(classEntry.getClassName());
+    }
+    assertEquals(new HashSet<String>(Arrays.asList(expected)), names);
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void writeJar(File jar, String... paths) throws IOException {
+    final ZipOutputStream os = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String path : paths) {
+        os.putNextEntry(new ZipEntry(path));
+        os.write(path.getBytes("UTF-8"));
+        os.closeEntry();
+      }
+    } finally {
+      os.close();
+    }
+  }
+}
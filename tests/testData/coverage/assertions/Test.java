@@ -0,0 +1,14 @@
+public class Test {
+  public static void main(String[] args) {
+    int i = args.length;
+    assert i >= 0 : "negative"; if (i > 1) System.out.println("many");
+    switch (i) {
+      case 0:
+        System.out.println("zero");
+        break;
+      case 1:
+        System.out.println("one");
+        break;
+    }
+  }
+}
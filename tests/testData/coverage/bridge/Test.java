@@ -0,0 +1,49 @@
+import java.io.File;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+public class Test {
+  public static void main(String[] args) throws Exception {
+    final URL agent = new File(System.getProperty("coverage.agent.path")).toURI().toURL();
+    final URL classes = Test.class.getProtectionDomain().getCodeSource().getLocation();
+    // defines its own copy of the coverage data classes, like a class loader of an application server
+    final ClassLoader loader = new URLClassLoader(new URL[]{classes, agent}, null) {
+      protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (name.startsWith("com.intellij.rt.coverage.data.") || name.startsWith("Test$")) {
+          Class<?> c = findLoadedClass(name);
+          if (c == null) c = findClass(name);
+          if (resolve) resolveClass(c);
+          return c;
+        }
+        return super.loadClass(name, resolve);
+      }
+    };
+    loader.loadClass("Test$Sample").getMethod("run", int.class).invoke(null, 3);
+
+    final Class<?> copy = loader.loadClass("com.intellij.rt.coverage.data.ProjectData");
+    if (copy == Class.forName(copy.getName(), false, null)) throw new IllegalStateException("not a copy");
+    final Field bridge = copy.getDeclaredField("ourBridge");
+    bridge.setAccessible(true);
+    if (bridge.get(null) == null) throw new IllegalStateException("bridge is not used");
+  }
+
+  public static class Sample {
+    public static int run(int n) {
+      int sum = 0;
+      for (int i = 0; i < n; i++) {
+        if (i % 2 == 0) {
+          sum += i;
+        }
+      }
+      switch (n) {
+        case 3:
+          sum++;
+          break;
+        default:
+          sum--;
+      }
+      return sum;
+    }
+  }
+}
@@ -16,29 +16,40 @@
 
 package com.intellij.rt.coverage.instrumentation;
 
+import com.intellij.rt.coverage.util.ClassNamePatterns;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.CoverageIOUtil;
 import com.intellij.rt.coverage.util.ErrorReporter;
-import org.jetbrains.coverage.gnu.trove.THashMap;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
-import java.util.Map;
-import java.util.WeakHashMap;
 
 public abstract class AbstractIntellijClassfileTransformer implements ClassFileTransformer {
   public interface InclusionPattern {
     boolean accept(String className);
   }
 
+  /**
+   * Classes of the coverage agent itself and packages which are used during instrumented method invocation
+   * (inside methods touch, save, etc from ProjectData).
+   */
+  private static final ClassNamePatterns INTERNAL_CLASSES = ClassNamePatterns.ofPrefixes(
+      "com.intellij.rt.",
+      "java.",
+      "sun.",
+      "com.sun.",
+      "jdk.",
+      "org.jetbrains.coverage.gnu.trove.",
+      "org.jetbrains.coverage.org.objectweb.");
+
   private final boolean computeFrames = computeFrames();
-  private final WeakHashMap<ClassLoader, Map<String, ClassReader>> classReaders = new WeakHashMap<ClassLoader, Map<String, ClassReader>>();
+  private final boolean preserveFrames = preserveFrames();
+  private final ClassHierarchyCache myHierarchy = new ClassHierarchyCache();
 
   private long ourTime;
   private int ourClassCount;
@@ -64,6 +75,27 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
     }
   }
 
+  /**
+   * Number of classes passed to the transformer so far.
+   */
+  public int getClassCount() {
+    return ourClassCount;
+  }
+
+  /**
+   * Time spent in transformation so far, in nanoseconds.
+   */
+  public long getTransformationTime() {
+    return ourTime;
+  }
+
+  /**
+   * Class headers used to compute stack map frames.
+   */
+  public ClassHierarchyCache getHierarchyCache() {
+    return myHierarchy;
+  }
+
   private byte[] transformInner(ClassLoader loader, String className, byte[] classFileBuffer) {
     if (isStopped()) {
       return null;
@@ -78,16 +110,7 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
       }
       className = ClassNameUtil.convertToFQName(className);
 
-      //do not instrument itself
-      //and do not instrument packages which are used during instrumented method invocation
-      //(inside methods touch, save, etc from ProjectData)
-      if (className.startsWith("com.intellij.rt.")
-          || className.startsWith("java.")
-          || className.startsWith("sun.")
-          || className.startsWith("com.sun.")
-          || className.startsWith("jdk.")
-          || className.startsWith("org.jetbrains.coverage.gnu.trove.")
-          || className.startsWith("org.jetbrains.coverage.org.objectweb.")) {
+      if (INTERNAL_CLASSES.matches(className)) {
         return null;
       }
 
@@ -112,22 +135,41 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
   //public for test
   public byte[] instrument(final byte[] classfileBuffer, String className, ClassLoader loader, boolean computeFrames) {
     final ClassReader cr = new ClassReader(classfileBuffer);
-    final ClassWriter cw;
-    if (computeFrames) {
-      final int version = getClassFileVersion(cr);
-      int flags = (version & 0xFFFF) >= Opcodes.V1_6 && version != Opcodes.V1_1 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
-      cw = new MyClassWriter(flags, loader);
-    } else {
-      cw = new MyClassWriter(ClassWriter.COMPUTE_MAXS, loader);
+    if (computeFrames && hasFrames(cr)) {
+      final int flags = preserveFrames && preservesFrames() ? ClassWriter.COMPUTE_MAXS : ClassWriter.COMPUTE_FRAMES;
+      return instrument(cr, classfileBuffer, className, loader, flags);
     }
+    return instrument(cr, classfileBuffer, className, loader, ClassWriter.COMPUTE_MAXS);
+  }
 
+  private byte[] instrument(ClassReader cr, byte[] classfileBuffer, String className, ClassLoader loader, int flags) {
+    final ClassWriter cw = new MyClassWriter(flags, loader);
     final ClassVisitor cv = createClassVisitor(className, loader, cr, cw);
     cr.accept(cv, ClassReader.EXPAND_FRAMES);
-    return cw.toByteArray();
+    final byte[] result = cw.toByteArray();
+    classInstrumented(className, classfileBuffer, cv, result);
+    return result;
   }
 
   protected abstract ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassWriter cw);
 
+  /**
+   * Called when the class is instrumented by the visitor created with {@link #createClassVisitor}.
+   */
+  protected void classInstrumented(String className, byte[] classfileBuffer, ClassVisitor cv, byte[] result) {
+  }
+
+  /**
+   * Whether visitors created with {@link #createClassVisitor} do not change the type state of methods
+   * and keep original stack map frames at their labels. Then frames are not recomputed,
+   * which saves loading of the class hierarchy in {@link ClassWriter#getCommonSuperClass}.
+   * ASM does not check kept frames, a wrong frame fails only when the class is verified,
+   * <code>idea.coverage.preserve.frames=false</code> turns frames recomputation back on.
+   */
+  protected boolean preservesFrames() {
+    return false;
+  }
+
   protected abstract boolean shouldExclude(String className);
 
   protected InclusionPattern getInclusionPattern() {
@@ -146,6 +188,15 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
     return System.getProperty("idea.coverage.no.frames") == null;
   }
 
+  private boolean preserveFrames() {
+    return !"false".equals(System.getProperty("idea.coverage.preserve.frames"));
+  }
+
+  private static boolean hasFrames(ClassReader reader) {
+    final int version = getClassFileVersion(reader);
+    return (version & 0xFFFF) >= Opcodes.V1_6 && version != Opcodes.V1_1;
+  }
+
   /**
    * Returns class file version in the {@code minor << 16 | major} format.<br/>
    * <b>Warning</b>: in classes compiled with <a href="https://openjdk.java.net/jeps/12">JEP 12's</a> {@code --enable-preview} option
@@ -166,8 +217,8 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
 
     protected String getCommonSuperClass(String type1, String type2) {
       try {
-        ClassReader info1 = getOrLoadClassReader(type1, classLoader);
-        ClassReader info2 = getOrLoadClassReader(type2, classLoader);
+        ClassHierarchyCache.ClassInfo info1 = myHierarchy.get(type1, classLoader);
+        ClassHierarchyCache.ClassInfo info2 = myHierarchy.get(type2, classLoader);
         String
             superType = checkImplementInterface(type1, type2, info1, info2);
         if (superType != null) return superType;
@@ -201,8 +252,9 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
       }
     }
 
-    private String checkImplementInterface(String type1, String type2, ClassReader info1, ClassReader info2) throws IOException {
-      if ((info1.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+    private String checkImplementInterface(String type1, String type2,
+                                           ClassHierarchyCache.ClassInfo info1, ClassHierarchyCache.ClassInfo info2) throws IOException {
+      if (info1.isInterface()) {
         if (typeImplements(type2, info2, type1)) {
           return type1;
         }
@@ -211,60 +263,34 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
       return null;
     }
 
-    private StringBuilder typeAncestors(String type, ClassReader info) throws IOException {
+    private StringBuilder typeAncestors(String type, ClassHierarchyCache.ClassInfo info) throws IOException {
       StringBuilder b = new StringBuilder();
       while (!JAVA_LANG_OBJECT.equals(type)) {
         b.append(';').append(type);
         type = info.getSuperName();
-        info = getOrLoadClassReader(type, classLoader);
+        info = myHierarchy.get(type, classLoader);
       }
       return b;
     }
 
 
-    private boolean typeImplements(String type, ClassReader classReader, String interfaceName) throws IOException {
+    private boolean typeImplements(String type, ClassHierarchyCache.ClassInfo info, String interfaceName) throws IOException {
       while (!JAVA_LANG_OBJECT.equals(type)) {
-        String[] interfaces = classReader.getInterfaces();
+        String[] interfaces = info.getInterfaces();
         for (String itf1 : interfaces) {
           if (itf1.equals(interfaceName)) {
             return true;
           }
         }
         for (String itf : interfaces) {
-          if (typeImplements(itf, getOrLoadClassReader(itf, classLoader), interfaceName)) {
+          if (typeImplements(itf, myHierarchy.get(itf, classLoader), interfaceName)) {
             return true;
           }
         }
-        type = classReader.getSuperName();
-        classReader = getOrLoadClassReader(type, classLoader);
+        type = info.getSuperName();
+        info = myHierarchy.get(type, classLoader);
       }
       return false;
     }
   }
-
-  private synchronized ClassReader getOrLoadClassReader(String className, ClassLoader classLoader) throws IOException {
-    Map<String, ClassReader> loaderClassReaders = classReaders.get(classLoader);
-    if (loaderClassReaders == null) {
-      classReaders.put(classLoader, loaderClassReaders = new THashMap<String, ClassReader>());
-    }
-    ClassReader classReader = loaderClassReaders.get(className);
-    if (classReader == null) {
-      InputStream is = null;
-      try {
-        String resource = className + ".class";
-        is = classLoader == null
-            ? ClassLoader.getSystemResourceAsStream(resource)
-            : classLoader.getResourceAsStream(resource);
-        if (is == null) {
-          throw new IOException("Class " + className + " not found");
-        }
-        loaderClassReaders.put(className, classReader = new ClassReader(is));
-      } finally {
-        if (is != null) {
-          is.close();
-        }
-      }
-    }
-    return classReader;
-  }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Super class, interfaces and access flags of classes by class loader, which are needed to compute stack map frames.
+ * <p>
+ * Only these headers are kept, not class files, and equal headers of different classes or of the same class
+ * in different class loaders are shared. Lookups do not block each other, class files are read outside of any lock.
+ * The cache is cleared when the number of entries exceeds the limit, which may be changed with
+ * <code>-Didea.coverage.hierarchy.cache.size=&lt;entries&gt;</code>.
+ */
+public class ClassHierarchyCache {
+  public static final String SIZE_PROPERTY = "idea.coverage.hierarchy.cache.size";
+  private static final int DEFAULT_SIZE = 100000;
+
+  private final int myMaxSize;
+  private final Map<ClassLoader, ConcurrentMap<String, ClassInfo>> myLoaders = new WeakHashMap<ClassLoader, ConcurrentMap<String, ClassInfo>>();
+  private final ConcurrentMap<ClassInfo, ClassInfo> myInfos = new ConcurrentHashMap<ClassInfo, ClassInfo>();
+  private final AtomicInteger mySize = new AtomicInteger();
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
+
+  public ClassHierarchyCache() {
+    this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+  }
+
+  public ClassHierarchyCache(int maxSize) {
+    myMaxSize = maxSize;
+  }
+
+  /**
+   * @param className internal class name
+   * @throws IOException when the class file is not found in the class loader
+   */
+  public ClassInfo get(String className, ClassLoader classLoader) throws IOException {
+    final ConcurrentMap<String, ClassInfo> infos = getInfos(classLoader);
+    ClassInfo info = infos.get(className);
+    if (info != null) {
+      myHits.incrementAndGet();
+      return info;
+    }
+    myMisses.incrementAndGet();
+    info = intern(load(className, classLoader));
+    final ClassInfo existing = infos.putIfAbsent(className, info);
+    if (existing != null) return existing;
+    if (mySize.incrementAndGet() > myMaxSize) {
+      clear();
+    }
+    return info;
+  }
+
+  private ConcurrentMap<String, ClassInfo> getInfos(ClassLoader classLoader) {
+    synchronized (myLoaders) {
+      ConcurrentMap<String, ClassInfo> infos = myLoaders.get(classLoader);
+      if (infos == null) {
+        infos = new ConcurrentHashMap<String, ClassInfo>();
+        myLoaders.put(classLoader, infos);
+      }
+      return infos;
+    }
+  }
+
+  private ClassInfo intern(ClassInfo info) {
+    final ClassInfo existing = myInfos.putIfAbsent(info, info);
+    return existing != null ? existing : info;
+  }
+
+  private void clear() {
+    synchronized (myLoaders) {
+      for (ConcurrentMap<String, ClassInfo> infos : myLoaders.values()) {
+        infos.clear();
+      }
+    }
+    myInfos.clear();
+    mySize.set(0);
+    myEvictions.incrementAndGet();
+  }
+
+  private static ClassInfo load(String className, ClassLoader classLoader) throws IOException {
+    final String resource = className + ".class";
+    final InputStream is = classLoader == null
+        ? ClassLoader.getSystemResourceAsStream(resource)
+        : classLoader.getResourceAsStream(resource);
+    if (is == null) {
+      throw new IOException("Class " + className + " not found");
+    }
+    try {
+      final ClassReader reader = new ClassReader(is);
+      return new ClassInfo(reader.getSuperName(), reader.getInterfaces(), reader.getAccess());
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Number of cached entries, approximately.
+   */
+  public int size() {
+    return mySize.get();
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  /**
+   * Number of times the cache was cleared because of the size limit.
+   */
+  public long getEvictions() {
+    return myEvictions.get();
+  }
+
+  public static class ClassInfo {
+    private final String mySuperName;
+    private final String[] myInterfaces;
+    private final int myAccess;
+
+    public ClassInfo(String superName, String[] interfaces, int access) {
+      mySuperName = superName;
+      myInterfaces = interfaces;
+      myAccess = access;
+    }
+
+    public String getSuperName() {
+      return mySuperName;
+    }
+
+    public String[] getInterfaces() {
+      return myInterfaces;
+    }
+
+    public boolean isInterface() {
+      return (myAccess & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ClassInfo)) return false;
+      final ClassInfo info = (ClassInfo) o;
+      return myAccess == info.myAccess
+          && (mySuperName == null ? info.mySuperName == null : mySuperName.equals(info.mySuperName))
+          && Arrays.equals(myInterfaces, info.myInterfaces);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (mySuperName != null ? mySuperName.hashCode() : 0) + Arrays.hashCode(myInterfaces)) + myAccess;
+    }
+  }
+}
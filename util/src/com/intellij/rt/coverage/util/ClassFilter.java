@@ -0,0 +1,75 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude class name patterns of a coverage run, compiled once
+ * and shared by the transformer and the class finder.
+ */
+public class ClassFilter {
+  private final ClassNamePatterns myIncludePatterns;
+  private final ClassNamePatterns myExcludePatterns;
+
+  public ClassFilter(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
+    myIncludePatterns = new ClassNamePatterns(includePatterns);
+    myExcludePatterns = new ClassNamePatterns(excludePatterns);
+  }
+
+  public List<Pattern> getIncludePatterns() {
+    return myIncludePatterns.getPatterns();
+  }
+
+  public List<Pattern> getExcludePatterns() {
+    return myExcludePatterns.getPatterns();
+  }
+
+  public boolean hasIncludePatterns() {
+    return !myIncludePatterns.isEmpty();
+  }
+
+  /**
+   * Whether the filter was compiled from these pattern lists.
+   */
+  public boolean isCompiledFrom(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
+    return getIncludePatterns() == includePatterns && getExcludePatterns() == excludePatterns;
+  }
+
+  /**
+   * @param className fully qualified class name with dots as separators
+   */
+  public boolean isExcluded(String className) {
+    return myExcludePatterns.matches(className);
+  }
+
+  /**
+   * @return true if the class name matches an include pattern or there are no include patterns
+   */
+  public boolean isIncluded(String className) {
+    return myIncludePatterns.isEmpty() || myIncludePatterns.matches(className);
+  }
+
+  /**
+   * @param packagePrefix package name followed by a dot, or empty string for the default package
+   * @return false if no class of the package or its subpackages is included
+   */
+  public boolean mayIncludePackage(String packagePrefix) {
+    return myIncludePatterns.isEmpty() || myIncludePatterns.mayMatchPackage(packagePrefix);
+  }
+}
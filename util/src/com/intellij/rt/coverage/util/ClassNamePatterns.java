@@ -0,0 +1,245 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled list of class name patterns, a name matches when any of the patterns matches the whole name.
+ * <p>
+ * Literal prefixes of the patterns are put into a trie. Patterns of the <code>prefix.*</code> form are matched
+ * with the trie only, other patterns are matched with their regular expression when the name starts with their prefix.
+ * The patterns which may match classes of a package are collected once per package.
+ */
+public class ClassNamePatterns {
+  private static final int MAX_PACKAGES = 10000;
+  private static final Candidates NONE = new Candidates(false, new String[0], new Pattern[0]);
+
+  private final List<Pattern> myPatterns;
+  private final Node myRoot = new Node();
+  private final ConcurrentMap<String, Candidates> myPackages = new ConcurrentHashMap<String, Candidates>();
+
+  public ClassNamePatterns(List<Pattern> patterns) {
+    myPatterns = patterns;
+    for (Pattern pattern : patterns) {
+      final String regex = pattern.pattern();
+      final StringBuilder prefix = new StringBuilder();
+      final int end = pattern.flags() == 0 ? parseLiteralPrefix(regex, prefix) : 0;
+      final Node node = myRoot.getOrCreate(prefix);
+      if (regex.length() - end == 2 && regex.endsWith(".*")) {
+        node.myPrefix = prefix.toString();
+      } else {
+        node.myPatterns.add(pattern);
+      }
+    }
+  }
+
+  /**
+   * Patterns matching names which start with one of the prefixes.
+   */
+  public static ClassNamePatterns ofPrefixes(String... prefixes) {
+    final List<Pattern> patterns = new ArrayList<Pattern>(prefixes.length);
+    for (String prefix : prefixes) {
+      final StringBuilder regex = new StringBuilder();
+      for (int i = 0; i < prefix.length(); i++) {
+        final char c = prefix.charAt(i);
+        if (!Character.isLetterOrDigit(c)) regex.append('\\');
+        regex.append(c);
+      }
+      patterns.add(Pattern.compile(regex.append(".*").toString()));
+    }
+    return new ClassNamePatterns(patterns);
+  }
+
+  public List<Pattern> getPatterns() {
+    return myPatterns;
+  }
+
+  public boolean isEmpty() {
+    return myPatterns.isEmpty();
+  }
+
+  /**
+   * @param className fully qualified class name with dots as separators
+   */
+  public boolean matches(String className) {
+    if (myPatterns.isEmpty()) return false;
+    final Candidates candidates = getCandidates(className.substring(0, className.lastIndexOf('.') + 1));
+    if (candidates.myMatchesAll) return true;
+    for (String prefix : candidates.myPrefixes) {
+      if (className.startsWith(prefix)) return true;
+    }
+    for (Pattern pattern : candidates.myPatterns) {
+      if (pattern.matcher(className).matches()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param packagePrefix package name followed by a dot, or empty string for the default package
+   * @return false if no class of the package or its subpackages matches
+   */
+  public boolean mayMatchPackage(String packagePrefix) {
+    return !myPatterns.isEmpty() && getCandidates(packagePrefix) != NONE;
+  }
+
+  private Candidates getCandidates(String packagePrefix) {
+    Candidates candidates = myPackages.get(packagePrefix);
+    if (candidates == null) {
+      candidates = collectCandidates(packagePrefix);
+      if (myPackages.size() >= MAX_PACKAGES) {
+        myPackages.clear();
+      }
+      myPackages.put(packagePrefix, candidates);
+    }
+    return candidates;
+  }
+
+  /**
+   * Patterns whose literal prefix is a prefix of the package, or starts with the package.
+   */
+  private Candidates collectCandidates(String packagePrefix) {
+    final List<String> prefixes = new ArrayList<String>();
+    final List<Pattern> patterns = new ArrayList<Pattern>();
+    Node node = myRoot;
+    for (int i = 0; ; i++) {
+      if (node.myPrefix != null) {
+        return new Candidates(true, null, null);
+      }
+      patterns.addAll(node.myPatterns);
+      if (i == packagePrefix.length()) break;
+      node = node.myChildren.get(packagePrefix.charAt(i));
+      if (node == null) break;
+    }
+    if (node != null) {
+      for (Node child : node.myChildren.values()) {
+        child.collect(prefixes, patterns);
+      }
+    }
+    if (prefixes.isEmpty() && patterns.isEmpty()) return NONE;
+    return new Candidates(false, prefixes.toArray(new String[0]), patterns.toArray(new Pattern[0]));
+  }
+
+  /**
+   * Characters which any name matching the regular expression starts with.
+   */
+  static String getLiteralPrefix(String regex) {
+    final StringBuilder prefix = new StringBuilder();
+    parseLiteralPrefix(regex, prefix);
+    return prefix.toString();
+  }
+
+  /**
+   * @return index of the first character after the literal prefix in the regular expression
+   */
+  private static int parseLiteralPrefix(String regex, StringBuilder prefix) {
+    if (hasTopLevelAlternation(regex)) return 0;
+    int i = 0;
+    while (i < regex.length()) {
+      final char c = regex.charAt(i);
+      final char literal;
+      final int next;
+      if (c == '\\') {
+        if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) break;
+        literal = regex.charAt(i + 1);
+        next = i + 2;
+      } else if ("[](){}.*+?^$|".indexOf(c) >= 0) {
+        break;
+      } else {
+        literal = c;
+        next = i + 1;
+      }
+      if (next < regex.length() && "*+?{".indexOf(regex.charAt(next)) >= 0) break;
+      prefix.append(literal);
+      i = next;
+    }
+    return i;
+  }
+
+  private static boolean hasTopLevelAlternation(String regex) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < regex.length(); i++) {
+      final char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        if (c == ']') inClass = false;
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static class Node {
+    private final Map<Character, Node> myChildren = new HashMap<Character, Node>();
+    private final List<Pattern> myPatterns = new ArrayList<Pattern>(0);
+    /**
+     * Not null when names starting with the prefix of this node match.
+     */
+    private String myPrefix;
+
+    private Node getOrCreate(CharSequence prefix) {
+      Node node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        Node child = node.myChildren.get(prefix.charAt(i));
+        if (child == null) {
+          child = new Node();
+          node.myChildren.put(prefix.charAt(i), child);
+        }
+        node = child;
+      }
+      return node;
+    }
+
+    private void collect(List<String> prefixes, List<Pattern> patterns) {
+      if (myPrefix != null) {
+        prefixes.add(myPrefix);
+        return;
+      }
+      patterns.addAll(myPatterns);
+      for (Node child : myChildren.values()) {
+        child.collect(prefixes, patterns);
+      }
+    }
+  }
+
+  private static class Candidates {
+    private final boolean myMatchesAll;
+    private final String[] myPrefixes;
+    private final Pattern[] myPatterns;
+
+    private Candidates(boolean matchesAll, String[] prefixes, Pattern[] patterns) {
+      myMatchesAll = matchesAll;
+      myPrefixes = prefixes;
+      myPatterns = patterns;
+    }
+  }
+}
@@ -16,28 +16,209 @@
 
 package com.intellij.rt.coverage.util;
 
-
-import org.jetbrains.coverage.gnu.trove.TLongObjectHashMap;
-
 /**
+ * Pool of strings shared by coverage data, e.g. method signatures of lines.
+ * <p>
+ * Strings are kept in open addressing tables by their {@link StringHash}, the pool is split into stripes
+ * which are locked separately, so that classes transformed by different threads rarely wait for each other.
+ * A pooled string is returned only if it is equal to the requested one, so a hash collision costs a copy only.
+ * The number of pooled strings is limited by <code>idea.coverage.strings.pool.size</code>, 1M by default,
+ * a stripe which reaches its share of the limit is cleared.
+ *
  * @author Pavel.Sher
  */
 public class StringsPool {
-  private final static TLongObjectHashMap<String> myReusableStrings = new TLongObjectHashMap<String>(30000);
+  public static final String POOL_SIZE_PROPERTY = "idea.coverage.strings.pool.size";
   private final static String EMPTY = "";
+  private static final int STRIPES = 16;
+  private static final StringsPool ourPool = new StringsPool(Integer.getInteger(POOL_SIZE_PROPERTY, 1 << 20));
+
+  private final Stripe[] myStripes = new Stripe[STRIPES];
+
+  StringsPool(int maxSize) {
+    final int stripeSize = Math.max(1, maxSize / STRIPES);
+    for (int i = 0; i < STRIPES; i++) {
+      myStripes[i] = new Stripe(stripeSize);
+    }
+  }
+
+  public static StringsPool getInstance() {
+    return ourPool;
+  }
 
   public static String getFromPool(String value) {
     if (value == null) return null;
     if (value.length() == 0) return EMPTY;
+    return ourPool.get(StringHash.calc(value), value);
+  }
+
+  String get(long hash, String value) {
+    if (hash == 0) hash = 1; // zero marks an empty slot
+    final Stripe stripe = myStripes[(int) (hash >>> 60) & (STRIPES - 1)];
+    synchronized (stripe) {
+      return stripe.get(hash, value);
+    }
+  }
+
+  /**
+   * @return number of requests which returned a pooled string
+   */
+  public long getHits() {
+    long result = 0;
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        result += stripe.myHits;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return number of requests which added a string to the pool
+   */
+  public long getMisses() {
+    long result = 0;
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        result += stripe.myMisses;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return number of requests for a string which differs from the pooled string with the same hash
+   */
+  public long getCollisions() {
+    long result = 0;
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        result += stripe.myCollisions;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return number of strings removed from the pool because of the size limit
+   */
+  public long getEvictions() {
+    long result = 0;
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        result += stripe.myEvictions;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return total length of strings returned from the pool instead of a copy, which approximates memory saved by pooling
+   */
+  public long getSavedChars() {
+    long result = 0;
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        result += stripe.mySavedChars;
+      }
+    }
+    return result;
+  }
+
+  public int size() {
+    int result = 0;
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        result += stripe.mySize;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Open addressing table with linear probing, grows twice when half full up to the size limit.
+   */
+  private static class Stripe {
+    private final int myMaxSize;
+    private long[] myHashes = new long[64];
+    private String[] myValues = new String[64];
+    private int mySize;
+    private long myHits;
+    private long myMisses;
+    private long myCollisions;
+    private long myEvictions;
+    private long mySavedChars;
+
+    private Stripe(int maxSize) {
+      myMaxSize = maxSize;
+    }
+
+    private String get(long hash, String value) {
+      final int mask = myHashes.length - 1;
+      int index = (int) hash & mask;
+      while (myHashes[index] != 0) {
+        if (myHashes[index] == hash) {
+          final String reused = myValues[index];
+          if (reused.equals(value)) {
+            myHits++;
+            mySavedChars += reused.length();
+            return reused;
+          }
+          myCollisions++;
+          //noinspection RedundantStringConstructorCall
+          return new String(value);
+        }
+        index = (index + 1) & mask;
+      }
+
+      myMisses++;
+      // new String() is required because value often is passed as substring which has a reference to original char array
+      // see {@link String.substring(int, int} method implementation.
+      //noinspection RedundantStringConstructorCall
+      final String reused = new String(value);
+      if (mySize >= myMaxSize) {
+        myEvictions += mySize;
+        clear();
+        put(hash, reused);
+      } else if (2 * (mySize + 1) > myHashes.length) {
+        rehash(myHashes.length * 2);
+        put(hash, reused);
+      } else {
+        myHashes[index] = hash;
+        myValues[index] = reused;
+        mySize++;
+      }
+      return reused;
+    }
+
+    private void put(long hash, String value) {
+      final int mask = myHashes.length - 1;
+      int index = (int) hash & mask;
+      while (myHashes[index] != 0) {
+        index = (index + 1) & mask;
+      }
+      myHashes[index] = hash;
+      myValues[index] = value;
+      mySize++;
+    }
+
+    private void rehash(int capacity) {
+      final long[] hashes = myHashes;
+      final String[] values = myValues;
+      myHashes = new long[capacity];
+      myValues = new String[capacity];
+      mySize = 0;
+      for (int i = 0; i < hashes.length; i++) {
+        if (hashes[i] != 0) {
+          put(hashes[i], values[i]);
+        }
+      }
+    }
 
-    final long hash = StringHash.calc(value);
-    String reused = myReusableStrings.get(hash);
-    if (reused != null) return reused;
-    // new String() is required because value often is passed as substring which has a reference to original char array
-    // see {@link String.substring(int, int} method implementation.
-    //noinspection RedundantStringConstructorCall
-    reused = new String(value);
-    myReusableStrings.put(hash, reused);
-    return reused;
+    private void clear() {
+      myHashes = new long[64];
+      myValues = new String[64];
+      mySize = 0;
+    }
   }
 }
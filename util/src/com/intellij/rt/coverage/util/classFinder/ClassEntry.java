@@ -24,16 +24,32 @@ import java.io.InputStream;
 public class ClassEntry {
   private final String myClassName;
   private final ClassLoader myClassLoader;
+  private final String myClassPathEntry;
 
   public ClassEntry(final String className, final ClassLoader classLoader) {
+    this(className, classLoader, null);
+  }
+
+  /**
+   * @param classPathEntry directory or archive where the class was found
+   */
+  public ClassEntry(final String className, final ClassLoader classLoader, final String classPathEntry) {
     myClassName = className;
     myClassLoader = classLoader;
+    myClassPathEntry = classPathEntry;
   }
 
   public String getClassName() {
     return myClassName;
   }
 
+  /**
+   * @return directory or archive where the class was found, or null if unknown
+   */
+  public String getClassPathEntry() {
+    return myClassPathEntry;
+  }
+
   public InputStream getClassInputStream() {
     String resourceName = myClassName.replace('.', '/') + ".class";
     InputStream is = getResourceStream(resourceName);
@@ -16,28 +16,40 @@
 
 package com.intellij.rt.coverage.util.classFinder;
 
+import com.intellij.rt.coverage.util.ClassFilter;
+
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
  * @author pavel.sher
  */
 public class ClassFinder {
-  private final List<Pattern> myIncludePatterns;
-  private final List<Pattern> myExcludePatterns;
+  private final ClassFilter myFilter;
   private final Set<ClassLoader> myClassloaders;
 
   public ClassFinder(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
-    myIncludePatterns = includePatterns;
-    myExcludePatterns = excludePatterns;
+    this(new ClassFilter(includePatterns, excludePatterns));
+  }
+
+  public ClassFinder(ClassFilter filter) {
+    myFilter = filter;
     myClassloaders = new HashSet<ClassLoader>();
   }
 
+  public ClassFilter getFilter() {
+    return myFilter;
+  }
+
   public void addClassLoader(ClassLoader cl) {
     if (cl != null) {
       // workaround for TeamCity own tests
@@ -56,7 +68,7 @@ public class ClassFinder {
     Set<ClassEntry> classes = new HashSet<ClassEntry>();
     for (ClassPathEntry entry : getClassPathEntries()) {
       try {
-        classes.addAll(entry.getClassesIterator(myIncludePatterns, myExcludePatterns));
+        classes.addAll(entry.getClassesIterator(myFilter));
       } catch (IOException e) {
         e.printStackTrace();
       }
@@ -64,6 +76,29 @@ public class ClassFinder {
     return classes;
   }
 
+  /**
+   * Same as {@link #findMatchedClasses()}, class path entries are processed by the executor in parallel.
+   */
+  public Collection<ClassEntry> findMatchedClasses(ExecutorService executor) throws InterruptedException {
+    final List<Future<Collection<ClassEntry>>> futures = new ArrayList<Future<Collection<ClassEntry>>>();
+    for (final ClassPathEntry entry : getClassPathEntries()) {
+      futures.add(executor.submit(new Callable<Collection<ClassEntry>>() {
+        public Collection<ClassEntry> call() throws Exception {
+          return entry.getClassesIterator(myFilter);
+        }
+      }));
+    }
+    final Set<ClassEntry> classes = new HashSet<ClassEntry>();
+    for (Future<Collection<ClassEntry>> future : futures) {
+      try {
+        classes.addAll(future.get());
+      } catch (ExecutionException e) {
+        e.getCause().printStackTrace();
+      }
+    }
+    return classes;
+  }
+
   // Overriden in IntelliJ
   @SuppressWarnings("WeakerAccess")
   protected Collection<ClassPathEntry> getClassPathEntries() {
@@ -16,12 +16,14 @@
 
 package com.intellij.rt.coverage.util.classFinder;
 
+import com.intellij.rt.coverage.util.ClassFilter;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -39,73 +41,60 @@ public class ClassPathEntry {
     myClassLoader = classLoader;
   }
 
-  Collection<ClassEntry> getClassesIterator(List<Pattern> includePatterns, List<Pattern> excludePatterns) throws IOException {
+  Collection<ClassEntry> getClassesIterator(ClassFilter filter) throws IOException {
     ClassPathEntryProcessor processor = createEntryProcessor(myClassPathEntry);
     if (processor == null) {
 //      System.err.println("Do not know how to process class path entry: " + myClassPathEntry);
       return Collections.emptyList();
     }                          
-    processor.setFilter(includePatterns, excludePatterns);
+    processor.setFilter(filter);
     processor.setClassLoader(myClassLoader);
     return processor.findClasses(myClassPathEntry);
   }
 
   private static ClassPathEntryProcessor createEntryProcessor(String entry) {
     File file = new File(entry);
+    // processors keep the filter and the class loader, entries may be processed in parallel
     if (file.isDirectory()) {
-      return myDirectoryProcessor;
+      return new DirectoryEntryProcessor();
     }
     if (file.isFile() && (file.getName().endsWith(".jar") || file.getName().endsWith(".zip"))) {
-      return myZipProcessor;
+      return new ZipEntryProcessor();
     }
     return null;
   }
 
-  private final static DirectoryEntryProcessor myDirectoryProcessor = new DirectoryEntryProcessor();
-  private final static ZipEntryProcessor myZipProcessor = new ZipEntryProcessor();
-
   private static abstract class AbstractClassPathEntryProcessor implements ClassPathEntryProcessor {
-    private List<Pattern> myIncludePatterns;
-    private List<Pattern> myExcludePatterns;
+    private ClassFilter myFilter;
     private ClassLoader myClassLoader;
 
-    public void setFilter(final List<Pattern> includePatterns, final List<Pattern> excludePatterns) {
-      myIncludePatterns = includePatterns;
-      myExcludePatterns = excludePatterns;
+    public void setFilter(final ClassFilter filter) {
+      myFilter = filter;
     }
 
     public void setClassLoader(final ClassLoader classLoader) {
       myClassLoader = classLoader;
     }
 
-    protected abstract Collection<String> extractClassNames(String classPathEntry) throws IOException;
+    protected boolean mayIncludePackage(final String packagePrefix) {
+      return myFilter.mayIncludePackage(packagePrefix);
+    }
 
-    public Collection<ClassEntry> findClasses(final String classPathEntry) throws IOException {
-      Set<ClassEntry> includedClasses = new HashSet<ClassEntry>();
-      for (Object o : extractClassNames(classPathEntry)) {
-        final String className = (String) o;
-        if (shouldInclude(className)) {
-          includedClasses.add(new ClassEntry(className, myClassLoader));
-        }
+    protected void addIfIncluded(final String className, final String classPathEntry, final Set<ClassEntry> result) {
+      if (shouldInclude(className)) {
+        result.add(new ClassEntry(className, myClassLoader, classPathEntry));
       }
-      return includedClasses;
     }
 
     private boolean shouldInclude(final String className) {
       // matching outer or inner class name depending on pattern
-      if (ClassNameUtil.shouldExclude(className, myExcludePatterns)) return false;
-
-      String outerClassName = ClassNameUtil.getOuterClassName(className);
-      for (Object myIncludePattern : myIncludePatterns) {
-        Pattern e = (Pattern) myIncludePattern;
-        if (e.matcher(outerClassName).matches()) return true;
-      }
-      return myIncludePatterns.isEmpty();
+      if (myFilter.isExcluded(className)) return false;
+      return myFilter.isIncluded(ClassNameUtil.getOuterClassName(className));
     }
   }
 
   private interface ClassPathEntryProcessor {
-    void setFilter(List<Pattern> includePatterns, List<Pattern> excludePatterns);
+    void setFilter(ClassFilter filter);
     void setClassLoader(ClassLoader classLoader);
 
     Collection<ClassEntry> findClasses(final String classPathEntry) throws IOException;
@@ -115,24 +104,30 @@ public class ClassPathEntry {
 
   private static class DirectoryEntryProcessor extends AbstractClassPathEntryProcessor {
 
-    protected Collection<String> extractClassNames(final String classPathEntry) {
-      File dir = new File(classPathEntry);
-      List<String> result = new ArrayList<String>(100);
-      String curPath = "";
-      collectClasses(curPath, dir, result);
+    public Collection<ClassEntry> findClasses(final String classPathEntry) {
+      Set<ClassEntry> result = new HashSet<ClassEntry>();
+      collectClasses(classPathEntry, new StringBuilder(), new File(classPathEntry), result);
       return result;
     }
 
-    private static void collectClasses(final String curPath, final File parent, final List<String> result) {
-      File[] files = parent.listFiles();
-      if (files != null) {
-        String prefix = curPath.length() == 0 ? "" : curPath + ".";
-        for (File f : files) {
-          final String name = f.getName();
-          if (name.endsWith(CLASS_FILE_SUFFIX)) {
-            result.add(prefix + removeClassSuffix(name));
-          } else if (f.isDirectory()) {
-            collectClasses(prefix + name, f, result);
+    /**
+     * Packages which cannot contain included classes are skipped, only names without a dot are checked to be directories.
+     */
+    private void collectClasses(final String classPathEntry, final StringBuilder packagePrefix, final File parent, final Set<ClassEntry> result) {
+      if (!mayIncludePackage(packagePrefix.toString())) return;
+      String[] names = parent.list();
+      if (names == null) return;
+      final int length = packagePrefix.length();
+      for (String name : names) {
+        if (name.endsWith(CLASS_FILE_SUFFIX)) {
+          packagePrefix.append(name, 0, name.length() - CLASS_FILE_SUFFIX.length());
+          addIfIncluded(packagePrefix.toString(), classPathEntry, result);
+          packagePrefix.setLength(length);
+        } else if (name.indexOf('.') < 0) {
+          final File file = new File(parent, name);
+          if (file.isDirectory()) {
+            collectClasses(classPathEntry, packagePrefix.append(name).append('.'), file, result);
+            packagePrefix.setLength(length);
           }
         }
       }
@@ -143,10 +138,43 @@ public class ClassPathEntry {
     return name.substring(0, name.length() - CLASS_FILE_SUFFIX.length());
   }
 
+  /**
+   * Class names of archives by path, an archive is listed again when its size or modification time changes.
+   */
+  private static final ConcurrentMap<String, ArchiveListing> ourArchiveListings = new ConcurrentHashMap<String, ArchiveListing>();
+
+  private static class ArchiveListing {
+    private final long myLength;
+    private final long myLastModified;
+    private final String[] myClassNames;
+
+    private ArchiveListing(long length, long lastModified, String[] classNames) {
+      myLength = length;
+      myLastModified = lastModified;
+      myClassNames = classNames;
+    }
+  }
+
   private static class ZipEntryProcessor extends AbstractClassPathEntryProcessor {
-    public Collection<String> extractClassNames(final String classPathEntry) throws IOException {
+    public Collection<ClassEntry> findClasses(final String classPathEntry) throws IOException {
+      Set<ClassEntry> result = new HashSet<ClassEntry>();
+      for (String className : getClassNames(classPathEntry)) {
+        addIfIncluded(className, classPathEntry, result);
+      }
+      return result;
+    }
+
+    private static String[] getClassNames(final String classPathEntry) throws IOException {
+      final File file = new File(classPathEntry);
+      final long length = file.length();
+      final long lastModified = file.lastModified();
+      final ArchiveListing listing = ourArchiveListings.get(classPathEntry);
+      if (listing != null && listing.myLength == length && listing.myLastModified == lastModified) {
+        return listing.myClassNames;
+      }
+
       List<String> result = new ArrayList<String>(100);
-      ZipFile zipFile = new ZipFile(new File(classPathEntry));
+      ZipFile zipFile = new ZipFile(file);
       try {
         Enumeration<? extends ZipEntry> zenum = zipFile.entries();
         while (zenum.hasMoreElements()) {
@@ -158,7 +186,9 @@ public class ClassPathEntry {
       } finally {
         zipFile.close();
       }
-      return result;
+      final String[] classNames = result.toArray(new String[result.size()]);
+      ourArchiveListings.put(classPathEntry, new ArchiveListing(length, lastModified, classNames));
+      return classNames;
     }
   }
 